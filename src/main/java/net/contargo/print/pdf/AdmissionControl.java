@@ -0,0 +1,391 @@
+package net.contargo.print.pdf;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+
+/**
+ * Admits concurrent builds only while they fit a memory budget, and a limit of concurrent builds, queueing the others
+ * by priority.
+ *
+ * <p>The memory budget is compared against the sum of the estimated heap cost of all running builds. A build
+ * estimated larger than the whole budget is admitted once it has the budget to itself.</p>
+ *
+ * <p>Within a priority class builds are admitted first come, first served, so that a large build is not starved by a
+ * stream of small ones. Waiting interactive builds overtake waiting batch builds, except that a batch build is
+ * admitted whenever batch builds fall below their minimum share of the builds admitted, while batch builds are
+ * waiting. Waiting builds honor the deadline of their build, and are rejected if the queue is full. Builds whose
+ * deadline passes while waiting are counted as timed out, not as rejected.</p>
+ *
+ * @since  0.6
+ */
+final class AdmissionControl {
+
+    /**
+     * An admitted build, releasing its reservation when it completes.
+     */
+    static final class Permit {
+
+        private final RenderPriority priority;
+        private final long reserved;
+        private final long queuedNanos;
+
+        private Permit(RenderPriority priority, long reserved, long queuedNanos) {
+
+            this.priority = priority;
+            this.reserved = reserved;
+            this.queuedNanos = queuedNanos;
+        }
+
+        long getReserved() {
+
+            return reserved;
+        }
+    }
+
+    /**
+     * The statistics of a priority class.
+     */
+    private static final class ClassStats {
+
+        private long admitted;
+        private long rejected;
+        private long timedOut;
+        private long totalWaitNanos;
+        private long maxWaitNanos;
+        private long completed;
+        private long totalLatencyNanos;
+        private long maxLatencyNanos;
+    }
+
+    // Rough factors: the parsed template, its rewritten content streams, and the output buffer of each stage
+    private static final long TEMPLATE_FACTOR = 3;
+    private static final long PAGE_COST = 256L * 1024L; // NOSONAR
+    private static final long BYTES_PER_PIXEL = 4;
+    private static final byte[] PAGE_TYPE = "/Type /Page".getBytes(StandardCharsets.US_ASCII);
+
+    private final long budget;
+    private final int maxRunning;
+    private final int maxQueued;
+    private final int batchShare;
+    private final Map<RenderPriority, Deque<Object>> queues = new EnumMap<>(RenderPriority.class);
+    private final Map<RenderPriority, ClassStats> stats = new EnumMap<>(RenderPriority.class);
+
+    private long reserved;
+    private int running;
+    private long contendedAdmitted;
+    private long contendedBatchAdmitted;
+
+    /**
+     * @param  budget  of memory, {@code 0} for no budget
+     * @param  maxRunning  concurrent builds, {@code 0} for no limit
+     * @param  maxQueued  waiting builds
+     * @param  batchShare  minimum percentage of admitted builds, that are batch builds while any are waiting,
+     *                     {@code 0} for strict priority
+     */
+    AdmissionControl(long budget, int maxRunning, int maxQueued, int batchShare) {
+
+        this.budget = budget;
+        this.maxRunning = maxRunning;
+        this.maxQueued = maxQueued;
+        this.batchShare = batchShare;
+
+        for (RenderPriority priority : RenderPriority.values()) {
+            queues.put(priority, new ArrayDeque<>());
+            stats.put(priority, new ClassStats());
+        }
+    }
+
+    /**
+     * @return  whether builds are admitted by their estimated cost
+     */
+    boolean isBudgeted() {
+
+        return budget > 0;
+    }
+
+
+    /**
+     * Estimates the heap used while building the given template, from its size, its page count, and the decoded
+     * size of the images and QR-codes drawn into it.
+     */
+    static long estimate(byte[] template, List<QRSpec> qrCodes, List<PDFImage> images) {
+
+        return estimate(template.length, countPages(template), qrCodes, images);
+    }
+
+
+    /**
+     * Estimates the heap used while compiling and building a template source of the given size, assuming a single
+     * page, since the source is not read before it is compiled.
+     */
+    static long estimate(long sourceSize, List<QRSpec> qrCodes, List<PDFImage> images) {
+
+        return estimate(sourceSize, 1, qrCodes, images);
+    }
+
+
+    private static long estimate(long templateSize, long pages, List<QRSpec> qrCodes, List<PDFImage> images) {
+
+        long cost = templateSize * TEMPLATE_FACTOR + pages * PAGE_COST;
+
+        for (QRSpec qrCode : qrCodes) {
+            cost += (long) qrCode.getSize() * qrCode.getSize() * BYTES_PER_PIXEL;
+        }
+
+        for (PDFImage image : images) {
+            cost += decodedSize(image.getData());
+        }
+
+        return cost;
+    }
+
+
+    /**
+     * Counts the page objects, as written by PDFBox for every template, without parsing the document.
+     */
+    private static long countPages(byte[] pdf) {
+
+        long pages = 0;
+
+        for (int i = 0; i <= pdf.length - PAGE_TYPE.length - 1; i++) {
+            if (matchesAt(pdf, i, PAGE_TYPE) && pdf[i + PAGE_TYPE.length] != 's') {
+                pages++;
+            }
+        }
+
+        return Math.max(pages, 1);
+    }
+
+
+    private static boolean matchesAt(byte[] data, int offset, byte[] pattern) {
+
+        for (int i = 0; i < pattern.length; i++) {
+            if (data[offset + i] != pattern[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+
+    /**
+     * @return  the size of the decoded raster of the image, read from its header, or a multiple of the encoded size
+     */
+    private static long decodedSize(byte[] image) {
+
+        try(ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(image))) {
+            Iterator<ImageReader> readers = in == null ? null : ImageIO.getImageReaders(in);
+
+            if (readers != null && readers.hasNext()) {
+                ImageReader reader = readers.next();
+
+                try {
+                    reader.setInput(in);
+
+                    return (long) reader.getWidth(0) * reader.getHeight(0) * BYTES_PER_PIXEL;
+                } finally {
+                    reader.dispose();
+                }
+            }
+        } catch (IOException e) {
+            // Fall back to the encoded size
+        }
+
+        return image.length * BYTES_PER_PIXEL;
+    }
+
+
+    /**
+     * Waits until a build of the given cost fits the budget and the concurrency limit, in order of priority and
+     * arrival.
+     *
+     * @param  priority  of the build
+     * @param  cost  the estimated heap cost of the build, {@code 0} without a budget
+     *
+     * @return  the permit of the build, to be released after the build
+     *
+     * @throws  RenderRejectedException  in case the queue is full
+     * @throws  RenderException  in case the thread is interrupted while waiting
+     */
+    synchronized Permit acquire(RenderPriority priority, long cost) throws RenderException {
+
+        long granted = budget == 0 ? 0 : Math.min(cost, budget);
+        ClassStats classStats = stats.get(priority);
+
+        if (queuedBuilds() == 0 && fits(granted)) {
+            return admit(priority, granted, 0);
+        }
+
+        if (queuedBuilds() >= maxQueued) {
+            classStats.rejected++;
+
+            throw new RenderRejectedException(String.format(
+                    "The build was rejected, %d builds are already waiting", queuedBuilds()));
+        }
+
+        Deque<Object> queue = queues.get(priority);
+        Object ticket = new Object();
+        queue.addLast(ticket);
+
+        long start = System.nanoTime();
+
+        try {
+            while (next() != ticket || !fits(granted)) {
+                await();
+            }
+        } catch (InterruptedException e) {
+            leave(queue, ticket);
+            Thread.currentThread().interrupt();
+
+            throw new RenderException("Interrupted while waiting for admission.", e);
+        } catch (Deadline.Exceeded e) {
+            leave(queue, ticket);
+
+            if (!e.isInterrupted()) {
+                classStats.timedOut++;
+            }
+
+            throw e;
+        }
+
+        queue.removeFirst();
+
+        Permit permit = admit(priority, granted, System.nanoTime() - start);
+
+        // The next build in line may fit as well
+        notifyAll();
+
+        return permit;
+    }
+
+
+    private int queuedBuilds() {
+
+        return queues.values().stream().mapToInt(Deque::size).sum();
+    }
+
+
+    private boolean fits(long granted) {
+
+        return (budget == 0 || reserved + granted <= budget) && (maxRunning == 0 || running < maxRunning);
+    }
+
+
+    /**
+     * @return  the ticket of the build to admit next
+     */
+    private Object next() {
+
+        Deque<Object> interactive = queues.get(RenderPriority.INTERACTIVE);
+        Deque<Object> batch = queues.get(RenderPriority.BATCH);
+
+        if (batch.isEmpty() || (!interactive.isEmpty() && !isBatchBelowShare())) {
+            return interactive.peekFirst();
+        }
+
+        return batch.peekFirst();
+    }
+
+
+    /**
+     * @return  whether batch builds fall below their minimum share of the builds admitted, while batch builds are
+     *          waiting
+     */
+    private boolean isBatchBelowShare() {
+
+        return contendedBatchAdmitted * 100 < batchShare * contendedAdmitted; // NOSONAR
+    }
+
+
+    private Permit admit(RenderPriority priority, long granted, long waitNanos) {
+
+        if (queues.get(RenderPriority.BATCH).isEmpty()) {
+            contendedAdmitted = 0;
+            contendedBatchAdmitted = 0;
+        } else {
+            contendedAdmitted++;
+
+            if (priority == RenderPriority.BATCH) {
+                contendedBatchAdmitted++;
+            }
+        }
+
+        reserved += granted;
+        running++;
+
+        ClassStats classStats = stats.get(priority);
+        classStats.admitted++;
+        classStats.totalWaitNanos += waitNanos;
+        classStats.maxWaitNanos = Math.max(classStats.maxWaitNanos, waitNanos);
+
+        return new Permit(priority, granted, System.nanoTime() - waitNanos);
+    }
+
+
+    private void await() throws InterruptedException {
+
+        Deadline deadline = Deadline.current();
+
+        if (deadline == null) {
+            wait();
+        } else {
+            deadline.checkNow();
+            wait(Math.max(TimeUnit.NANOSECONDS.toMillis(deadline.remainingNanos()), 1));
+            deadline.checkNow();
+        }
+    }
+
+
+    private void leave(Deque<Object> queue, Object ticket) {
+
+        queue.remove(ticket);
+        notifyAll();
+    }
+
+
+    /**
+     * Releases the reservation of a completed build, recording its latency, from the time it was queued.
+     */
+    synchronized void release(Permit permit) {
+
+        reserved -= permit.reserved;
+        running--;
+
+        long latencyNanos = System.nanoTime() - permit.queuedNanos;
+        ClassStats classStats = stats.get(permit.priority);
+        classStats.completed++;
+        classStats.totalLatencyNanos += latencyNanos;
+        classStats.maxLatencyNanos = Math.max(classStats.maxLatencyNanos, latencyNanos);
+
+        notifyAll();
+    }
+
+
+    synchronized AdmissionStats stats() {
+
+        Map<RenderPriority, AdmissionStats.ClassStats> classes = new EnumMap<>(RenderPriority.class);
+
+        stats.forEach((priority, s) ->
+                classes.put(priority,
+                    new AdmissionStats.ClassStats(s.admitted, s.rejected, s.timedOut, queues.get(priority).size(),
+                        s.totalWaitNanos, s.maxWaitNanos, s.completed, s.totalLatencyNanos, s.maxLatencyNanos)));
+
+        return new AdmissionStats(classes, running, reserved, budget);
+    }
+}
@@ -0,0 +1,248 @@
+package net.contargo.print.pdf;
+
+import java.time.Duration;
+
+import java.util.Map;
+
+
+/**
+ * A snapshot of the admission control of a {@link PDFBuilder}, for monitoring, in total and per priority class.
+ *
+ * @since  0.6
+ *
+ * @see  PDFBuilder#getAdmissionStats()
+ */
+public final class AdmissionStats {
+
+    /**
+     * The statistics of the builds of one priority class.
+     */
+    public static final class ClassStats {
+
+        private final long admittedBuilds;
+        private final long rejectedBuilds;
+        private final long timedOutBuilds;
+        private final int queuedBuilds;
+        private final long totalQueueWaitNanos;
+        private final long maxQueueWaitNanos;
+        private final long completedBuilds;
+        private final long totalLatencyNanos;
+        private final long maxLatencyNanos;
+
+        ClassStats(long admittedBuilds, long rejectedBuilds, long timedOutBuilds, int queuedBuilds,
+            long totalQueueWaitNanos, long maxQueueWaitNanos, long completedBuilds, long totalLatencyNanos,
+            long maxLatencyNanos) {
+
+            this.admittedBuilds = admittedBuilds;
+            this.rejectedBuilds = rejectedBuilds;
+            this.timedOutBuilds = timedOutBuilds;
+            this.queuedBuilds = queuedBuilds;
+            this.totalQueueWaitNanos = totalQueueWaitNanos;
+            this.maxQueueWaitNanos = maxQueueWaitNanos;
+            this.completedBuilds = completedBuilds;
+            this.totalLatencyNanos = totalLatencyNanos;
+            this.maxLatencyNanos = maxLatencyNanos;
+        }
+
+        /**
+         * @return  the number of builds started so far
+         */
+        public long getAdmittedBuilds() {
+
+            return admittedBuilds;
+        }
+
+
+        /**
+         * @return  the number of builds rejected so far, because the queue was full
+         */
+        public long getRejectedBuilds() {
+
+            return rejectedBuilds;
+        }
+
+
+        /**
+         * @return  the number of builds whose deadline passed while waiting in the queue so far
+         */
+        public long getTimedOutBuilds() {
+
+            return timedOutBuilds;
+        }
+
+
+        /**
+         * @return  the number of builds currently waiting
+         */
+        public int getQueuedBuilds() {
+
+            return queuedBuilds;
+        }
+
+
+        /**
+         * @return  the sum of the time admitted builds waited in the queue
+         */
+        public Duration getTotalQueueWait() {
+
+            return Duration.ofNanos(totalQueueWaitNanos);
+        }
+
+
+        /**
+         * @return  the longest time an admitted build waited in the queue
+         */
+        public Duration getMaxQueueWait() {
+
+            return Duration.ofNanos(maxQueueWaitNanos);
+        }
+
+
+        /**
+         * @return  the number of builds completed so far, successfully or not
+         */
+        public long getCompletedBuilds() {
+
+            return completedBuilds;
+        }
+
+
+        /**
+         * @return  the average time of completed builds, from being queued until completion
+         */
+        public Duration getAverageLatency() {
+
+            return Duration.ofNanos(completedBuilds == 0 ? 0 : totalLatencyNanos / completedBuilds);
+        }
+
+
+        /**
+         * @return  the longest time of a completed build, from being queued until completion
+         */
+        public Duration getMaxLatency() {
+
+            return Duration.ofNanos(maxLatencyNanos);
+        }
+
+
+        @Override
+        public String toString() {
+
+            return String.format("admitted=%d, rejected=%d, timed out=%d, queued=%d, max wait=%s, completed=%d, "
+                    + "average latency=%s, max latency=%s", admittedBuilds, rejectedBuilds, timedOutBuilds,
+                    queuedBuilds, getMaxQueueWait(), completedBuilds, getAverageLatency(), getMaxLatency());
+        }
+    }
+
+    private final Map<RenderPriority, ClassStats> classes;
+    private final int runningBuilds;
+    private final long reservedBytes;
+    private final long budgetBytes;
+
+    AdmissionStats(Map<RenderPriority, ClassStats> classes, int runningBuilds, long reservedBytes, long budgetBytes) {
+
+        this.classes = classes;
+        this.runningBuilds = runningBuilds;
+        this.reservedBytes = reservedBytes;
+        this.budgetBytes = budgetBytes;
+    }
+
+    /**
+     * @param  priority  class of the builds, never {@code null}
+     *
+     * @return  the statistics of the builds of the given priority class
+     */
+    public ClassStats getStats(RenderPriority priority) {
+
+        return classes.get(priority);
+    }
+
+
+    /**
+     * @return  the number of builds started so far
+     */
+    public long getAdmittedBuilds() {
+
+        return classes.values().stream().mapToLong(ClassStats::getAdmittedBuilds).sum();
+    }
+
+
+    /**
+     * @return  the number of builds rejected so far, because the queue was full
+     */
+    public long getRejectedBuilds() {
+
+        return classes.values().stream().mapToLong(ClassStats::getRejectedBuilds).sum();
+    }
+
+
+    /**
+     * @return  the number of builds whose deadline passed while waiting in the queue so far
+     */
+    public long getTimedOutBuilds() {
+
+        return classes.values().stream().mapToLong(ClassStats::getTimedOutBuilds).sum();
+    }
+
+
+    /**
+     * @return  the number of builds currently waiting
+     */
+    public int getQueuedBuilds() {
+
+        return classes.values().stream().mapToInt(ClassStats::getQueuedBuilds).sum();
+    }
+
+
+    /**
+     * @return  the number of builds currently running
+     */
+    public int getRunningBuilds() {
+
+        return runningBuilds;
+    }
+
+
+    /**
+     * @return  the estimated heap cost of the builds currently running
+     */
+    public long getReservedBytes() {
+
+        return reservedBytes;
+    }
+
+
+    /**
+     * @return  the configured memory budget, or {@code 0} if none
+     */
+    public long getBudgetBytes() {
+
+        return budgetBytes;
+    }
+
+
+    /**
+     * @return  the sum of the time admitted builds waited in the queue
+     */
+    public Duration getTotalQueueWait() {
+
+        return Duration.ofNanos(classes.values().stream().mapToLong(c -> c.totalQueueWaitNanos).sum());
+    }
+
+
+    /**
+     * @return  the longest time an admitted build waited in the queue
+     */
+    public Duration getMaxQueueWait() {
+
+        return Duration.ofNanos(classes.values().stream().mapToLong(c -> c.maxQueueWaitNanos).max().orElse(0));
+    }
+
+
+    @Override
+    public String toString() {
+
+        return String.format("AdmissionStats[running=%d, reserved=%d of %d bytes, %s]", runningBuilds, reservedBytes,
+                budgetBytes, classes);
+    }
+}
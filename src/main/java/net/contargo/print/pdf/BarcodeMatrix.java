@@ -0,0 +1,83 @@
+package net.contargo.print.pdf;
+
+import java.util.BitSet;
+
+
+/**
+ * An encoded barcode, as a matrix of dark and light modules, without any quiet zone.
+ *
+ * <p>Linear barcodes, like Code 128, are a matrix of a single row. A matrix is immutable, so that it can be cached and
+ * shared by concurrent builds.</p>
+ *
+ * @since  0.6
+ */
+public final class BarcodeMatrix {
+
+    private final int width;
+    private final int height;
+    private final BitSet modules;
+
+    /**
+     * Creates a new matrix from the given rows of modules.
+     *
+     * @param  rows  of modules, from top to bottom, where {@code true} is a dark module, all of the same length
+     */
+    public BarcodeMatrix(boolean[][] rows) {
+
+        if (rows.length == 0 || rows[0].length == 0) {
+            throw new IllegalArgumentException("The barcode matrix must not be empty");
+        }
+
+        this.height = rows.length;
+        this.width = rows[0].length;
+        this.modules = new BitSet(width * height);
+
+        for (int row = 0; row < height; row++) {
+            if (rows[row].length != width) {
+                throw new IllegalArgumentException("All rows of the barcode matrix must have the same length");
+            }
+
+            for (int column = 0; column < width; column++) {
+                modules.set(row * width + column, rows[row][column]);
+            }
+        }
+    }
+
+    /**
+     * @return  the number of modules per row
+     */
+    public int getWidth() {
+
+        return width;
+    }
+
+
+    /**
+     * @return  the number of rows
+     */
+    public int getHeight() {
+
+        return height;
+    }
+
+
+    /**
+     * @param  column  of the module, from the left
+     * @param  row  of the module, from the top
+     *
+     * @return  {@code true} if the module is dark, otherwise {@code false}
+     */
+    public boolean isSet(int column, int row) {
+
+        return modules.get(row * width + column);
+    }
+
+
+    /**
+     * @return  {@code true} if both rows have the same modules, otherwise {@code false}
+     */
+    boolean isSameRow(int row, int other) {
+
+        return modules.get(row * width, (row + 1) * width).equals(modules.get(other * width, (other + 1) * width));
+    }
+}
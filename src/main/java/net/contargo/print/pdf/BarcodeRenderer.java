@@ -0,0 +1,24 @@
+package net.contargo.print.pdf;
+
+/**
+ * Provides barcode encoding capabilities, for the symbologies of {@link BarcodeSpec}.
+ *
+ * <p>A barcode renderer only encodes the content, drawing is done by the {@link PDFRenderer}.</p>
+ *
+ * @since  0.6
+ */
+public interface BarcodeRenderer {
+
+    /**
+     * Encodes the given code with the given symbology.
+     *
+     * @param  symbology  to encode with
+     * @param  code  to encode
+     *
+     * @return  the encoded barcode, without quiet zone
+     *
+     * @throws  RenderException  in case the code cannot be encoded, for example because it contains characters that
+     *                           are not supported by the symbology
+     */
+    BarcodeMatrix render(BarcodeSpec.Symbology symbology, String code) throws RenderException;
+}
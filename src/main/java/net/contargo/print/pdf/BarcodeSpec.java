@@ -0,0 +1,178 @@
+package net.contargo.print.pdf;
+
+/**
+ * Describing a barcode to render, as an alternative to {@link QRSpec} for other symbologies.
+ *
+ * <p>Barcodes are encoded into a matrix of modules by a {@link BarcodeRenderer}, and drawn as vector graphics: filled
+ * rectangles for the bars and modules, instead of an embedded raster image. They are therefore sharp at any print
+ * resolution, and cheap to embed.</p>
+ *
+ * <pre><code>
+        BarcodeSpec spec = BarcodeSpec.code128("MSKU1234565")
+                                      .withPosition(42, 7)
+                                      .withSize(180, 40);
+   </code></pre>
+ *
+ * <p>Positioning works as for QR-codes, <strong>from the lower left corner</strong> of the page, with negative
+ * positions as an offset from the opposite side. The symbol is scaled to fill the given size exactly, the size
+ * should therefore keep the aspect ratio of the symbology, for example square for Data Matrix.</p>
+ *
+ * @since  0.6
+ */
+public final class BarcodeSpec {
+
+    /**
+     * The supported barcode symbologies.
+     */
+    public enum Symbology {
+
+        /**
+         * The linear Code 128, for example for container numbers.
+         */
+        CODE_128,
+
+        /**
+         * The two-dimensional Data Matrix, for compact labels.
+         */
+        DATA_MATRIX,
+
+        /**
+         * The stacked PDF417, for larger content.
+         */
+        PDF_417
+    }
+
+    private final Symbology symbology;
+    private final String code;
+
+    private int x;
+    private int y;
+    private int width;
+    private int height;
+
+    private BarcodeSpec(Symbology symbology, String code, int width, int height) {
+
+        this.symbology = symbology;
+        this.code = code;
+        this.x = 0;
+        this.y = 0;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Creates a new default Code 128 specification with the given code.
+     *
+     * @param  code  for the barcode
+     *
+     * @return  this specification for chaining
+     */
+    public static BarcodeSpec code128(String code) {
+
+        return new BarcodeSpec(Symbology.CODE_128, code, 180, 40); // NOSONAR
+    }
+
+
+    /**
+     * Creates a new default Data Matrix specification with the given code.
+     *
+     * @param  code  for the barcode
+     *
+     * @return  this specification for chaining
+     */
+    public static BarcodeSpec dataMatrix(String code) {
+
+        return new BarcodeSpec(Symbology.DATA_MATRIX, code, 60, 60); // NOSONAR
+    }
+
+
+    /**
+     * Creates a new default PDF417 specification with the given code.
+     *
+     * @param  code  for the barcode
+     *
+     * @return  this specification for chaining
+     */
+    public static BarcodeSpec pdf417(String code) {
+
+        return new BarcodeSpec(Symbology.PDF_417, code, 200, 60); // NOSONAR
+    }
+
+
+    PDFBarcode render(BarcodeRenderer renderer) throws RenderException {
+
+        BarcodeMatrix matrix = renderer.render(symbology, code);
+
+        return new PDFBarcode(matrix, x, y, width, height);
+    }
+
+
+    void addTo(BuildKey key) {
+
+        key.add(symbology.name()).add(code).add(x).add(y).add(width).add(height);
+    }
+
+
+    /**
+     * Set the x position for this specification, as an offset from the page left edge.
+     *
+     * @param  x  position offset, from the left side of the page
+     *
+     * @return  this specification for chaining
+     */
+    public BarcodeSpec withPositionX(int x) {
+
+        this.x = x;
+
+        return this;
+    }
+
+
+    /**
+     * Set the y position for this specification, as an offset from the page bottom.
+     *
+     * @param  y  position offset, from the bottom of the page
+     *
+     * @return  this specification for chaining
+     */
+    public BarcodeSpec withPositionY(int y) {
+
+        this.y = y;
+
+        return this;
+    }
+
+
+    /**
+     * Set the x and y position of this specification, as an offset coordinate from the page bottom left corner.
+     *
+     * @param  x  position offset, from the left edge of the page
+     * @param  y  position offset, from the bottom of the page
+     *
+     * @return  this specification for chaining
+     */
+    public BarcodeSpec withPosition(int x, int y) {
+
+        this.x = x;
+        this.y = y;
+
+        return this;
+    }
+
+
+    /**
+     * Set the size of this specification, that the symbol is scaled to.
+     *
+     * @param  width  to set
+     * @param  height  to set
+     *
+     * @return  this specification for chaining
+     */
+    public BarcodeSpec withSize(int width, int height) {
+
+        this.width = width;
+        this.height = height;
+
+        return this;
+    }
+}
@@ -0,0 +1,68 @@
+package net.contargo.print.pdf;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import java.security.MessageDigest;
+
+
+/**
+ * A stable hash of all inputs of a build, identifying documents with the same content.
+ *
+ * <p>Every value is added with a type tag, and variable length values with their length, so that different sequences
+ * of inputs never produce the same input to the hash.</p>
+ *
+ * @since  0.6
+ */
+final class BuildKey {
+
+    private final MessageDigest digest = ContentHash.newDigest();
+
+    BuildKey add(String value) {
+
+        if (value == null) {
+            digest.update((byte) 'N');
+        } else {
+            digest.update((byte) 'S');
+            add(value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        return this;
+    }
+
+
+    BuildKey add(byte[] value) {
+
+        digest.update((byte) 'B');
+        digest.update(ByteBuffer.allocate(Integer.BYTES).putInt(value.length).array());
+        digest.update(value);
+
+        return this;
+    }
+
+
+    BuildKey add(int value) {
+
+        digest.update((byte) 'I');
+        digest.update(ByteBuffer.allocate(Integer.BYTES).putInt(value).array());
+
+        return this;
+    }
+
+
+    BuildKey add(boolean value) {
+
+        digest.update((byte) (value ? 'T' : 'F'));
+
+        return this;
+    }
+
+
+    /**
+     * @return  the key as lowercase hex string, after which no more values can be added
+     */
+    String toHex() {
+
+        return ContentHash.toHex(digest.digest());
+    }
+}
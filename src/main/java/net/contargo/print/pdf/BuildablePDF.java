@@ -1,7 +1,11 @@
 package net.contargo.print.pdf;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -11,8 +15,11 @@ import java.util.List;
 import java.util.Map;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
+import org.apache.pdfbox.io.IOUtils;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -71,30 +78,189 @@ public final class BuildablePDF {
         BOTTOM
     }
 
+    /**
+     * The source of the template, rendering the template document with the given builder.
+     */
+    @FunctionalInterface
+    interface Template {
+
+        byte[] render(PDFBuilder builder) throws RenderException;
+
+
+        /**
+         * @return  the size of the template source, if rendering compiles it, or {@code -1} if the template is
+         *          already compiled
+         */
+        default long getSourceSize() {
+
+            return -1;
+        }
+
+
+        /**
+         * Adds the source of the template to the given key, if rendering compiles it, so that a build can be looked
+         * up before compiling. Compiling is not stable, it writes a new document ID if the source has none.
+         *
+         * @param  key  of a build
+         *
+         * @return  whether the source was added, {@code false} if the template is already compiled, and is to be
+         *          added itself
+         *
+         * @throws  RenderException  in case reading the source fails
+         */
+        default boolean addSourceTo(BuildKey key) throws RenderException {
+
+            return false;
+        }
+    }
+
+    /**
+     * A template file, compiled for every build.
+     */
+    private static final class PathTemplate implements Template {
+
+        private final Path path;
+
+        private PathTemplate(Path path) {
+
+            this.path = path;
+        }
+
+        @Override
+        public byte[] render(PDFBuilder builder) throws RenderException {
+
+            return builder.renderFromTemplate(path);
+        }
+
+
+        @Override
+        public long getSourceSize() {
+
+            try {
+                return path == null ? -1 : Files.size(path);
+            } catch (IOException e) {
+                return -1; // Fails to compile
+            }
+        }
+
+
+        @Override
+        public boolean addSourceTo(BuildKey key) throws RenderException {
+
+            try(InputStream in = Files.newInputStream(path)) {
+                key.add(ContentHash.sha256(in));
+            } catch (IOException e) {
+                throw new RenderException("Loading the template failed.", e);
+            }
+
+            return true;
+        }
+    }
+
+    /**
+     * A template stream, read once and compiled from the bytes read.
+     */
+    private static final class StreamTemplate implements Template {
+
+        private final InputStream stream;
+        private byte[] source;
+
+        private StreamTemplate(InputStream stream) {
+
+            this.stream = stream;
+        }
+
+        @Override
+        public byte[] render(PDFBuilder builder) throws RenderException {
+
+            return builder.renderFromTemplate(stream == null ? null : new ByteArrayInputStream(readSource()));
+        }
+
+
+        @Override
+        public long getSourceSize() {
+
+            if (source != null) {
+                return source.length;
+            }
+
+            try {
+                return stream == null ? -1 : stream.available();
+            } catch (IOException e) {
+                return -1; // Fails to compile
+            }
+        }
+
+
+        @Override
+        public boolean addSourceTo(BuildKey key) throws RenderException {
+
+            // Hashed like a template file, so that both find the same builds
+            key.add(ContentHash.sha256(readSource()));
+
+            return true;
+        }
+
+
+        private byte[] readSource() throws RenderException {
+
+            // A stream can only be consumed once
+            if (source == null) {
+                try {
+                    source = IOUtils.toByteArray(stream);
+                } catch (IOException e) {
+                    throw new RenderException("Loading the template failed.", e);
+                }
+            }
+
+            return source;
+        }
+    }
+
+    /**
+     * A render stage of the build, a full round-trip of the document.
+     */
+    @FunctionalInterface
+    private interface Stage {
+
+        byte[] render(byte[] pdf) throws RenderException;
+    }
+
     private final PDFBuilder builder;
-    private Path templateAsPath;
-    private InputStream templateAsStream;
-    private final Map<String, String> replacements;
+    private final Template template;
+    private final Replacements replacements;
     private final List<QRSpec> qrCodes;
+    private final List<BarcodeSpec> barcodes;
     private final List<PDFImage> images;
+    private boolean strictPlaceholders;
+    private OptimizeSpec outputOptimization;
+    private boolean linearizedOutput;
+    private boolean reproducibleOutput;
+    private Duration timeout;
+    private RenderPriority priority;
+    private byte[] renderedTemplate;
 
     BuildablePDF(Path template, PDFBuilder builder) {
 
-        this.builder = builder;
-        this.templateAsPath = template;
-        this.replacements = new HashMap<>();
-        this.qrCodes = new ArrayList<>();
-        this.images = new ArrayList<>();
+        this(new PathTemplate(template), builder);
     }
 
 
     BuildablePDF(InputStream template, PDFBuilder builder) {
 
+        this(new StreamTemplate(template), builder);
+    }
+
+
+    BuildablePDF(Template template, PDFBuilder builder) {
+
         this.builder = builder;
-        this.templateAsStream = template;
-        this.replacements = new HashMap<>();
+        this.template = template;
+        this.replacements = new Replacements();
         this.qrCodes = new ArrayList<>();
+        this.barcodes = new ArrayList<>();
         this.images = new ArrayList<>();
+        this.priority = RenderPriority.INTERACTIVE;
     }
 
     /**
@@ -103,19 +269,320 @@ public final class BuildablePDF {
      * @return  the built PDF document
      *
      * @throws  RenderException  in case rendering fails, describing the originating cause of failure
+     * @throws  RenderTimeoutException  in case a deadline is set, and the build does not complete before it
+     * @throws  RenderRejectedException  in case the builder limits its builds, and too many builds are waiting
      */
     public PDFDocument build() throws RenderException {
 
-        byte[] pdf;
+        if (timeout == null) {
+            return renderDocument();
+        }
+
+        Deadline deadline = Deadline.start(timeout);
+
+        try {
+            return renderDocument();
+        } catch (Deadline.Exceeded e) {
+            if (e.isInterrupted()) {
+                throw new RenderException("Interrupted while rendering.", e);
+            }
+
+            throw new RenderTimeoutException(String.format("The build did not complete within %d ms",
+                    timeout.toMillis()));
+        } finally {
+            deadline.end();
+        }
+    }
+
 
-        pdf = templateAsPath != null ? builder.renderFromTemplate(templateAsPath)
-                                     : builder.renderFromTemplate(templateAsStream);
+    /**
+     * Renders the document, unless cached or already in flight, once the build is admitted by the memory budget.
+     * Cached and in-flight builds are found before the template is compiled.
+     */
+    private PDFDocument renderDocument() throws RenderException {
 
-        pdf = builder.renderSearchAndReplaceText(pdf, replacements);
-        pdf = builder.renderQRCodes(pdf, qrCodes);
-        pdf = builder.renderImages(pdf, images);
+        boolean keyed = builder.isResultCached() || builder.isCoalescing();
+        String key = keyed && replacements.isResolved() ? buildKey() : null;
+        byte[] cached = key != null && builder.isResultCached() ? builder.getCachedResult(key) : null;
 
-        return new PDFDocument(pdf);
+        if (cached != null) {
+            return builder.createDocument(cached);
+        }
+
+        if (key != null && builder.isCoalescing()) {
+            return builder.createDocument(builder.coalesce(key, () -> renderAdmitted(key)));
+        }
+
+        return builder.createDocument(renderAdmitted(key));
+    }
+
+
+    private byte[] renderAdmitted(String key) throws RenderException {
+
+        // Compiling loads and saves the whole template, so admit the build before, estimated by the template source
+        long sourceSize = renderedTemplate == null && builder.isAdmissionControlled() ? template.getSourceSize() : -1;
+        AdmissionControl.Permit permit = sourceSize >= 0
+            ? builder.admitBuild(priority, sourceSize, qrCodes, images) : null;
+
+        try {
+            byte[] pdf = renderTemplate();
+
+            if (permit == null) {
+                permit = builder.admitBuild(priority, pdf, qrCodes, images);
+            }
+
+            return renderStages(pdf, key);
+        } finally {
+            builder.releaseBuild(permit);
+        }
+    }
+
+
+    private byte[] renderStages(byte[] template, String key) throws RenderException {
+
+        byte[] pdf = template;
+
+        if (strictPlaceholders) {
+            assertPlaceholdersPresent(pdf);
+        }
+
+        pdf = renderStage(true, pdf, p -> builder.renderSearchAndReplaceText(p, replacements));
+
+        // Each stage is a full document round-trip, skip the ones without any work
+        pdf = renderStage(!qrCodes.isEmpty(), pdf, p -> builder.renderQRCodes(p, qrCodes));
+        pdf = renderStage(!barcodes.isEmpty(), pdf, p -> builder.renderBarcodes(p, barcodes));
+        pdf = renderStage(!images.isEmpty(), pdf, p -> builder.renderImages(p, images));
+        pdf = renderStage(outputOptimization != null, pdf, p -> builder.optimize(p, outputOptimization));
+
+        // Before linearizing, which keeps the document ID
+        pdf = renderStage(reproducibleOutput, pdf, builder::makeReproducible);
+        pdf = renderStage(linearizedOutput, pdf, builder::linearize);
+
+        if (key != null && builder.isResultCached()) {
+            builder.cacheResult(key, pdf);
+        }
+
+        return pdf;
+    }
+
+
+    /**
+     * Renders the given stage, if enabled, after checking the deadline of the build.
+     */
+    private static byte[] renderStage(boolean enabled, byte[] pdf, Stage stage) throws RenderException {
+
+        if (!enabled) {
+            return pdf;
+        }
+
+        Deadline.check();
+
+        return stage.render(pdf);
+    }
+
+
+    /**
+     * Computes the key of the result cache, from the template and everything that is rendered into it. Templates
+     * compiled for every build are identified by their source and the template options, others by their compiled
+     * content.
+     */
+    private String buildKey() throws RenderException {
+
+        BuildKey key = new BuildKey();
+        builder.addRenderersTo(key);
+
+        if (template.addSourceTo(key)) {
+            key.add(builder.getTemplateOptions());
+        } else {
+            key.add(renderTemplate());
+        }
+
+        key.add(strictPlaceholders).add(linearizedOutput).add(reproducibleOutput);
+
+        replacements.addTo(key);
+
+        key.add(qrCodes.size());
+        qrCodes.forEach(spec -> spec.addTo(key));
+
+        key.add(barcodes.size());
+        barcodes.forEach(spec -> spec.addTo(key));
+
+        key.add(images.size());
+        images.forEach(image -> image.addTo(key));
+
+        key.add(outputOptimization != null);
+
+        if (outputOptimization != null) {
+            outputOptimization.addTo(key);
+        }
+
+        return key.toHex();
+    }
+
+
+    /**
+     * Inspects the template of this builder, to find the placeholders and fonts it contains. The template is loaded
+     * only once, also if this builder is built afterwards.
+     *
+     * @return  the inspection result
+     *
+     * @throws  RenderException  in case the template cannot be parsed
+     *
+     * @since  0.6
+     */
+    public TemplateInspection inspect() throws RenderException {
+
+        return builder.inspect(renderTemplate());
+    }
+
+
+    private byte[] renderTemplate() throws RenderException {
+
+        // Render once, since a template stream can only be consumed once
+        if (renderedTemplate == null) {
+            renderedTemplate = template.render(builder);
+        }
+
+        return renderedTemplate;
+    }
+
+
+    private void assertPlaceholdersPresent(byte[] pdf) throws RenderException {
+
+        TemplateInspection inspection = builder.inspect(pdf);
+
+        List<String> missing = replacements.keySet()
+                .stream()
+                .filter(search -> !inspection.contains(search))
+                .sorted()
+                .collect(Collectors.toList());
+
+        if (!missing.isEmpty()) {
+            throw new RenderException(String.format("The template does not contain the search values %s", missing));
+        }
+    }
+
+
+    /**
+     * Enables the strict mode, where building fails fast, before any rendering, if a search value of this builder is
+     * not found in the template. Without strict mode such values are silently ignored.
+     *
+     * @return  this builder for chaining
+     *
+     * @since  0.6
+     *
+     * @see  TemplateInspection#contains(String)
+     */
+    public BuildablePDF withStrictPlaceholders() {
+
+        this.strictPlaceholders = true;
+
+        return this;
+    }
+
+
+    /**
+     * Optimizes the built PDF, as a final pass over the document. Optimizing the template instead, with
+     * {@link PDFBuilder.Config#withTemplateOptimization(OptimizeSpec)}, is cheaper, as it is done only once.
+     *
+     * @param  spec  of the optimization, never {@code null}
+     *
+     * @return  this builder for chaining
+     *
+     * @since  0.6
+     */
+    public BuildablePDF withOptimizedOutput(OptimizeSpec spec) {
+
+        ASSERT_NOT_NULL.accept("optimization", spec);
+
+        this.outputOptimization = spec;
+
+        return this;
+    }
+
+
+    /**
+     * Writes the built PDF linearized ("fast web view"), so that viewers, like browsers loading it over the network,
+     * can display the first page before the whole document is received. This adds a final pass over the document.
+     *
+     * @return  this builder for chaining
+     *
+     * @since  0.6
+     */
+    public BuildablePDF withLinearizedOutput() {
+
+        this.linearizedOutput = true;
+
+        return this;
+    }
+
+
+    /**
+     * Writes the built PDF reproducibly, so that building the same template with the same values always results in
+     * the same bytes, for example to use a hash of the document as HTTP ETag, or to store it deduplicated. The
+     * creation and modification dates are removed, and the document ID is derived from the content, instead of the
+     * time of the build. This adds a final pass over the document.
+     *
+     * @return  this builder for chaining
+     *
+     * @since  0.6
+     */
+    public BuildablePDF withReproducibleOutput() {
+
+        this.reproducibleOutput = true;
+
+        return this;
+    }
+
+
+    /**
+     * Sets a deadline for building, so that a malformed or very large template cannot block the calling thread for
+     * long. The deadline is checked between the render stages, pages and content stream tokens, and building fails
+     * with a {@link RenderTimeoutException}, once it has passed. Building also fails, if the calling thread is
+     * interrupted.
+     *
+     * <p>Checks are cooperative, a single long running operation, like parsing the template, is completed before the
+     * deadline is checked again.</p>
+     *
+     * @param  timeout  the time to complete the build in, starting when {@link #build()} is called, must be positive
+     *
+     * @return  this builder for chaining
+     *
+     * @since  0.6
+     */
+    public BuildablePDF withDeadline(Duration timeout) {
+
+        ASSERT_NOT_NULL.accept("timeout", timeout);
+
+        if (timeout.isNegative() || timeout.isZero()) {
+            throw new IllegalArgumentException("The timeout must be positive");
+        }
+
+        this.timeout = timeout;
+
+        return this;
+    }
+
+
+    /**
+     * Sets the priority class of this build. If the builder limits its concurrent builds, waiting interactive builds
+     * are started before waiting batch builds. Defaults to {@link RenderPriority#INTERACTIVE}.
+     *
+     * @param  priority  of the build, never {@code null}
+     *
+     * @return  this builder for chaining
+     *
+     * @since  0.6
+     *
+     * @see  PDFBuilder.Config#withMaxConcurrentBuilds(int)
+     */
+    public BuildablePDF withPriority(RenderPriority priority) {
+
+        ASSERT_NOT_NULL.accept("priority", priority);
+
+        this.priority = priority;
+
+        return this;
     }
 
 
@@ -154,6 +621,51 @@ public final class BuildablePDF {
     }
 
 
+    /**
+     * Add a search-replace pair to this builder, where the replace value is computed only if the search value is
+     * found in the document.
+     *
+     * <p>Use this for values that are expensive to compute, and not used by every template. The supplier is called at
+     * most once, the value is reused for all further occurrences.</p>
+     *
+     * @param  search  string to search for
+     * @param  replace  supplier of the string to replace with
+     *
+     * @return  this builder for chaining
+     *
+     * @since  0.6
+     */
+    public BuildablePDF withLazyReplacement(String search, Supplier<String> replace) {
+
+        ASSERT_VALID_SEARCH_VALUE.accept(search);
+        ASSERT_NOT_NULL.accept("replace supplier", replace);
+
+        this.replacements.putLazy(search, replace);
+
+        return this;
+    }
+
+
+    /**
+     * Adds a map of search-replace pairs to this builder, where each replace value is computed only if its search
+     * value is found in the document.
+     *
+     * @param  replacements  map of search strings, and suppliers of the strings to replace with
+     *
+     * @return  this builder for chaining
+     *
+     * @since  0.6
+     *
+     * @see  #withLazyReplacement(String, Supplier)
+     */
+    public BuildablePDF withLazyReplacements(Map<String, Supplier<String>> replacements) {
+
+        replacements.forEach(this::withLazyReplacement);
+
+        return this;
+    }
+
+
     /**
      * Add a QR code specification to this builder.
      *
@@ -167,6 +679,23 @@ public final class BuildablePDF {
 
         return this;
     }
+
+
+    /**
+     * Add a barcode specification to this builder, for a barcode drawn as vector graphics.
+     *
+     * @param  barcodeSpec  describing the barcode to add
+     *
+     * @return  this builder for chaining
+     *
+     * @since  0.6
+     */
+    public BuildablePDF withBarcode(BarcodeSpec barcodeSpec) {
+
+        this.barcodes.add(barcodeSpec);
+
+        return this;
+    }
     
     /**
      * Add a Image to this builder.
@@ -242,6 +771,75 @@ public final class BuildablePDF {
     }
 
 
+    /**
+     * Adds a multi-line text to this builder by replacing the given placeholders with split text, start filling from
+     * top, where lines are broken by the width of the text set in the font and size of the placeholder.
+     *
+     * @param  text  string to replace with
+     * @param  maxLineWidth  the width available for each line, in unscaled text space units (points, unless the
+     *                       template scales its text)
+     * @param  placeholders  string(s) to search for
+     *
+     * @return  this builder for chaining
+     *
+     * @since  0.6
+     *
+     * @see  #withFittedMultiLineReplacement(String, float, MultiLineTextFillMode, String...)
+     */
+    public BuildablePDF withFittedMultiLineReplacement(String text, float maxLineWidth, String... placeholders) {
+
+        return withFittedMultiLineReplacement(text, maxLineWidth, MultiLineTextFillMode.TOP, placeholders);
+    }
+
+
+    /**
+     * Adds a multi-line text to this builder by replacing the given placeholders with split text, where lines are
+     * broken by the width of the text set in the font and size of the placeholder.
+     *
+     * <p>Unlike {@link #withMultiLineReplacement(String, int, MultiLineTextFillMode, String...)} the layout is done
+     * during rendering, when the font of the placeholders is known. The font and size of the first placeholder found
+     * in the document is used for all lines. Building fails with a {@link RenderException}, if the text does not fit
+     * the lines.</p>
+     *
+     * @param  text  string to replace with
+     * @param  maxLineWidth  the width available for each line, in unscaled text space units (points, unless the
+     *                       template scales its text)
+     * @param  fillFrom  describes if the placeholders are filled from top to bottom or from bottom to top
+     * @param  placeholders  string(s) to search for
+     *
+     * @return  this builder for chaining
+     *
+     * @since  0.6
+     */
+    public BuildablePDF withFittedMultiLineReplacement(String text, float maxLineWidth,
+        MultiLineTextFillMode fillFrom, String... placeholders) {
+
+        ASSERT_NOT_NULL.accept("placeholders", placeholders);
+
+        if (!(maxLineWidth > 0)) {
+            throw new IllegalArgumentException("Invalid maximum line width: " + maxLineWidth);
+        }
+
+        if (placeholders.length < 2) {
+            throw new IllegalArgumentException("At least two placeholders must be provided, but was: "
+                + placeholders.length);
+        }
+
+        for (String placeholder : placeholders) {
+            ASSERT_VALID_SEARCH_VALUE.accept(placeholder);
+        }
+
+        TextLayout layout = new TextLayout(text == null ? "" : text, maxLineWidth, placeholders.length, fillFrom);
+
+        for (int i = 0; i < placeholders.length; i++) {
+            int line = i;
+            this.replacements.putMeasured(placeholders[i], measure -> layout.line(line, measure));
+        }
+
+        return this;
+    }
+
+
     private void assertCorrectMultiLineReplacementParameters(int numberOfCharacters, int maxCharactersPerLine,
         int numberOfPlaceholders) {
 
@@ -276,6 +874,7 @@ public final class BuildablePDF {
         // Fill replacement values
         int wordCounter = 0;
         boolean allWordsCompleted = false;
+        StringBuilder line = new StringBuilder(maxCharactersPerLine + 1);
 
         for (int i = 0; i < replace.length; i++) {
             // If all words of the text has already been used, the replacement value will be empty
@@ -283,9 +882,11 @@ public final class BuildablePDF {
                 break;
             }
 
+            line.setLength(0);
+
             // Fill the replacement value with all the words that fit in
-            while (replace[i].length() + words[wordCounter].length() <= maxCharactersPerLine) {
-                replace[i] = replace[i].concat(words[wordCounter]).concat(WHITESPACE);
+            while (line.length() + words[wordCounter].length() <= maxCharactersPerLine) {
+                line.append(words[wordCounter]).append(WHITESPACE);
 
                 // Stop the process if there are no words left
                 if (wordCounter == words.length - 1) {
@@ -298,9 +899,11 @@ public final class BuildablePDF {
             }
 
             // Each replacement value represents a line, no need to have a whitespace at the end
-            if (replace[i].endsWith(WHITESPACE)) {
-                replace[i] = replace[i].substring(0, replace[i].length() - 1);
+            if (line.length() > 0 && line.charAt(line.length() - 1) == WHITESPACE.charAt(0)) {
+                line.setLength(line.length() - 1);
             }
+
+            replace[i] = line.toString();
         }
 
         if (!allWordsCompleted) {
@@ -0,0 +1,36 @@
+package net.contargo.print.pdf;
+
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * A barcode renderer that caches the matrices of a delegate renderer, so that recurring codes are encoded only once.
+ *
+ * @since  0.6
+ */
+final class CachingBarcodeRenderer implements BarcodeRenderer {
+
+    private final BarcodeRenderer delegate;
+    private final RenderCache<List<Object>, BarcodeMatrix> cache;
+
+    CachingBarcodeRenderer(BarcodeRenderer delegate, int maxEntries) {
+
+        this.delegate = delegate;
+        this.cache = new RenderCache<>(maxEntries);
+    }
+
+    @Override
+    public BarcodeMatrix render(BarcodeSpec.Symbology symbology, String code) throws RenderException {
+
+        List<Object> key = Arrays.asList(symbology, code);
+        BarcodeMatrix matrix = cache.get(key);
+
+        if (matrix == null) {
+            matrix = delegate.render(symbology, code);
+            cache.put(key, matrix);
+        }
+
+        return matrix;
+    }
+}
@@ -0,0 +1,60 @@
+package net.contargo.print.pdf;
+
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * A QR-code renderer that caches the images of a delegate renderer, so that recurring codes are rendered only once.
+ *
+ * @since  0.6
+ */
+final class CachingQRCodeRenderer implements QRCodeRenderer {
+
+    private final QRCodeRenderer delegate;
+    private final RenderCache<List<Object>, byte[]> cache;
+
+    CachingQRCodeRenderer(QRCodeRenderer delegate, int maxEntries) {
+
+        this.delegate = delegate;
+        this.cache = new RenderCache<>(maxEntries);
+    }
+
+    /**
+     * Returns the cached image, shared by all callers and must therefore not be modified.
+     */
+    @Override
+    public byte[] render(String code, int size, int level, boolean margin) throws RenderException {
+
+        List<Object> key = Arrays.asList(code, size, level, margin);
+        byte[] image = cache.get(key);
+
+        if (image == null) {
+            // Concurrent first requests may render twice, which is cheaper than blocking on each other
+            image = delegate.render(code, size, level, margin);
+            cache.put(key, image);
+        }
+
+        return image;
+    }
+
+
+    @Override
+    public byte[] render(String code, int size, int level, boolean margin, boolean boostErrorCorrection)
+        throws RenderException {
+
+        if (!boostErrorCorrection) {
+            return render(code, size, level, margin);
+        }
+
+        List<Object> key = Arrays.asList(code, size, level, margin, true);
+        byte[] image = cache.get(key);
+
+        if (image == null) {
+            image = delegate.render(code, size, level, margin, true);
+            cache.put(key, image);
+        }
+
+        return image;
+    }
+}
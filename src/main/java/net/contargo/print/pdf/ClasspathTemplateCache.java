@@ -0,0 +1,95 @@
+package net.contargo.print.pdf;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+
+/**
+ * Caches compiled templates, loaded from the classpath, by class loader and resource name.
+ *
+ * <p>The resource is read and rendered only on the first request, all later builds start from the cached bytes,
+ * without any jar I/O. Entries are held per class loader, so a redeployed application (with a new class loader) loads
+ * its templates anew, while the entries of the old class loader are released together with it.</p>
+ *
+ * @since  0.6
+ */
+final class ClasspathTemplateCache {
+
+    private final Map<ClassLoader, ConcurrentMap<String, byte[]>> templates = Collections.synchronizedMap(
+            new WeakHashMap<>());
+
+    /**
+     * Returns the compiled template for the given resource, compiling it on first request.
+     *
+     * @param  loader  to load the resource with
+     * @param  name  of the resource
+     * @param  builder  to compile the template with
+     *
+     * @return  the compiled template, shared by all callers and must therefore not be modified
+     *
+     * @throws  RenderException  in case the resource is missing, or compiling it fails
+     */
+    byte[] get(ClassLoader loader, String name, PDFBuilder builder) throws RenderException {
+
+        ConcurrentMap<String, byte[]> loaderTemplates = templates.computeIfAbsent(loader,
+                l -> new ConcurrentHashMap<>());
+
+        byte[] template = loaderTemplates.get(name);
+
+        if (template == null) {
+            // Concurrent first requests may compile twice, the first result wins
+            byte[] compiled = compile(loader, name, builder);
+            template = loaderTemplates.putIfAbsent(name, compiled);
+
+            if (template == null) {
+                template = compiled;
+            }
+        }
+
+        return template;
+    }
+
+
+    /**
+     * Compiles the given resource, or loads its precompiled template, if one is next to it on the classpath.
+     */
+    private static byte[] compile(ClassLoader loader, String name, PDFBuilder builder) throws RenderException {
+
+        try(InputStream resource = loader.getResourceAsStream(name);
+                InputStream precompiled = loader.getResourceAsStream(name + PrecompiledTemplate.SUFFIX)) {
+            if (resource == null) {
+                throw new RenderException("Loading the template failed.", new FileNotFoundException(name));
+            }
+
+            if (precompiled == null) {
+                return builder.renderFromTemplate(resource);
+            }
+
+            return builder.renderFromTemplate(readAll(resource), readAll(precompiled));
+        } catch (IOException e) {
+            throw new RenderException("Loading the template failed.", e);
+        }
+    }
+
+
+    private static byte[] readAll(InputStream in) throws IOException {
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192]; // NOSONAR
+        int n;
+
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,77 @@
+package net.contargo.print.pdf;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+
+/**
+ * SHA-256 hashes of content, as keys for caches of render results.
+ *
+ * @since  0.6
+ */
+final class ContentHash {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private ContentHash() {
+
+        // hide
+    }
+
+    /**
+     * @return  the hash of the given data, as lowercase hex string
+     */
+    static String sha256(byte[] data) {
+
+        try {
+            return sha256(new ByteArrayInputStream(data));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // NOSONAR - never thrown by a byte array stream
+        }
+    }
+
+
+    /**
+     * @return  the hash of the remaining data of the given stream, as lowercase hex string
+     */
+    static String sha256(InputStream in) throws IOException {
+
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[8192]; // NOSONAR
+        int n;
+
+        while ((n = in.read(buffer)) != -1) {
+            digest.update(buffer, 0, n);
+        }
+
+        return toHex(digest.digest());
+    }
+
+
+    static MessageDigest newDigest() {
+
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported.", e);
+        }
+    }
+
+
+    static String toHex(byte[] hash) {
+
+        char[] hex = new char[hash.length * 2];
+
+        for (int i = 0; i < hash.length; i++) {
+            hex[2 * i] = HEX[(hash[i] >> 4) & 0xF]; // NOSONAR
+            hex[2 * i + 1] = HEX[hash[i] & 0xF]; // NOSONAR
+        }
+
+        return new String(hex);
+    }
+}
@@ -0,0 +1,568 @@
+package net.contargo.print.pdf;
+
+import org.apache.pdfbox.cos.COSString;
+import org.apache.pdfbox.pdfwriter.COSWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Rewrites the text shown by the {@code Tj} and {@code TJ} operators of a decoded content stream, scanning the raw
+ * bytes with a small lexer, instead of parsing them into PDFBox objects.
+ *
+ * <p>Only the string operands with a changed text are written anew, everything else is copied through as raw byte
+ * ranges, including the kerning of {@code TJ} arrays without changes. Content the lexer does not understand is
+ * reported as {@link Malformed}, so that the caller can fall back to the lenient PDFBox parser.</p>
+ *
+ * @since  0.6
+ */
+final class ContentStreamRewriter {
+
+    /**
+     * Replaces the text of a string operand.
+     */
+    @FunctionalInterface
+    interface TextRewrite {
+
+        /**
+         * @param  text  shown by the operator, decoded like {@link COSString#getString()}
+         * @param  font  the name of the current font, as set by the last {@code Tf} operator, or {@code null}
+         * @param  fontSize  the size of the current font, or {@link Float#NaN}
+         *
+         * @return  the replaced text, or {@code null} to keep the operand unchanged
+         *
+         * @throws  IOException  in case measuring the font fails
+         */
+        String apply(String text, String font, float fontSize) throws IOException;
+    }
+
+    /**
+     * Thrown for content the lexer does not understand.
+     */
+    static final class Malformed extends Exception {
+
+        private static final long serialVersionUID = 6052981738362370925L;
+
+        private Malformed(String message, int offset) {
+
+            super(String.format("%s at offset %d", message, offset));
+        }
+    }
+
+    private enum Kind {
+
+        STRING,
+        ARRAY,
+        DICTIONARY,
+        NAME,
+        KEYWORD
+    }
+
+    /**
+     * An operand or operator, by its byte range in the content.
+     */
+    private static final class Token {
+
+        private final Kind kind;
+        private final int start;
+        private final int end;
+        private final byte[] value;
+        private final List<byte[]> strings;
+
+        private Token(Kind kind, int start, int end, byte[] value, List<byte[]> strings) {
+
+            this.kind = kind;
+            this.start = start;
+            this.end = end;
+            this.value = value;
+            this.strings = strings;
+        }
+
+        private String text() {
+
+            return new String(value, StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    private static final String SHOW_STRING_OP = "Tj";
+    private static final String SHOW_MORE_STRINGS_OP = "TJ";
+    private static final String SET_FONT_OP = "Tf";
+    private static final String INLINE_IMAGE_DATA_OP = "ID";
+    private static final int DEADLINE_CHECK_INTERVAL = 256;
+
+    private final byte[] content;
+    private final TextRewrite rewrite;
+    private ByteArrayOutputStream out;
+    private int copied;
+    private int pos;
+
+    private ContentStreamRewriter(byte[] content, TextRewrite rewrite) {
+
+        this.content = content;
+        this.rewrite = rewrite;
+    }
+
+    /**
+     * @param  content  the decoded content stream
+     * @param  rewrite  replacing the text of the string operands
+     *
+     * @return  the rewritten content stream, or {@code null} if no text changed
+     *
+     * @throws  Malformed  in case the lexer does not understand the content
+     * @throws  IOException  in case the rewrite fails
+     */
+    static byte[] rewrite(byte[] content, TextRewrite rewrite) throws Malformed, IOException {
+
+        return new ContentStreamRewriter(content, rewrite).rewrite();
+    }
+
+
+    private byte[] rewrite() throws Malformed, IOException {
+
+        Token beforePrevious = null;
+        Token previous = null;
+        String font = null;
+        float fontSize = Float.NaN;
+        int tokens = 0;
+        Token token;
+
+        while ((token = next()) != null) {
+            if (++tokens % DEADLINE_CHECK_INTERVAL == 0) {
+                Deadline.check();
+            }
+
+            if (token.kind != Kind.KEYWORD || isOperand(token.value)) {
+                beforePrevious = previous;
+                previous = token;
+
+                continue;
+            }
+
+            String operator = token.text();
+
+            if (SET_FONT_OP.equals(operator)) {
+                font = beforePrevious != null && beforePrevious.kind == Kind.NAME ? beforePrevious.text() : null;
+                fontSize = previous != null && previous.kind == Kind.KEYWORD ? toFloat(previous.text()) : Float.NaN;
+            } else if (SHOW_STRING_OP.equals(operator) && previous != null && previous.kind == Kind.STRING) {
+                replace(previous, new COSString(previous.value).getString(), font, fontSize, false);
+            } else if (SHOW_MORE_STRINGS_OP.equals(operator) && previous != null && previous.kind == Kind.ARRAY) {
+                StringBuilder text = new StringBuilder();
+                previous.strings.forEach(s -> text.append(new COSString(s).getString()));
+                replace(previous, text.toString(), font, fontSize, true);
+            } else if (INLINE_IMAGE_DATA_OP.equals(operator)) {
+                skipInlineImage();
+            }
+
+            beforePrevious = null;
+            previous = null;
+        }
+
+        if (out == null) {
+            return null; // NOSONAR - null marks an unchanged content stream
+        }
+
+        out.write(content, copied, content.length - copied);
+
+        return out.toByteArray();
+    }
+
+
+    /**
+     * Writes the replaced text in place of the given operand, a {@code TJ} array is replaced by an array of the
+     * single string, as the PDFBox object rewrite does.
+     */
+    private void replace(Token operand, String text, String font, float fontSize, boolean array) throws IOException {
+
+        String result = rewrite.apply(text, font, fontSize);
+
+        if (result == null) {
+            return;
+        }
+
+        if (out == null) {
+            out = new ByteArrayOutputStream(content.length + 64); // NOSONAR
+        }
+
+        out.write(content, copied, operand.start - copied);
+
+        if (array) {
+            out.write('[');
+        }
+
+        COSWriter.writeString(result.getBytes(StandardCharsets.ISO_8859_1), out);
+
+        if (array) {
+            out.write(']');
+        }
+
+        copied = operand.end;
+    }
+
+
+    /**
+     * @return  the next token, or {@code null} at the end of the content
+     */
+    private Token next() throws Malformed {
+
+        skipWhitespaceAndComments();
+
+        if (pos >= content.length) {
+            return null;
+        }
+
+        int start = pos;
+
+        // The token ends after reading its value
+        switch (content[pos]) {
+            case '(':
+                byte[] literal = readLiteralString();
+
+                return new Token(Kind.STRING, start, pos, literal, null);
+
+            case '<':
+                if (pos + 1 < content.length && content[pos + 1] == '<') {
+                    readDictionary();
+
+                    return new Token(Kind.DICTIONARY, start, pos, null, null);
+                }
+
+                byte[] hex = readHexString();
+
+                return new Token(Kind.STRING, start, pos, hex, null);
+
+            case '[':
+                List<byte[]> strings = readArray();
+
+                return new Token(Kind.ARRAY, start, pos, null, strings);
+
+            case '/':
+                pos++;
+
+                byte[] name = readName();
+
+                return new Token(Kind.NAME, start, pos, name, null);
+
+            default:
+                byte[] keyword = readRegular();
+
+                if (keyword.length == 0) {
+                    throw new Malformed("Unexpected delimiter", pos);
+                }
+
+                return new Token(Kind.KEYWORD, start, pos, keyword, null);
+        }
+    }
+
+
+    /**
+     * @return  the strings of the array, the other elements are skipped
+     */
+    private List<byte[]> readArray() throws Malformed {
+
+        List<byte[]> strings = new ArrayList<>();
+        pos++;
+
+        while (true) {
+            skipWhitespaceAndComments();
+
+            if (pos >= content.length) {
+                throw new Malformed("Unterminated array", pos);
+            }
+
+            if (content[pos] == ']') {
+                pos++;
+
+                return strings;
+            }
+
+            Token element = next();
+
+            if (element.kind == Kind.KEYWORD && !isOperand(element.value)) {
+                throw new Malformed("Operator in array", element.start);
+            }
+
+            if (element.kind == Kind.STRING) {
+                strings.add(element.value);
+            }
+        }
+    }
+
+
+    private void readDictionary() throws Malformed {
+
+        pos += 2;
+
+        while (true) {
+            skipWhitespaceAndComments();
+
+            if (pos + 1 < content.length && content[pos] == '>' && content[pos + 1] == '>') {
+                pos += 2;
+
+                return;
+            }
+
+            if (pos >= content.length) {
+                throw new Malformed("Unterminated dictionary", pos);
+            }
+
+            Token element = next();
+
+            if (element.kind == Kind.KEYWORD && !isOperand(element.value)) {
+                throw new Malformed("Operator in dictionary", element.start);
+            }
+        }
+    }
+
+
+    /**
+     * Reads a literal string, resolving its escapes as the PDFBox parser does.
+     */
+    private byte[] readLiteralString() throws Malformed {
+
+        ByteArrayOutputStream value = new ByteArrayOutputStream();
+        int depth = 1;
+        pos++;
+
+        while (pos < content.length) {
+            byte b = content[pos++];
+
+            if (b == '\\') {
+                readEscape(value);
+            } else if (b == '(') {
+                depth++;
+                value.write(b);
+            } else if (b == ')' && --depth == 0) {
+                return value.toByteArray();
+            } else {
+                value.write(b);
+            }
+        }
+
+        throw new Malformed("Unterminated string", pos);
+    }
+
+
+    private void readEscape(ByteArrayOutputStream value) throws Malformed {
+
+        if (pos >= content.length) {
+            throw new Malformed("Unterminated string", pos);
+        }
+
+        byte e = content[pos++];
+
+        switch (e) {
+            case 'n':
+                value.write('\n');
+                break;
+
+            case 'r':
+                value.write('\r');
+                break;
+
+            case 't':
+                value.write('\t');
+                break;
+
+            case 'b':
+                value.write('\b');
+                break;
+
+            case 'f':
+                value.write('\f');
+                break;
+
+            case '\r':
+            case '\n':
+                // A line continuation, skipping the end of line
+                while (pos < content.length && (content[pos] == '\r' || content[pos] == '\n')) {
+                    pos++;
+                }
+
+                break;
+
+            default:
+                if (e >= '0' && e <= '7') {
+                    int code = e - '0';
+
+                    for (int i = 0; i < 2 && pos < content.length && content[pos] >= '0' && content[pos] <= '7'; i++) {
+                        code = code * 8 + content[pos++] - '0'; // NOSONAR
+                    }
+
+                    value.write(code);
+                } else {
+                    // Also the escaped delimiters, an unknown escape is ignored
+                    value.write(e);
+                }
+        }
+    }
+
+
+    private byte[] readHexString() throws Malformed {
+
+        ByteArrayOutputStream value = new ByteArrayOutputStream();
+        int high = -1;
+        pos++;
+
+        while (pos < content.length) {
+            byte b = content[pos++];
+
+            if (b == '>') {
+                if (high >= 0) {
+                    value.write(high << 4); // NOSONAR - an odd final digit is followed by 0
+                }
+
+                return value.toByteArray();
+            }
+
+            if (!isWhitespace(b)) {
+                int digit = Character.digit(b, 16);
+
+                if (digit < 0) {
+                    throw new Malformed("Invalid hex string", pos - 1);
+                }
+
+                if (high < 0) {
+                    high = digit;
+                } else {
+                    value.write((high << 4) | digit); // NOSONAR
+                    high = -1;
+                }
+            }
+        }
+
+        throw new Malformed("Unterminated hex string", pos);
+    }
+
+
+    /**
+     * Reads a name, without the leading slash, resolving its {@code #xx} escapes.
+     */
+    private byte[] readName() {
+
+        byte[] name = readRegular();
+        ByteArrayOutputStream value = new ByteArrayOutputStream(name.length);
+
+        for (int i = 0; i < name.length; i++) {
+            int code = name[i] == '#' && i + 2 < name.length
+                ? Character.digit(name[i + 1], 16) << 4 | Character.digit(name[i + 2], 16) : -1; // NOSONAR
+
+            if (code >= 0) {
+                value.write(code);
+                i += 2;
+            } else {
+                value.write(name[i]);
+            }
+        }
+
+        return value.toByteArray();
+    }
+
+
+    private byte[] readRegular() {
+
+        int start = pos;
+
+        while (pos < content.length && !isWhitespace(content[pos]) && !isDelimiter(content[pos])) {
+            pos++;
+        }
+
+        byte[] value = new byte[pos - start];
+        System.arraycopy(content, start, value, 0, value.length);
+
+        return value;
+    }
+
+
+    /**
+     * Skips the data of an inline image, up to and including its {@code EI} operator, which follows a whitespace.
+     */
+    private void skipInlineImage() throws Malformed {
+
+        for (int i = pos + 1; i + 1 < content.length; i++) {
+            if (isWhitespace(content[i - 1]) && content[i] == 'E' && content[i + 1] == 'I'
+                    && (i + 2 == content.length || isWhitespace(content[i + 2]))) {
+                pos = i + 2;
+
+                return;
+            }
+        }
+
+        throw new Malformed("Unterminated inline image", pos);
+    }
+
+
+    private void skipWhitespaceAndComments() {
+
+        while (pos < content.length) {
+            if (content[pos] == '%') {
+                while (pos < content.length && content[pos] != '\r' && content[pos] != '\n') {
+                    pos++;
+                }
+            } else if (isWhitespace(content[pos])) {
+                pos++;
+            } else {
+                return;
+            }
+        }
+    }
+
+
+    /**
+     * @return  whether the keyword is a number, a boolean or null, and not an operator
+     */
+    private static boolean isOperand(byte[] keyword) {
+
+        byte first = keyword[0];
+
+        if ((first >= '0' && first <= '9') || first == '+' || first == '-' || first == '.') {
+            return true;
+        }
+
+        String text = new String(keyword, StandardCharsets.ISO_8859_1);
+
+        return "true".equals(text) || "false".equals(text) || "null".equals(text);
+    }
+
+
+    private static float toFloat(String number) {
+
+        try {
+            return Float.parseFloat(number);
+        } catch (NumberFormatException e) {
+            return Float.NaN;
+        }
+    }
+
+
+    private static boolean isWhitespace(byte b) {
+
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t' || b == '\f' || b == 0;
+    }
+
+
+    private static boolean isDelimiter(byte b) {
+
+        switch (b) {
+            case '(':
+            case ')':
+            case '<':
+            case '>':
+            case '[':
+            case ']':
+            case '{':
+            case '}':
+            case '/':
+            case '%':
+                return true;
+
+            default:
+                return false;
+        }
+    }
+}
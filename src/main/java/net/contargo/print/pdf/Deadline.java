@@ -0,0 +1,116 @@
+package net.contargo.print.pdf;
+
+import java.time.Duration;
+
+
+/**
+ * The deadline of the build running on the current thread, checked cooperatively between stages, pages and tokens.
+ *
+ * <p>A check fails with an unchecked {@link Exceeded}, so that it can be done deep inside the renderers, where only
+ * {@link java.io.IOException} is declared. The build translates it into a {@link RenderTimeoutException}. A check
+ * also fails, if the thread is interrupted, so that a build can be cancelled.</p>
+ *
+ * @since  0.6
+ */
+final class Deadline {
+
+    /**
+     * Signals an exceeded deadline, or an interrupted build, to the build that started the deadline.
+     */
+    static final class Exceeded extends RuntimeException {
+
+        private static final long serialVersionUID = -3262386101339402405L;
+
+        private final boolean interrupted;
+
+        private Exceeded(boolean interrupted) {
+
+            super(interrupted ? "The build was interrupted." : "The build exceeded its deadline.", null, false,
+                false);
+
+            this.interrupted = interrupted;
+        }
+
+        boolean isInterrupted() {
+
+            return interrupted;
+        }
+    }
+
+    private static final ThreadLocal<Deadline> CURRENT = new ThreadLocal<>();
+
+    private final long endNanos;
+    private final Deadline outer;
+
+    private Deadline(long endNanos, Deadline outer) {
+
+        this.endNanos = endNanos;
+        this.outer = outer;
+    }
+
+    /**
+     * Starts a deadline for the current thread, which must be ended with {@link #end()}.
+     */
+    static Deadline start(Duration timeout) {
+
+        Deadline deadline = new Deadline(System.nanoTime() + timeout.toNanos(), CURRENT.get());
+        CURRENT.set(deadline);
+
+        return deadline;
+    }
+
+
+    /**
+     * Ends this deadline, restoring the deadline of an enclosing build, if any.
+     */
+    void end() {
+
+        if (outer == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(outer);
+        }
+    }
+
+
+    /**
+     * @return  the deadline of the current thread, or {@code null}
+     */
+    static Deadline current() {
+
+        return CURRENT.get();
+    }
+
+
+    /**
+     * Checks the deadline of the current thread, if any.
+     *
+     * @throws  Exceeded  in case the deadline has passed, or the thread is interrupted
+     */
+    static void check() {
+
+        Deadline deadline = CURRENT.get();
+
+        if (deadline != null) {
+            deadline.checkNow();
+        }
+    }
+
+
+    void checkNow() {
+
+        if (Thread.currentThread().isInterrupted()) {
+            throw new Exceeded(true);
+        }
+
+        if (remainingNanos() <= 0) {
+            throw new Exceeded(false);
+        }
+    }
+
+
+    long remainingNanos() {
+
+        return endNanos - System.nanoTime();
+    }
+}
@@ -0,0 +1,406 @@
+package net.contargo.print.pdf;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * The content of a {@link PDFDocument}, held on the heap, in a temporary file, or in a direct buffer, until it is
+ * released.
+ *
+ * @since  0.6
+ */
+abstract class DocumentContent {
+
+    abstract long size();
+
+
+    abstract InputStream openStream() throws IOException;
+
+
+    abstract ReadableByteChannel openChannel() throws IOException;
+
+
+    /**
+     * @return  a read-only view of the content, without copying it
+     */
+    abstract ByteBuffer asByteBuffer() throws IOException;
+
+
+    abstract void writeTo(OutputStream output) throws IOException;
+
+
+    abstract void writeTo(Path target) throws IOException;
+
+
+    /**
+     * @return  the content as byte array, shared for content held on the heap, and must therefore not be modified
+     */
+    abstract byte[] toByteArray() throws IOException;
+
+
+    /**
+     * Releases the storage of the content, after which it can no longer be read. Releasing again has no effect.
+     */
+    abstract void release();
+
+
+    static DocumentContent onHeap(byte[] data) {
+
+        return new Heap(data, null);
+    }
+
+
+    /**
+     * @param  heapDocuments  counter of the documents on the heap, decremented on release, may be {@code null}
+     */
+    static DocumentContent onHeap(byte[] data, AtomicInteger heapDocuments) {
+
+        return new Heap(data, heapDocuments);
+    }
+
+
+    static DocumentContent inTempFile(byte[] data, Path directory) throws IOException {
+
+        Path file = Files.createTempFile(directory, "pdf-builder-", ".pdf");
+
+        try {
+            Files.write(file, data);
+        } catch (IOException e) {
+            Files.deleteIfExists(file);
+
+            throw e;
+        }
+
+        return new TempFile(file, data.length);
+    }
+
+
+    static DocumentContent offHeap(byte[] data) {
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+        buffer.put(data).flip();
+
+        return new Direct(buffer);
+    }
+
+
+    private static IllegalStateException released() {
+
+        return new IllegalStateException("The document has been released");
+    }
+
+    private static final class Heap extends DocumentContent {
+
+        private final AtomicInteger heapDocuments;
+        private volatile byte[] data;
+
+        private Heap(byte[] data, AtomicInteger heapDocuments) {
+
+            this.data = data;
+            this.heapDocuments = heapDocuments;
+        }
+
+        @Override
+        long size() {
+
+            return toByteArray().length;
+        }
+
+
+        @Override
+        InputStream openStream() {
+
+            return new ByteArrayInputStream(toByteArray());
+        }
+
+
+        @Override
+        ReadableByteChannel openChannel() {
+
+            return Channels.newChannel(openStream());
+        }
+
+
+        @Override
+        ByteBuffer asByteBuffer() {
+
+            return ByteBuffer.wrap(toByteArray()).asReadOnlyBuffer();
+        }
+
+
+        @Override
+        void writeTo(OutputStream output) throws IOException {
+
+            output.write(toByteArray());
+        }
+
+
+        @Override
+        void writeTo(Path target) throws IOException {
+
+            Files.write(target, toByteArray());
+        }
+
+
+        @Override
+        byte[] toByteArray() {
+
+            byte[] current = data;
+
+            if (current == null) {
+                throw released();
+            }
+
+            return current;
+        }
+
+
+        @Override
+        synchronized void release() {
+
+            if (data != null && heapDocuments != null) {
+                heapDocuments.decrementAndGet();
+            }
+
+            data = null;
+        }
+    }
+
+    private static final class TempFile extends DocumentContent {
+
+        private final long size;
+        private volatile Path file;
+
+        private TempFile(Path file, long size) {
+
+            this.file = file;
+            this.size = size;
+        }
+
+        @Override
+        long size() {
+
+            file();
+
+            return size;
+        }
+
+
+        @Override
+        InputStream openStream() throws IOException {
+
+            return Files.newInputStream(file());
+        }
+
+
+        @Override
+        ReadableByteChannel openChannel() throws IOException {
+
+            return Files.newByteChannel(file());
+        }
+
+
+        /**
+         * Maps the file read-only, the mapping stays valid after the file is deleted on release.
+         */
+        @Override
+        ByteBuffer asByteBuffer() throws IOException {
+
+            try(FileChannel channel = FileChannel.open(file(), StandardOpenOption.READ)) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+        }
+
+
+        @Override
+        void writeTo(OutputStream output) throws IOException {
+
+            Files.copy(file(), output);
+        }
+
+
+        @Override
+        void writeTo(Path target) throws IOException {
+
+            Files.copy(file(), target, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+
+        @Override
+        byte[] toByteArray() throws IOException {
+
+            return Files.readAllBytes(file());
+        }
+
+
+        @Override
+        synchronized void release() {
+
+            Path current = file;
+            file = null;
+
+            if (current != null) {
+                try {
+                    Files.deleteIfExists(current);
+                } catch (IOException e) {
+                    // Left to the cleanup of the temporary directory
+                    current.toFile().deleteOnExit();
+                }
+            }
+        }
+
+
+        private Path file() {
+
+            Path current = file;
+
+            if (current == null) {
+                throw released();
+            }
+
+            return current;
+        }
+    }
+
+    private static final class Direct extends DocumentContent {
+
+        private volatile ByteBuffer buffer;
+
+        private Direct(ByteBuffer buffer) {
+
+            this.buffer = buffer;
+        }
+
+        @Override
+        long size() {
+
+            return buffer().remaining();
+        }
+
+
+        @Override
+        InputStream openStream() {
+
+            return Channels.newInputStream(openChannel());
+        }
+
+
+        @Override
+        ReadableByteChannel openChannel() {
+
+            ByteBuffer content = buffer();
+
+            return new ReadableByteChannel() {
+
+                private boolean open = true;
+
+                @Override
+                public int read(ByteBuffer target) {
+
+                    if (!content.hasRemaining()) {
+                        return -1;
+                    }
+
+                    int n = Math.min(content.remaining(), target.remaining());
+                    ByteBuffer slice = content.slice();
+                    slice.limit(n);
+                    target.put(slice);
+                    content.position(content.position() + n);
+
+                    return n;
+                }
+
+
+                @Override
+                public boolean isOpen() {
+
+                    return open;
+                }
+
+
+                @Override
+                public void close() {
+
+                    open = false;
+                }
+            };
+        }
+
+
+        @Override
+        ByteBuffer asByteBuffer() {
+
+            return buffer().asReadOnlyBuffer();
+        }
+
+
+        @Override
+        void writeTo(OutputStream output) throws IOException {
+
+            ByteBuffer content = buffer();
+            WritableByteChannel channel = Channels.newChannel(output);
+
+            while (content.hasRemaining()) {
+                channel.write(content);
+            }
+        }
+
+
+        @Override
+        void writeTo(Path target) throws IOException {
+
+            try(OutputStream output = Files.newOutputStream(target)) {
+                writeTo(output);
+            }
+        }
+
+
+        @Override
+        byte[] toByteArray() {
+
+            ByteBuffer content = buffer();
+            byte[] data = new byte[content.remaining()];
+            content.get(data);
+
+            return data;
+        }
+
+
+        @Override
+        void release() {
+
+            // Direct memory is freed, once the buffer is collected
+            buffer = null;
+        }
+
+
+        /**
+         * @return  an independent view of the content, so that concurrent readers do not share a position
+         */
+        private ByteBuffer buffer() {
+
+            ByteBuffer current = buffer;
+
+            if (current == null) {
+                throw released();
+            }
+
+            return current.duplicate();
+        }
+    }
+}
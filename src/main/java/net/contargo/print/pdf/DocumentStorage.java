@@ -0,0 +1,191 @@
+package net.contargo.print.pdf;
+
+import java.io.IOException;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Describing where built documents are held, until they are released.
+ *
+ * <p>By default documents are held on the heap. For large batches, where many finished documents wait for an upload,
+ * documents can instead be spilled to temporary files, or held off-heap in direct buffers, once they reach a size, or
+ * once a number of documents is held on the heap:</p>
+ *
+ * <pre><code>
+        PDFBuilder pdfBuilder = PDFBuilder.configure()
+            .withDocumentStorage(DocumentStorage.tempFiles().withSizeThreshold(1024 * 1024).withCountThreshold(100))
+            .build();
+   </code></pre>
+ *
+ * <p>A spilled document holds its file or buffer, until {@link PDFDocument#release()} is called. Documents that are
+ * not released leave their temporary files behind, and count against the count threshold.</p>
+ *
+ * <p>A storage is immutable, setting a threshold returns a new storage. A storage should be used by a single builder,
+ * since the documents held on the heap are counted per storage.</p>
+ *
+ * @since  0.6
+ */
+public final class DocumentStorage {
+
+    private enum Kind {
+
+        HEAP,
+        TEMP_FILES,
+        OFF_HEAP
+    }
+
+    private final Kind kind;
+    private final Path directory;
+    private final AtomicInteger heapDocuments = new AtomicInteger();
+    private final long sizeThreshold;
+    private final int countThreshold;
+
+    private DocumentStorage(Kind kind, Path directory, long sizeThreshold, int countThreshold) {
+
+        this.kind = kind;
+        this.directory = directory;
+        this.sizeThreshold = sizeThreshold;
+        this.countThreshold = countThreshold;
+    }
+
+    /**
+     * Creates a storage holding all documents on the heap, which is the default.
+     *
+     * @return  a new storage
+     */
+    public static DocumentStorage onHeap() {
+
+        return new DocumentStorage(Kind.HEAP, null, 0, 0);
+    }
+
+
+    /**
+     * Creates a storage spilling documents to temporary files, in the default temporary directory.
+     *
+     * @return  a new storage
+     */
+    public static DocumentStorage tempFiles() {
+
+        return tempFiles(Paths.get(System.getProperty("java.io.tmpdir")));
+    }
+
+
+    /**
+     * Creates a storage spilling documents to temporary files, in the given directory.
+     *
+     * @param  directory  an existing, writable directory, never {@code null}
+     *
+     * @return  a new storage
+     */
+    public static DocumentStorage tempFiles(Path directory) {
+
+        if (directory == null) {
+            throw new IllegalArgumentException("The directory must not be null");
+        }
+
+        return new DocumentStorage(Kind.TEMP_FILES, directory, 0, 0);
+    }
+
+
+    /**
+     * Creates a storage spilling documents into direct buffers, outside of the heap. Direct memory is limited by the
+     * JVM option {@code -XX:MaxDirectMemorySize}, and freed only once a released document is garbage collected.
+     *
+     * @return  a new storage
+     */
+    public static DocumentStorage offHeap() {
+
+        return new DocumentStorage(Kind.OFF_HEAP, null, 0, 0);
+    }
+
+
+    /**
+     * Spill only documents of at least the given size, smaller documents stay on the heap. Defaults to {@code 0},
+     * spilling all documents, unless a count threshold is set.
+     *
+     * @param  bytes  the minimum size of a document to spill, must not be negative
+     *
+     * @return  a new storage with the given size threshold
+     */
+    public DocumentStorage withSizeThreshold(long bytes) {
+
+        if (bytes < 0) {
+            throw new IllegalArgumentException("The size threshold must not be negative");
+        }
+
+        return new DocumentStorage(kind, directory, bytes, countThreshold);
+    }
+
+
+    /**
+     * Spill documents once the given number of unreleased documents is held on the heap. If a size threshold is set
+     * as well, documents are spilled once either threshold is reached.
+     *
+     * @param  documents  the number of documents to hold on the heap, must be positive
+     *
+     * @return  a new storage with the given count threshold
+     */
+    public DocumentStorage withCountThreshold(int documents) {
+
+        if (documents < 1) {
+            throw new IllegalArgumentException("The count threshold must be positive");
+        }
+
+        return new DocumentStorage(kind, directory, sizeThreshold, documents);
+    }
+
+
+    /**
+     * Takes over the given document data, spilling it if a threshold is reached.
+     *
+     * @throws  RenderException  in case writing the temporary file fails
+     */
+    DocumentContent store(byte[] pdf) throws RenderException {
+
+        if (kind == Kind.HEAP) {
+            return DocumentContent.onHeap(pdf);
+        }
+
+        if (!isSpilled(pdf.length)) {
+            return DocumentContent.onHeap(pdf, countThreshold > 0 ? heapDocuments : null);
+        }
+
+        if (kind == Kind.OFF_HEAP) {
+            return DocumentContent.offHeap(pdf);
+        }
+
+        try {
+            return DocumentContent.inTempFile(pdf, directory);
+        } catch (IOException e) {
+            throw new RenderException("Writing the document to a temporary file failed.", e);
+        }
+    }
+
+
+    /**
+     * Decides whether to spill a document of the given size, counting it as held on the heap otherwise.
+     */
+    private boolean isSpilled(long size) {
+
+        if (sizeThreshold > 0 && size >= sizeThreshold) {
+            return true;
+        }
+
+        if (countThreshold == 0) {
+            // Without thresholds all documents are spilled, with a size threshold only the large ones
+            return sizeThreshold == 0;
+        }
+
+        if (heapDocuments.incrementAndGet() > countThreshold) {
+            heapDocuments.decrementAndGet();
+
+            return true;
+        }
+
+        return false;
+    }
+}
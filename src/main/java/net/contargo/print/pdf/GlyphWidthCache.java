@@ -0,0 +1,97 @@
+package net.contargo.print.pdf;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.font.PDFont;
+
+import java.io.IOException;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+
+/**
+ * Caches the glyph widths of fonts, for the single byte character codes used in text replacement.
+ *
+ * <p>Fonts are identified by name, type and their widths array, so the widths are looked up from the font program
+ * only once, and are then shared by all documents using the same font.</p>
+ *
+ * @since  0.6
+ */
+final class GlyphWidthCache {
+
+    private static final int CODES = 256;
+    private static final char UNKNOWN = '?';
+
+    private final ConcurrentMap<String, float[]> widths = new ConcurrentHashMap<>();
+
+    /**
+     * Returns a measure for texts set in the given font and size.
+     *
+     * @param  font  to measure with
+     * @param  fontSize  to measure with
+     *
+     * @return  the text measure
+     *
+     * @throws  IOException  in case the font widths cannot be read
+     */
+    TextMeasure measure(PDFont font, float fontSize) throws IOException {
+
+        float[] glyphWidths = get(font);
+
+        return text -> width(glyphWidths, text) * fontSize / 1000f; // NOSONAR - glyph space is 1/1000 em
+    }
+
+
+    private float[] get(PDFont font) throws IOException {
+
+        String key = keyOf(font);
+        float[] glyphWidths = widths.get(key);
+
+        if (glyphWidths == null) {
+            glyphWidths = load(font);
+            widths.putIfAbsent(key, glyphWidths);
+        }
+
+        return glyphWidths;
+    }
+
+
+    private static String keyOf(PDFont font) {
+
+        COSDictionary dictionary = font.getCOSObject();
+        COSBase fontWidths = dictionary.getDictionaryObject(COSName.WIDTHS);
+        int widthsHash = fontWidths instanceof COSArray ? Arrays.hashCode(((COSArray) fontWidths).toFloatArray()) : 0;
+
+        return font.getName() + '/' + font.getSubType() + '/' + dictionary.getInt(COSName.FIRST_CHAR) + '/'
+            + widthsHash;
+    }
+
+
+    private static float[] load(PDFont font) throws IOException {
+
+        float[] glyphWidths = new float[CODES];
+
+        for (int code = 0; code < CODES; code++) {
+            glyphWidths[code] = font.getWidth(code);
+        }
+
+        return glyphWidths;
+    }
+
+
+    private static float width(float[] glyphWidths, String text) {
+
+        float width = 0;
+
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            width += glyphWidths[c < CODES ? c : UNKNOWN];
+        }
+
+        return width;
+    }
+}
@@ -0,0 +1,865 @@
+package net.contargo.print.pdf;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSBoolean;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSFloat;
+import org.apache.pdfbox.cos.COSInteger;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.cos.COSString;
+import org.apache.pdfbox.pdfwriter.COSWriter;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * Writes a document as a linearized PDF ("fast web view"), as specified in Annex F of ISO 32000-1.
+ *
+ * <p>The first page, and everything it needs, is written at the start of the file, behind a linearization dictionary
+ * and its own cross-reference table, so that a viewer can display it from the first bytes received. A hint stream
+ * tells the viewer where the objects of all other pages are. PDFBox cannot write linearized files, so the objects are
+ * serialized here, in the order and with the numbering the standard requires.</p>
+ *
+ * <p>The document must be parsed from a saved file, so that all indirect objects are referenced through
+ * {@link COSObject} instances. Every object forms its own shared object group, and content streams are not located
+ * separately within a page, like qpdf does.</p>
+ *
+ * @since  0.6
+ */
+final class Linearizer {
+
+    private static final COSName[] INHERITED = {
+        COSName.RESOURCES, COSName.MEDIA_BOX, COSName.CROP_BOX, COSName.ROTATE
+    };
+
+    // Entries of the catalog, that a viewer needs before the first page
+    private static final COSName[] DOCUMENT_LEVEL = {
+        COSName.VIEWER_PREFERENCES, COSName.OPEN_ACTION, COSName.ACRO_FORM, COSName.getPDFName("Threads")
+    };
+
+    private static final int NUMBER_WIDTH = 10;
+    private static final int SHARED_DENOMINATOR = 4;
+
+    private final PDDocument document;
+    private final COSDictionary trailer;
+    private final COSDictionary catalog;
+    private final List<COSDictionary> pages = new ArrayList<>();
+
+    private final Map<COSBase, Integer> numbers = new IdentityHashMap<>();
+    private final Map<COSBase, byte[]> serialized = new IdentityHashMap<>();
+
+    private final List<COSBase> documentLevel = new ArrayList<>();
+    private final List<List<COSBase>> pageSections = new ArrayList<>();
+    private final List<COSBase> shared = new ArrayList<>();
+    private final List<COSBase> others = new ArrayList<>();
+    private final List<List<COSBase>> pageSharedReferences = new ArrayList<>();
+
+    Linearizer(PDDocument document) {
+
+        this.document = document;
+        this.trailer = document.getDocument().getTrailer();
+        this.catalog = document.getDocumentCatalog().getCOSObject();
+
+        for (PDPage page : document.getPages()) {
+            pages.add(page.getCOSObject());
+        }
+    }
+
+    /**
+     * Writes the linearized document.
+     *
+     * @param  out  to write to
+     *
+     * @throws  IOException  in case writing fails
+     */
+    void write(OutputStream out) throws IOException {
+
+        pushDownInheritedAttributes();
+        assignParts();
+        assignNumbers();
+
+        for (COSBase object : numbers.keySet()) {
+            serialized.put(object, serialize(object));
+        }
+
+        new Layout().write(out);
+    }
+
+
+    /**
+     * Copies inheritable attributes from the page tree to the pages, as the hint tables describe pages on their own.
+     */
+    private void pushDownInheritedAttributes() {
+
+        Set<COSDictionary> nodes = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        for (COSDictionary page : pages) {
+            for (COSName key : INHERITED) {
+                COSBase value = null;
+
+                for (COSDictionary node = page; node != null && value == null; node = parent(node)) {
+                    value = node.getItem(key);
+                }
+
+                if (value != null) {
+                    page.setItem(key, value);
+                }
+            }
+
+            for (COSDictionary node = parent(page); node != null; node = parent(node)) {
+                nodes.add(node);
+            }
+        }
+
+        for (COSDictionary node : nodes) {
+            for (COSName key : INHERITED) {
+                node.removeItem(key);
+            }
+        }
+    }
+
+
+    private static COSDictionary parent(COSDictionary node) {
+
+        COSBase parent = node.getDictionaryObject(COSName.PARENT, COSName.P);
+
+        return parent instanceof COSDictionary ? (COSDictionary) parent : null;
+    }
+
+
+    /**
+     * Sorts all objects into the parts of a linearized file: document-level objects (part 4), the first page and
+     * everything it uses (part 6), the other pages with their private objects (part 7), objects shared by other pages
+     * (part 8), and all remaining objects (part 9).
+     */
+    private void assignParts() {
+
+        Set<COSBase> boundaries = Collections.newSetFromMap(new IdentityHashMap<>());
+        boundaries.add(catalog);
+        boundaries.addAll(pages);
+
+        for (COSDictionary page : pages) {
+            for (COSDictionary node = parent(page); node != null; node = parent(node)) {
+                boundaries.add(node);
+            }
+        }
+
+        List<Set<COSBase>> used = new ArrayList<>();
+
+        for (COSDictionary page : pages) {
+            used.add(reachable(page, boundaries, COSName.PARENT, true));
+        }
+
+        Set<COSBase> assigned = Collections.newSetFromMap(new IdentityHashMap<>());
+        assigned.addAll(used.get(0));
+        pageSections.add(new ArrayList<>(used.get(0)));
+
+        Map<COSBase, Integer> users = new IdentityHashMap<>();
+
+        for (int i = 1; i < used.size(); i++) {
+            for (COSBase object : used.get(i)) {
+                users.merge(object, 1, Integer::sum);
+            }
+        }
+
+        for (int i = 1; i < used.size(); i++) {
+            List<COSBase> section = new ArrayList<>();
+
+            for (COSBase object : used.get(i)) {
+                if (!assigned.contains(object) && users.get(object) == 1) {
+                    section.add(object);
+                }
+            }
+
+            assigned.addAll(section);
+            pageSections.add(section);
+        }
+
+        for (int i = 1; i < used.size(); i++) {
+            for (COSBase object : used.get(i)) {
+                if (assigned.add(object)) {
+                    shared.add(object);
+                }
+            }
+        }
+
+        documentLevel.add(catalog);
+        assigned.add(catalog);
+
+        for (COSName key : DOCUMENT_LEVEL) {
+            for (COSBase object : reachable(catalog.getItem(key), boundaries, null, false)) {
+                if (assigned.add(object)) {
+                    documentLevel.add(object);
+                }
+            }
+        }
+
+        for (COSBase object : reachable(trailer, Collections.emptySet(), null, false)) {
+            if (assigned.add(object)) {
+                others.add(object);
+            }
+        }
+
+        for (int i = 0; i < pages.size(); i++) {
+            List<COSBase> references = new ArrayList<>();
+
+            for (COSBase object : i == 0 ? Collections.<COSBase>emptySet() : used.get(i)) {
+                if (!pageSections.get(i).contains(object)) {
+                    references.add(object);
+                }
+            }
+
+            pageSharedReferences.add(references);
+        }
+    }
+
+
+    /**
+     * Collects the indirect objects reachable from the given object, in breadth-first order, without passing through
+     * the given boundary objects. The given object is included, if it is a reference or known to be indirect.
+     */
+    private static Set<COSBase> reachable(COSBase start, Set<COSBase> boundaries, COSName skippedKey,
+        boolean indirect) {
+
+        Set<COSBase> result = new LinkedHashSet<>();
+        Set<COSBase> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<COSBase> queue = new ArrayDeque<>();
+
+        COSBase first = start instanceof COSObject ? ((COSObject) start).getObject() : start;
+
+        if (first == null) {
+            return result;
+        }
+
+        queue.add(first);
+        visited.add(first);
+
+        while (!queue.isEmpty()) {
+            COSBase object = queue.poll();
+
+            if (object != first || indirect || start instanceof COSObject) {
+                result.add(object);
+            }
+
+            List<COSBase> references = new ArrayList<>();
+            collectReferences(object, object == first ? skippedKey : null, references);
+
+            for (COSBase reference : references) {
+                if (!boundaries.contains(reference) && visited.add(reference)) {
+                    queue.add(reference);
+                }
+            }
+        }
+
+        return result;
+    }
+
+
+    /**
+     * Collects the targets of all indirect references within the given object, without following them.
+     */
+    private static void collectReferences(COSBase object, COSName skippedKey, List<COSBase> references) {
+
+        if (object instanceof COSObject) {
+            COSBase target = ((COSObject) object).getObject();
+
+            if (target != null) {
+                references.add(target);
+            }
+        } else if (object instanceof COSDictionary) {
+            boolean stream = object instanceof COSStream;
+
+            for (Map.Entry<COSName, COSBase> entry : ((COSDictionary) object).entrySet()) {
+                if (!entry.getKey().equals(skippedKey) && !(stream && COSName.LENGTH.equals(entry.getKey()))) {
+                    collectReferences(entry.getValue(), null, references);
+                }
+            }
+        } else if (object instanceof COSArray) {
+            for (COSBase item : (COSArray) object) {
+                collectReferences(item, null, references);
+            }
+        }
+    }
+
+
+    /**
+     * Numbers the objects of the main cross-reference section (parts 7 to 9) first, and then the objects of the
+     * first-page cross-reference section, in the order they are written.
+     */
+    private void assignNumbers() {
+
+        int number = 1;
+
+        for (List<COSBase> section : pageSections.subList(1, pageSections.size())) {
+            for (COSBase object : section) {
+                numbers.put(object, number++);
+            }
+        }
+
+        for (COSBase object : concat(shared, others)) {
+            numbers.put(object, number++);
+        }
+
+        // The linearization dictionary, and then the hint stream after the document-level objects, are not in the map
+        number++;
+
+        for (COSBase object : documentLevel) {
+            numbers.put(object, number++);
+        }
+
+        number++;
+
+        for (COSBase object : pageSections.get(0)) {
+            numbers.put(object, number++);
+        }
+    }
+
+
+    private int firstPageSectionStart() {
+
+        return numbers.size() - documentLevel.size() - pageSections.get(0).size() + 1;
+    }
+
+
+    private static List<COSBase> concat(List<COSBase> first, List<COSBase> second) {
+
+        List<COSBase> result = new ArrayList<>(first);
+        result.addAll(second);
+
+        return result;
+    }
+
+
+    private byte[] serialize(COSBase object) throws IOException {
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        out.write(ascii(numbers.get(object) + " 0 obj\n"));
+
+        if (object instanceof COSStream) {
+            COSStream stream = (COSStream) object;
+            byte[] data;
+
+            try(InputStream raw = stream.createRawInputStream()) {
+                data = toByteArray(raw);
+            }
+
+            writeDictionary(stream, out, data.length);
+            out.write(ascii("\nstream\r\n"));
+            out.write(data);
+            out.write(ascii("\nendstream"));
+        } else {
+            writeDirect(object, out);
+        }
+
+        out.write(ascii("\nendobj\n"));
+
+        return out.toByteArray();
+    }
+
+
+    private void writeDirect(COSBase object, OutputStream out) throws IOException {
+
+        if (object instanceof COSObject) {
+            COSBase target = ((COSObject) object).getObject();
+            Integer number = target == null ? null : numbers.get(target);
+
+            out.write(ascii(number == null ? "null" : number + " 0 R"));
+        } else if (object instanceof COSStream) {
+            // Streams are always indirect
+            out.write(ascii(numbers.get(object) + " 0 R"));
+        } else if (object instanceof COSDictionary) {
+            writeDictionary((COSDictionary) object, out, -1);
+        } else if (object instanceof COSArray) {
+            out.write('[');
+
+            boolean first = true;
+
+            for (COSBase item : (COSArray) object) {
+                if (!first) {
+                    out.write(' ');
+                }
+
+                writeDirect(item, out);
+                first = false;
+            }
+
+            out.write(']');
+        } else if (object instanceof COSString) {
+            COSWriter.writeString((COSString) object, out);
+        } else if (object instanceof COSName) {
+            ((COSName) object).writePDF(out);
+        } else if (object instanceof COSInteger) {
+            ((COSInteger) object).writePDF(out);
+        } else if (object instanceof COSFloat) {
+            ((COSFloat) object).writePDF(out);
+        } else if (object instanceof COSBoolean) {
+            ((COSBoolean) object).writePDF(out);
+        } else {
+            out.write(ascii("null"));
+        }
+    }
+
+
+    private void writeDictionary(COSDictionary dictionary, OutputStream out, long streamLength) throws IOException {
+
+        out.write(ascii("<<"));
+
+        for (Map.Entry<COSName, COSBase> entry : dictionary.entrySet()) {
+            if (streamLength >= 0 && COSName.LENGTH.equals(entry.getKey())) {
+                continue;
+            }
+
+            entry.getKey().writePDF(out);
+            out.write(' ');
+            writeDirect(entry.getValue(), out);
+            out.write('\n');
+        }
+
+        if (streamLength >= 0) {
+            out.write(ascii("/Length " + streamLength));
+        }
+
+        out.write(ascii(">>"));
+    }
+
+
+    private static byte[] toByteArray(InputStream in) throws IOException {
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192]; // NOSONAR
+        int n;
+
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+
+        return out.toByteArray();
+    }
+
+
+    private static byte[] ascii(String text) {
+
+        return text.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+
+    private static String padded(long value) {
+
+        return String.format("%-" + NUMBER_WIDTH + "d", value);
+    }
+
+
+    private static int bitsNeeded(long value) {
+
+        return 64 - Long.numberOfLeadingZeros(value);
+    }
+
+    /**
+     * The byte layout of the linearized file. All offsets written into the file have a fixed width, so the layout is
+     * computed once with placeholder values, and then written with the actual ones.
+     */
+    private final class Layout {
+
+        private final byte[] header;
+        private final int linearizationNumber;
+        private final int hintNumber;
+        private final int firstSectionStart;
+        private final int totalObjects;
+
+        private final Map<COSBase, Long> offsets = new IdentityHashMap<>();
+
+        private long linearizationOffset;
+        private long firstXrefOffset;
+        private long hintOffset;
+        private long hintLength;
+        private long firstPageEnd;
+        private long mainXrefOffset;
+        private long mainXrefFirstEntry;
+        private long fileLength;
+
+        private Layout() {
+
+            String version = String.format(Locale.ROOT, "%.1f", document.getVersion());
+
+            // The comment of binary characters marks the file as binary for transfer tools
+            this.header = ascii("%PDF-" + version + "\n%\u00e2\u00e3\u00cf\u00d3\n");
+            this.firstSectionStart = firstPageSectionStart();
+            this.linearizationNumber = firstSectionStart;
+            this.hintNumber = firstSectionStart + 1 + documentLevel.size();
+            this.totalObjects = numbers.size() + 3;
+        }
+
+        void write(OutputStream out) throws IOException {
+
+            // First pass with placeholder offsets, to measure, then the actual pass
+            computeOffsets();
+            computeOffsets();
+
+            out.write(header);
+            out.write(linearizationDictionary());
+            out.write(firstPageXref());
+
+            for (COSBase object : documentLevel) {
+                out.write(serialized.get(object));
+            }
+
+            out.write(hintStream());
+
+            for (List<COSBase> section : pageSections) {
+                for (COSBase object : section) {
+                    out.write(serialized.get(object));
+                }
+            }
+
+            for (COSBase object : concat(shared, others)) {
+                out.write(serialized.get(object));
+            }
+
+            out.write(mainXref());
+        }
+
+
+        private void computeOffsets() throws IOException {
+
+            long offset = header.length;
+
+            linearizationOffset = offset;
+            offset += linearizationDictionary().length;
+            firstXrefOffset = offset;
+            offset += firstPageXref().length;
+
+            for (COSBase object : documentLevel) {
+                offsets.put(object, offset);
+                offset += serialized.get(object).length;
+            }
+
+            hintOffset = offset;
+            hintLength = hintStream().length;
+            offset += hintLength;
+
+            for (List<COSBase> section : pageSections) {
+                for (COSBase object : section) {
+                    offsets.put(object, offset);
+                    offset += serialized.get(object).length;
+                }
+
+                if (section == pageSections.get(0)) {
+                    firstPageEnd = offset;
+                }
+            }
+
+            for (COSBase object : concat(shared, others)) {
+                offsets.put(object, offset);
+                offset += serialized.get(object).length;
+            }
+
+            mainXrefOffset = offset;
+            mainXrefFirstEntry = offset + ascii("xref\n0 " + firstSectionStart).length;
+            fileLength = offset + mainXref().length;
+        }
+
+
+        private byte[] linearizationDictionary() {
+
+            return ascii(linearizationNumber + " 0 obj\n<</Linearized 1 /L " + padded(fileLength) + " /H ["
+                    + padded(hintOffset) + " " + padded(hintLength) + "] /O " + numbers.get(pages.get(0))
+                    + " /E " + padded(firstPageEnd) + " /N " + pages.size() + " /T " + padded(mainXrefFirstEntry)
+                    + ">>\nendobj\n");
+        }
+
+
+        private byte[] firstPageXref() throws IOException {
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+            out.write(ascii("xref\n" + firstSectionStart + " " + (totalObjects - firstSectionStart) + "\n"));
+            out.write(xrefEntry(linearizationOffset));
+
+            for (COSBase object : documentLevel) {
+                out.write(xrefEntry(offsets.get(object)));
+            }
+
+            out.write(xrefEntry(hintOffset));
+
+            for (COSBase object : pageSections.get(0)) {
+                out.write(xrefEntry(offsets.get(object)));
+            }
+
+            out.write(ascii("trailer\n<</Size " + totalObjects + " /Root " + numbers.get(catalog) + " 0 R"));
+
+            COSBase info = trailer.getDictionaryObject(COSName.INFO);
+
+            if (info != null && numbers.containsKey(info)) {
+                out.write(ascii(" /Info " + numbers.get(info) + " 0 R"));
+            }
+
+            COSBase id = trailer.getDictionaryObject(COSName.ID);
+
+            if (id instanceof COSArray) {
+                out.write(ascii(" /ID "));
+                writeDirect(id, out);
+            }
+
+            out.write(ascii(" /Prev " + padded(mainXrefOffset) + ">>\nstartxref\n0\n%%EOF\n"));
+
+            return out.toByteArray();
+        }
+
+
+        private byte[] mainXref() {
+
+            StringBuilder xref = new StringBuilder("xref\n0 " + firstSectionStart + "\n0000000000 65535 f\r\n");
+
+            List<COSBase> main = new ArrayList<>();
+
+            for (List<COSBase> section : pageSections.subList(1, pageSections.size())) {
+                main.addAll(section);
+            }
+
+            main.addAll(shared);
+            main.addAll(others);
+
+            for (COSBase object : main) {
+                xref.append(String.format("%010d 00000 n\r\n", offsets.getOrDefault(object, 0L)));
+            }
+
+            xref.append("trailer\n<</Size ").append(firstSectionStart).append(">>\nstartxref\n")
+                .append(firstXrefOffset).append("\n%%EOF\n");
+
+            return ascii(xref.toString());
+        }
+
+
+        private byte[] xrefEntry(Long offset) {
+
+            return ascii(String.format("%010d 00000 n\r\n", offset == null ? 0L : offset));
+        }
+
+
+        /**
+         * Hint tables give offsets as if the hint stream was not present.
+         */
+        private long hinted(COSBase object) {
+
+            long offset = offsets.getOrDefault(object, 0L);
+
+            return offset > hintOffset ? offset - hintLength : offset;
+        }
+
+
+        private long length(COSBase object) {
+
+            return serialized.get(object).length;
+        }
+
+
+        private byte[] hintStream() throws IOException {
+
+            BitWriter bits = new BitWriter();
+            writePageOffsetHints(bits);
+
+            int sharedOffset = bits.size();
+            writeSharedObjectHints(bits);
+
+            byte[] data = bits.toByteArray();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+            out.write(ascii(hintNumber + " 0 obj\n<</S " + sharedOffset + " /Length " + data.length
+                    + ">>\nstream\r\n"));
+            out.write(data);
+            out.write(ascii("\nendstream\nendobj\n"));
+
+            return out.toByteArray();
+        }
+
+
+        private void writePageOffsetHints(BitWriter bits) {
+
+            int n = pageSections.size();
+            long[] objectCounts = new long[n];
+            long[] pageLengths = new long[n];
+            long[] sharedCounts = new long[n];
+            long maxIdentifier = 0;
+
+            Map<COSBase, Integer> identifiers = sharedIdentifiers();
+
+            for (int i = 0; i < n; i++) {
+                objectCounts[i] = pageSections.get(i).size();
+                pageLengths[i] = pageSections.get(i).stream().mapToLong(this::length).sum();
+                sharedCounts[i] = pageSharedReferences.get(i).size();
+
+                for (COSBase object : pageSharedReferences.get(i)) {
+                    maxIdentifier = Math.max(maxIdentifier, identifiers.get(object));
+                }
+            }
+
+            long minObjects = Arrays.stream(objectCounts).min().orElse(0);
+            long minLength = Arrays.stream(pageLengths).min().orElse(0);
+            int objectBits = bitsNeeded(Arrays.stream(objectCounts).max().orElse(0) - minObjects);
+            int lengthBits = bitsNeeded(Arrays.stream(pageLengths).max().orElse(0) - minLength);
+            int sharedCountBits = bitsNeeded(Arrays.stream(sharedCounts).max().orElse(0));
+            int identifierBits = bitsNeeded(maxIdentifier);
+
+            bits.write(minObjects, 32); // NOSONAR - field widths of the standard
+            bits.write(hinted(pages.get(0)), 32); // NOSONAR
+            bits.write(objectBits, 16); // NOSONAR
+            bits.write(minLength, 32); // NOSONAR
+            bits.write(lengthBits, 16); // NOSONAR
+            bits.write(0, 32); // NOSONAR - content streams are located as the whole page
+            bits.write(0, 16); // NOSONAR
+            bits.write(minLength, 32); // NOSONAR
+            bits.write(lengthBits, 16); // NOSONAR
+            bits.write(sharedCountBits, 16); // NOSONAR
+            bits.write(identifierBits, 16); // NOSONAR
+            bits.write(0, 16); // NOSONAR - all shared objects are needed from the start of the page
+            bits.write(SHARED_DENOMINATOR, 16); // NOSONAR
+
+            for (long count : objectCounts) {
+                bits.write(count - minObjects, objectBits);
+            }
+
+            bits.flush();
+
+            for (long pageLength : pageLengths) {
+                bits.write(pageLength - minLength, lengthBits);
+            }
+
+            bits.flush();
+
+            for (long count : sharedCounts) {
+                bits.write(count, sharedCountBits);
+            }
+
+            bits.flush();
+
+            for (List<COSBase> references : pageSharedReferences) {
+                for (COSBase object : references) {
+                    bits.write(identifiers.get(object), identifierBits);
+                }
+            }
+
+            bits.flush();
+
+            // The numerators and the content stream offsets have a width of zero bits
+
+            for (long pageLength : pageLengths) {
+                bits.write(pageLength - minLength, lengthBits);
+            }
+
+            bits.flush();
+        }
+
+
+        private Map<COSBase, Integer> sharedIdentifiers() {
+
+            Map<COSBase, Integer> identifiers = new IdentityHashMap<>();
+
+            for (COSBase object : concat(pageSections.get(0), shared)) {
+                identifiers.put(object, identifiers.size());
+            }
+
+            return identifiers;
+        }
+
+
+        private void writeSharedObjectHints(BitWriter bits) {
+
+            List<COSBase> groups = concat(pageSections.get(0), shared);
+            long minLength = groups.stream().mapToLong(this::length).min().orElse(0);
+            int lengthBits = bitsNeeded(groups.stream().mapToLong(this::length).max().orElse(0) - minLength);
+
+            bits.write(shared.isEmpty() ? 0 : numbers.get(shared.get(0)), 32); // NOSONAR
+            bits.write(shared.isEmpty() ? 0 : hinted(shared.get(0)), 32); // NOSONAR
+            bits.write(pageSections.get(0).size(), 32); // NOSONAR
+            bits.write(groups.size(), 32); // NOSONAR
+            bits.write(0, 16); // NOSONAR - every group is a single object
+            bits.write(minLength, 32); // NOSONAR
+            bits.write(lengthBits, 16); // NOSONAR
+
+            for (COSBase object : groups) {
+                bits.write(length(object) - minLength, lengthBits);
+            }
+
+            bits.flush();
+
+            for (int i = 0; i < groups.size(); i++) {
+                bits.write(0, 1); // no MD5 signature
+            }
+
+            bits.flush();
+        }
+    }
+
+    /**
+     * Writes values of arbitrary bit widths, most significant bit first.
+     */
+    private static final class BitWriter {
+
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private int current;
+        private int count;
+
+        void write(long value, int width) {
+
+            for (int i = width - 1; i >= 0; i--) {
+                current = current << 1 | (int) (value >>> i & 1);
+
+                if (++count == 8) { // NOSONAR
+                    out.write(current);
+                    current = 0;
+                    count = 0;
+                }
+            }
+        }
+
+
+        /**
+         * Pads the last byte with zero bits, so that the next value starts at a byte boundary.
+         */
+        void flush() {
+
+            if (count > 0) {
+                write(0, 8 - count); // NOSONAR
+            }
+        }
+
+
+        int size() {
+
+            flush();
+
+            return out.size();
+        }
+
+
+        byte[] toByteArray() {
+
+            flush();
+
+            return out.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package net.contargo.print.pdf;
+
+import org.apache.pdfbox.io.RandomAccessRead;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+
+/**
+ * A PDFBox random-access source, backed by a memory-mapped file.
+ *
+ * <p>The file content is paged in lazily by the operating system, and shared through the page cache between
+ * concurrent builds and processes, instead of being copied onto the heap for every build. The mapping itself is
+ * released by the garbage collector, after the source is closed.</p>
+ *
+ * @since  0.6
+ */
+final class MappedRandomAccessRead implements RandomAccessRead {
+
+    private ByteBuffer buffer;
+
+    private MappedRandomAccessRead(ByteBuffer buffer) {
+
+        this.buffer = buffer;
+    }
+
+    /**
+     * Maps the given file read-only into memory.
+     *
+     * @param  file  to map, must not be larger than {@link Integer#MAX_VALUE} bytes
+     *
+     * @return  a new random-access source for the file
+     *
+     * @throws  IOException  in case the file cannot be opened or mapped
+     */
+    static MappedRandomAccessRead map(Path file) throws IOException {
+
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            // The mapping stays valid after the channel is closed
+            return new MappedRandomAccessRead(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+
+    @Override
+    public int read() throws IOException {
+
+        ByteBuffer b = checkOpen();
+
+        return b.hasRemaining() ? (b.get() & 0xff) : -1;
+    }
+
+
+    @Override
+    public int read(byte[] b) throws IOException {
+
+        return read(b, 0, b.length);
+    }
+
+
+    @Override
+    public int read(byte[] b, int offset, int length) throws IOException {
+
+        ByteBuffer buf = checkOpen();
+
+        if (!buf.hasRemaining()) {
+            return -1;
+        }
+
+        int n = Math.min(length, buf.remaining());
+        buf.get(b, offset, n);
+
+        return n;
+    }
+
+
+    @Override
+    public long getPosition() throws IOException {
+
+        return checkOpen().position();
+    }
+
+
+    @Override
+    public void seek(long position) throws IOException {
+
+        ByteBuffer b = checkOpen();
+
+        if (position < 0) {
+            throw new IOException("Invalid position " + position);
+        }
+
+        b.position((int) Math.min(position, b.limit()));
+    }
+
+
+    @Override
+    public long length() throws IOException {
+
+        return checkOpen().limit();
+    }
+
+
+    @Override
+    public boolean isClosed() {
+
+        return buffer == null;
+    }
+
+
+    @Override
+    public int peek() throws IOException {
+
+        ByteBuffer b = checkOpen();
+
+        return b.hasRemaining() ? (b.get(b.position()) & 0xff) : -1;
+    }
+
+
+    @Override
+    public void rewind(int bytes) throws IOException {
+
+        seek(getPosition() - bytes);
+    }
+
+
+    @Override
+    public byte[] readFully(int length) throws IOException {
+
+        ByteBuffer b = checkOpen();
+
+        if (b.remaining() < length) {
+            throw new EOFException("Premature end of file, expected " + length + " bytes");
+        }
+
+        byte[] bytes = new byte[length];
+        b.get(bytes);
+
+        return bytes;
+    }
+
+
+    @Override
+    public boolean isEOF() throws IOException {
+
+        return !checkOpen().hasRemaining();
+    }
+
+
+    @Override
+    public int available() throws IOException {
+
+        return checkOpen().remaining();
+    }
+
+
+    @Override
+    public void close() {
+
+        buffer = null;
+    }
+
+
+    private ByteBuffer checkOpen() throws IOException {
+
+        if (buffer == null) {
+            throw new IOException("The mapped file is already closed");
+        }
+
+        return buffer;
+    }
+}
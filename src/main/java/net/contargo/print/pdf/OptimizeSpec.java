@@ -0,0 +1,105 @@
+package net.contargo.print.pdf;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+
+/**
+ * Describing how to optimize a PDF document, before it is saved.
+ *
+ * <p>Templates exported by design tools often carry fonts, images and color profiles that no page uses anymore, the
+ * same embedded file many times, and private data of the tool. The optimization removes resources that are not used
+ * by any content stream, merges byte-identical streams into one object, and strips the selected metadata:</p>
+ *
+ * <pre><code>
+        OptimizeSpec spec = OptimizeSpec.defaults()
+                                        .withStrippedMetadata(OptimizeSpec.Metadata.PIECE_INFO,
+                                            OptimizeSpec.Metadata.THUMBNAILS);
+   </code></pre>
+ *
+ * <p>Optimizing a template once, with {@link PDFBuilder.Config#withTemplateOptimization(OptimizeSpec)}, carries the
+ * savings over to every document built from it. {@link BuildablePDF#withOptimizedOutput(OptimizeSpec)} optimizes a
+ * single built document instead.</p>
+ *
+ * @since  0.6
+ */
+public final class OptimizeSpec {
+
+    /**
+     * The metadata that can be stripped from a document.
+     */
+    public enum Metadata {
+
+        /**
+         * The document information dictionary, with title, author, producer and dates.
+         */
+        DOCUMENT_INFO,
+
+        /**
+         * The XMP metadata streams of the document and its pages, images and forms. Note that PDF/A documents require
+         * the document metadata.
+         */
+        XMP,
+
+        /**
+         * The private data of the application that created the document, like the editable originals of a design
+         * tool.
+         */
+        PIECE_INFO,
+
+        /**
+         * The page thumbnail images, which viewers can compute themselves.
+         */
+        THUMBNAILS
+    }
+
+    private final Set<Metadata> strippedMetadata = EnumSet.noneOf(Metadata.class);
+
+    private OptimizeSpec() {
+
+        // use factory method
+    }
+
+    /**
+     * Creates a new specification, removing unused resources and merging identical streams, without stripping any
+     * metadata.
+     *
+     * @return  this specification for chaining
+     */
+    public static OptimizeSpec defaults() {
+
+        return new OptimizeSpec();
+    }
+
+
+    /**
+     * Adds metadata to strip from the document.
+     *
+     * @param  metadata  to strip, never {@code null}
+     *
+     * @return  this specification for chaining
+     */
+    public OptimizeSpec withStrippedMetadata(Metadata... metadata) {
+
+        if (metadata == null) {
+            throw new IllegalArgumentException("The metadata must not be null");
+        }
+
+        Collections.addAll(strippedMetadata, metadata);
+
+        return this;
+    }
+
+
+    boolean isStripped(Metadata metadata) {
+
+        return strippedMetadata.contains(metadata);
+    }
+
+
+    void addTo(BuildKey key) {
+
+        key.add(strippedMetadata.toString());
+    }
+}
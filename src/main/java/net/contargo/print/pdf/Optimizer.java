@@ -0,0 +1,723 @@
+package net.contargo.print.pdf;
+
+import org.apache.pdfbox.contentstream.operator.Operator;
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.io.IOUtils;
+import org.apache.pdfbox.pdfparser.PDFStreamParser;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * Optimizes a document in place, before it is saved: removes resources not used by any content stream, merges
+ * byte-identical streams and other duplicate objects, and strips the metadata selected by an {@link OptimizeSpec}.
+ *
+ * <p>Objects that are no longer referenced afterwards, like the fonts and images of removed resources, are not written
+ * by {@link PDDocument#save(java.io.OutputStream)}. Resource dictionaries are pruned only after all content streams
+ * using them are known, since pages, forms and annotations often share one resource dictionary.</p>
+ *
+ * @since  0.6
+ */
+final class Optimizer {
+
+    private static final COSName[] RESOURCE_CATEGORIES = {
+        COSName.FONT, COSName.XOBJECT, COSName.EXT_G_STATE, COSName.COLORSPACE, COSName.PATTERN, COSName.SHADING,
+        COSName.PROPERTIES
+    };
+
+    private static final COSName[] APPEARANCES = { COSName.N, COSName.R, COSName.D };
+
+    private static final COSName PIECE_INFO = COSName.getPDFName("PieceInfo");
+    private static final COSName TYPE3 = COSName.getPDFName("Type3");
+    private static final COSName FIELD_TYPE = COSName.getPDFName("FT");
+
+    // Used by the device colour operators without being named in the content, never unused
+    private static final Set<COSName> DEFAULT_COLOR_SPACES = new HashSet<>(Arrays.asList(COSName.DEFAULT_RGB,
+                COSName.DEFAULT_GRAY, COSName.DEFAULT_CMYK));
+
+    private static final Set<COSName> UNIQUE_TYPES = new HashSet<>(Arrays.asList(COSName.CATALOG, COSName.PAGES,
+                COSName.PAGE, COSName.ANNOT, COSName.STRUCT_TREE_ROOT, COSName.getPDFName("StructElem"),
+                COSName.OUTLINES, COSName.SIG));
+
+    private final PDDocument document;
+    private final OptimizeSpec spec;
+
+    // Used names per resource category dictionary, these may be shared by several resource dictionaries
+    private final Map<COSDictionary, Set<COSName>> usedNames = new IdentityHashMap<>();
+    private final Set<COSDictionary> kept = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Map<COSStream, Set<COSDictionary>> visited = new IdentityHashMap<>();
+
+    Optimizer(PDDocument document, OptimizeSpec spec) {
+
+        this.document = document;
+        this.spec = spec;
+    }
+
+    /**
+     * Optimizes the document.
+     *
+     * @throws  IOException  in case reading a stream fails
+     */
+    void optimize() throws IOException {
+
+        stripMetadata();
+        removeUnusedResources();
+        mergeDuplicateObjects();
+    }
+
+
+    private void stripMetadata() {
+
+        if (spec.isStripped(OptimizeSpec.Metadata.DOCUMENT_INFO)) {
+            document.getDocument().getTrailer().removeItem(COSName.INFO);
+        }
+
+        List<COSName> keys = new ArrayList<>();
+
+        if (spec.isStripped(OptimizeSpec.Metadata.XMP)) {
+            keys.add(COSName.METADATA);
+        }
+
+        if (spec.isStripped(OptimizeSpec.Metadata.PIECE_INFO)) {
+            keys.add(PIECE_INFO);
+        }
+
+        if (spec.isStripped(OptimizeSpec.Metadata.THUMBNAILS)) {
+            keys.add(COSName.THUMB);
+        }
+
+        if (keys.isEmpty()) {
+            return;
+        }
+
+        for (COSBase container : containers()) {
+            if (container instanceof COSDictionary) {
+                for (COSName key : keys) {
+                    ((COSDictionary) container).removeItem(key);
+                }
+            }
+        }
+    }
+
+
+    private void removeUnusedResources() throws IOException {
+
+        for (PDPage page : document.getPages()) {
+            COSDictionary resources = page.getResources() == null ? null : page.getResources().getCOSObject();
+
+            collectUsedNames(new PDFStreamParser(page), resources);
+
+            COSBase annotations = page.getCOSObject().getDictionaryObject(COSName.ANNOTS);
+
+            if (annotations instanceof COSArray) {
+                for (COSBase annotation : (COSArray) annotations) {
+                    visitAppearances(dereference(annotation));
+                }
+            }
+        }
+
+        // Form fields draw their appearance with the default resources, when they are filled
+        COSDictionary acroForm = document.getDocumentCatalog().getCOSObject().getCOSDictionary(COSName.ACRO_FORM);
+
+        if (acroForm != null) {
+            keepAll(acroForm.getCOSDictionary(COSName.DR));
+        }
+
+        for (Map.Entry<COSDictionary, Set<COSName>> entry : usedNames.entrySet()) {
+            if (!kept.contains(entry.getKey())) {
+                for (COSName name : new ArrayList<>(entry.getKey().keySet())) {
+                    if (!entry.getValue().contains(name)) {
+                        entry.getKey().removeItem(name);
+                    }
+                }
+            }
+        }
+    }
+
+
+    private void visitAppearances(COSBase annotation) throws IOException {
+
+        if (!(annotation instanceof COSDictionary)) {
+            return;
+        }
+
+        COSDictionary appearance = ((COSDictionary) annotation).getCOSDictionary(COSName.AP);
+
+        if (appearance == null) {
+            return;
+        }
+
+        for (COSName key : APPEARANCES) {
+            COSBase value = appearance.getDictionaryObject(key);
+
+            if (value instanceof COSStream) {
+                visitStream((COSStream) value, null);
+            } else if (value instanceof COSDictionary) {
+                // Appearance states, like on and off of a check box
+                for (COSBase state : ((COSDictionary) value).getValues()) {
+                    if (dereference(state) instanceof COSStream) {
+                        visitStream((COSStream) dereference(state), null);
+                    }
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Visits a form, pattern or glyph content stream, which uses the given resources unless it has its own.
+     */
+    private void visitStream(COSStream stream, COSDictionary inherited) throws IOException {
+
+        COSDictionary own = stream.getCOSDictionary(COSName.RESOURCES);
+        COSDictionary resources = own == null ? inherited : own;
+
+        Set<COSDictionary> visitedResources = visited.computeIfAbsent(stream,
+                s -> Collections.newSetFromMap(new IdentityHashMap<>()));
+
+        // A null resource dictionary is visited only once as well
+        if (!visitedResources.add(resources == null ? stream : resources)) {
+            return;
+        }
+
+        byte[] content;
+
+        try(InputStream in = stream.createInputStream()) {
+            content = IOUtils.toByteArray(in);
+        }
+
+        collectUsedNames(new PDFStreamParser(content), resources);
+    }
+
+
+    private void collectUsedNames(PDFStreamParser parser, COSDictionary resources) throws IOException {
+
+        if (resources == null) {
+            return;
+        }
+
+        for (COSName category : RESOURCE_CATEGORIES) {
+            COSDictionary names = resources.getCOSDictionary(category);
+
+            if (names != null) {
+                usedNames.computeIfAbsent(names,
+                    n -> COSName.COLORSPACE.equals(category) ? new HashSet<>(DEFAULT_COLOR_SPACES) : new HashSet<>());
+            }
+        }
+
+        List<Object> tokens;
+
+        try {
+            parser.parse();
+            tokens = parser.getTokens();
+        } catch (IOException e) {
+            // Without knowing the names used, all resources are kept
+            keepAll(resources);
+
+            return;
+        }
+
+        List<Object> operands = new ArrayList<>();
+
+        for (Object token : tokens) {
+            if (token instanceof Operator) {
+                useOperands((Operator) token, operands, resources);
+                operands.clear();
+            } else {
+                operands.add(token);
+            }
+        }
+    }
+
+
+    private void useOperands(Operator operator, List<Object> operands, COSDictionary resources) throws IOException {
+
+        Object first = operands.isEmpty() ? null : operands.get(0);
+        Object last = operands.isEmpty() ? null : operands.get(operands.size() - 1);
+
+        switch (operator.getName()) {
+            case "Tf":
+                useFont(resources, use(resources, COSName.FONT, first));
+                break;
+
+            case "Do":
+                useXObject(resources, use(resources, COSName.XOBJECT, first));
+                break;
+
+            case "gs":
+                useGraphicsState(resources, use(resources, COSName.EXT_G_STATE, first));
+                break;
+
+            case "cs":
+            case "CS":
+                use(resources, COSName.COLORSPACE, first);
+                break;
+
+            case "scn":
+            case "SCN":
+                usePattern(resources, use(resources, COSName.PATTERN, last));
+                break;
+
+            case "sh":
+                use(resources, COSName.SHADING, first);
+                break;
+
+            case "BDC":
+            case "DP":
+                use(resources, COSName.PROPERTIES, operands.size() > 1 ? operands.get(1) : null);
+                break;
+
+            case "BI":
+                useInlineImage(resources, operator.getImageParameters());
+                break;
+
+            default:
+                break;
+        }
+    }
+
+
+    /**
+     * Marks the given name as used in the given resource category, and returns the resource.
+     */
+    private COSBase use(COSDictionary resources, COSName category, Object name) {
+
+        COSDictionary names = resources.getCOSDictionary(category);
+
+        if (names == null || !(name instanceof COSName)) {
+            return null;
+        }
+
+        usedNames.get(names).add((COSName) name);
+
+        return names.getDictionaryObject((COSName) name);
+    }
+
+
+    private void useFont(COSDictionary resources, COSBase font) throws IOException {
+
+        if (!(font instanceof COSDictionary) || !TYPE3.equals(((COSDictionary) font).getCOSName(COSName.SUBTYPE))) {
+            return;
+        }
+
+        COSDictionary glyphs = ((COSDictionary) font).getCOSDictionary(COSName.CHAR_PROCS);
+        COSDictionary own = ((COSDictionary) font).getCOSDictionary(COSName.RESOURCES);
+
+        if (glyphs != null) {
+            for (COSBase glyph : glyphs.getValues()) {
+                if (dereference(glyph) instanceof COSStream) {
+                    visitStream((COSStream) dereference(glyph), own == null ? resources : own);
+                }
+            }
+        }
+    }
+
+
+    private void useXObject(COSDictionary resources, COSBase xObject) throws IOException {
+
+        if (xObject instanceof COSStream
+                && COSName.FORM.equals(((COSStream) xObject).getCOSName(COSName.SUBTYPE))) {
+            visitStream((COSStream) xObject, resources);
+        }
+    }
+
+
+    private void useGraphicsState(COSDictionary resources, COSBase graphicsState) throws IOException {
+
+        if (!(graphicsState instanceof COSDictionary)) {
+            return;
+        }
+
+        COSBase softMask = ((COSDictionary) graphicsState).getDictionaryObject(COSName.SMASK);
+
+        if (softMask instanceof COSDictionary) {
+            COSBase group = ((COSDictionary) softMask).getDictionaryObject(COSName.G);
+
+            if (group instanceof COSStream) {
+                visitStream((COSStream) group, resources);
+            }
+        }
+    }
+
+
+    private void usePattern(COSDictionary resources, COSBase pattern) throws IOException {
+
+        // Tiling patterns are content streams, shading patterns are dictionaries
+        if (pattern instanceof COSStream) {
+            visitStream((COSStream) pattern, resources);
+        }
+    }
+
+
+    private void useInlineImage(COSDictionary resources, COSDictionary parameters) {
+
+        if (parameters != null) {
+            use(resources, COSName.COLORSPACE, parameters.getDictionaryObject(COSName.CS, COSName.COLORSPACE));
+        }
+    }
+
+
+    private void keepAll(COSDictionary resources) {
+
+        if (resources == null) {
+            return;
+        }
+
+        for (COSName category : RESOURCE_CATEGORIES) {
+            COSDictionary names = resources.getCOSDictionary(category);
+
+            if (names != null) {
+                kept.add(names);
+            }
+        }
+    }
+
+
+    /**
+     * Replaces all references to an object by references to the first object with the same content. Merging objects
+     * can make the objects referencing them identical as well, like images with the same decode parameters, so this
+     * is repeated until no more duplicates are found.
+     *
+     * @throws  IOException  in case reading a stream fails
+     */
+    void mergeDuplicateObjects() throws IOException {
+
+        while (mergeDuplicateObjectsOnce()) {
+            // repeat
+        }
+    }
+
+
+    private boolean mergeDuplicateObjectsOnce() throws IOException {
+
+        List<COSBase> containers = containers();
+        Set<COSBase> interactive = interactiveObjects();
+
+        // Reference an object by the first reference found for it
+        Map<COSBase, COSBase> references = new IdentityHashMap<>();
+        List<COSBase> objects = new ArrayList<>();
+
+        for (COSBase container : containers) {
+            for (COSBase value : values(container)) {
+                COSBase target = indirectTarget(value);
+
+                if (target != null && !references.containsKey(target)) {
+                    references.put(target, value);
+                    objects.add(target);
+                }
+            }
+        }
+
+        Map<List<Object>, List<COSBase>> candidates = new HashMap<>();
+        Map<COSBase, COSBase> replacements = new IdentityHashMap<>();
+
+        for (COSBase object : objects) {
+            if (!interactive.contains(object) && isMergeable(object)) {
+                List<COSBase> same = candidates.computeIfAbsent(signature(object), k -> new ArrayList<>());
+                COSBase original = same.stream().filter(o -> isSameObject(o, object)).findFirst().orElse(null);
+
+                if (original == null) {
+                    same.add(object);
+                } else {
+                    replacements.put(object, original);
+                }
+            }
+        }
+
+        for (COSBase container : containers) {
+            if (container instanceof COSDictionary) {
+                COSDictionary dictionary = (COSDictionary) container;
+
+                for (COSName key : new ArrayList<>(dictionary.keySet())) {
+                    COSBase original = replacements.get(indirectTarget(dictionary.getItem(key)));
+
+                    if (original != null) {
+                        dictionary.setItem(key, references.get(original));
+                    }
+                }
+            } else {
+                COSArray array = (COSArray) container;
+
+                for (int i = 0; i < array.size(); i++) {
+                    COSBase original = replacements.get(indirectTarget(array.get(i)));
+
+                    if (original != null) {
+                        array.set(i, references.get(original));
+                    }
+                }
+            }
+        }
+
+        return !replacements.isEmpty();
+    }
+
+
+    /**
+     * Objects of the document structure must stay unique, like pages and form fields, or are unique by their parent
+     * reference.
+     */
+    private static boolean isMergeable(COSBase object) {
+
+        if (object instanceof COSArray) {
+            return true;
+        }
+
+        if (!(object instanceof COSDictionary)) {
+            return false;
+        }
+
+        COSDictionary dictionary = (COSDictionary) object;
+
+        return !dictionary.containsKey(COSName.PARENT) && !dictionary.containsKey(COSName.P)
+            && !dictionary.containsKey(FIELD_TYPE) && !UNIQUE_TYPES.contains(dictionary.getCOSName(COSName.TYPE));
+    }
+
+
+    private static List<Object> signature(COSBase object) throws IOException {
+
+        return Arrays.asList(hashContent(object), object instanceof COSStream ? digest((COSStream) object) : null);
+    }
+
+
+    /**
+     * A hash of the content of the given object, consistent with {@link #isSameObject(COSBase, COSBase)}.
+     */
+    private static int hashContent(COSBase object) {
+
+        if (object instanceof COSDictionary) {
+            int hash = 0;
+
+            for (Map.Entry<COSName, COSBase> entry : ((COSDictionary) object).entrySet()) {
+                if (!(object instanceof COSStream && COSName.LENGTH.equals(entry.getKey()))) {
+                    hash += entry.getKey().hashCode() ^ hash(entry.getValue());
+                }
+            }
+
+            return hash;
+        } else if (object instanceof COSArray) {
+            int hash = 1;
+
+            for (COSBase item : (COSArray) object) {
+                hash = 31 * hash + hash(item); // NOSONAR
+            }
+
+            return hash;
+        }
+
+        return object == null ? 0 : object.hashCode();
+    }
+
+
+    /**
+     * A hash of the given value, consistent with {@link #isSame(COSBase, COSBase)}.
+     */
+    private static int hash(COSBase value) {
+
+        COSBase target = indirectTarget(value);
+
+        return target == null ? hashContent(value) : System.identityHashCode(target);
+    }
+
+
+    private static String digest(COSStream stream) throws IOException {
+
+        try(InputStream raw = stream.createRawInputStream()) {
+            return ContentHash.sha256(raw);
+        }
+    }
+
+
+    /**
+     * Compares the content of two objects, the data of streams is compared by the signature.
+     */
+    private static boolean isSameObject(COSBase first, COSBase second) {
+
+        if (first instanceof COSStream != second instanceof COSStream) {
+            return false;
+        } else if (first instanceof COSDictionary && second instanceof COSDictionary) {
+            COSDictionary a = (COSDictionary) first;
+            COSDictionary b = (COSDictionary) second;
+
+            Set<COSName> keys = new HashSet<>(a.keySet());
+            keys.addAll(b.keySet());
+
+            if (first instanceof COSStream) {
+                keys.remove(COSName.LENGTH);
+            }
+
+            return keys.stream().allMatch(key -> isSame(a.getItem(key), b.getItem(key)));
+        } else if (first instanceof COSArray && second instanceof COSArray) {
+            COSArray a = (COSArray) first;
+            COSArray b = (COSArray) second;
+
+            if (a.size() != b.size()) {
+                return false;
+            }
+
+            for (int i = 0; i < a.size(); i++) {
+                if (!isSame(a.get(i), b.get(i))) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        return false;
+    }
+
+
+    /**
+     * Compares direct values by content, and indirect objects by identity.
+     */
+    private static boolean isSame(COSBase first, COSBase second) {
+
+        COSBase firstTarget = indirectTarget(first);
+        COSBase secondTarget = indirectTarget(second);
+
+        if (firstTarget != null || secondTarget != null) {
+            return firstTarget == secondTarget;
+        } else if (first instanceof COSDictionary || first instanceof COSArray) {
+            return isSameObject(first, second);
+        }
+
+        return first == null ? second == null : first.equals(second);
+    }
+
+
+    /**
+     * Collects all dictionaries, streams and arrays reachable from the trailer.
+     */
+    private List<COSBase> containers() {
+
+        return reachable(Collections.singletonList(document.getDocument().getTrailer()), false);
+    }
+
+
+    /**
+     * Collects the annotations and form fields, and everything reachable from them, like their appearance streams.
+     * Viewers and form filling tell them apart by their identity, so none of them is merged.
+     */
+    private Set<COSBase> interactiveObjects() {
+
+        List<COSBase> roots = new ArrayList<>();
+
+        for (PDPage page : document.getPages()) {
+            COSBase annotations = page.getCOSObject().getDictionaryObject(COSName.ANNOTS);
+
+            if (annotations != null) {
+                roots.add(annotations);
+            }
+        }
+
+        COSDictionary acroForm = document.getDocumentCatalog().getCOSObject().getCOSDictionary(COSName.ACRO_FORM);
+        COSBase fields = acroForm == null ? null : acroForm.getDictionaryObject(COSName.FIELDS);
+
+        if (fields != null) {
+            roots.add(fields);
+        }
+
+        Set<COSBase> result = Collections.newSetFromMap(new IdentityHashMap<>());
+        result.addAll(reachable(roots, true));
+
+        return result;
+    }
+
+
+    /**
+     * @param  roots  to start from
+     * @param  local  whether to stop at the document structure, the pages referenced by annotations and actions,
+     *                instead of collecting the whole document
+     */
+    private static List<COSBase> reachable(List<COSBase> roots, boolean local) {
+
+        List<COSBase> result = new ArrayList<>();
+        Set<COSBase> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<COSBase> queue = new ArrayDeque<>(roots);
+
+        while (!queue.isEmpty()) {
+            COSBase container = queue.poll();
+
+            if (!seen.add(container)) {
+                continue;
+            }
+
+            result.add(container);
+
+            for (COSBase value : values(container)) {
+                COSBase target = dereference(value);
+
+                if ((target instanceof COSDictionary && !(local && isStructure((COSDictionary) target)))
+                        || target instanceof COSArray) {
+                    queue.add(target);
+                }
+            }
+        }
+
+        return result;
+    }
+
+
+    private static boolean isStructure(COSDictionary dictionary) {
+
+        COSName type = dictionary.getCOSName(COSName.TYPE);
+
+        return COSName.PAGE.equals(type) || COSName.PAGES.equals(type) || COSName.CATALOG.equals(type)
+            || COSName.STRUCT_TREE_ROOT.equals(type) || COSName.getPDFName("StructElem").equals(type);
+    }
+
+
+    private static Iterable<COSBase> values(COSBase container) {
+
+        if (container instanceof COSDictionary) {
+            return new ArrayList<>(((COSDictionary) container).getValues());
+        }
+
+        List<COSBase> values = new ArrayList<>();
+        ((COSArray) container).forEach(values::add);
+
+        return values;
+    }
+
+
+    /**
+     * Returns the object written as indirect object for the given value, or {@code null} for direct values. Copied
+     * objects, like the ones appended from another document, are referenced without a {@link COSObject}.
+     */
+    private static COSBase indirectTarget(COSBase value) {
+
+        if (value instanceof COSObject) {
+            return ((COSObject) value).getObject();
+        } else if (value instanceof COSStream || (value instanceof COSDictionary && !value.isDirect())) {
+            return value;
+        }
+
+        return null;
+    }
+
+
+    private static COSBase dereference(COSBase value) {
+
+        return value instanceof COSObject ? ((COSObject) value).getObject() : value;
+    }
+}
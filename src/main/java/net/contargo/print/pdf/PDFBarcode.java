@@ -0,0 +1,53 @@
+package net.contargo.print.pdf;
+
+/**
+ * A barcode, providing its encoded matrix, and position and size information for drawing.
+ *
+ * @since  0.6
+ */
+public final class PDFBarcode {
+
+    private final BarcodeMatrix matrix;
+    private final int x;
+    private final int y;
+    private final int width;
+    private final int height;
+
+    public PDFBarcode(BarcodeMatrix matrix, int x, int y, int width, int height) {
+
+        this.matrix = matrix;
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+    }
+
+    public BarcodeMatrix getMatrix() {
+
+        return matrix;
+    }
+
+
+    public int getX() {
+
+        return x;
+    }
+
+
+    public int getY() {
+
+        return y;
+    }
+
+
+    public int getWidth() {
+
+        return width;
+    }
+
+
+    public int getHeight() {
+
+        return height;
+    }
+}
@@ -1,8 +1,17 @@
 package net.contargo.print.pdf;
 
+import org.apache.pdfbox.contentstream.PDContentStream;
 import org.apache.pdfbox.contentstream.operator.Operator;
 import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSNumber;
 import org.apache.pdfbox.cos.COSString;
+import org.apache.pdfbox.io.IOUtils;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.multipdf.PDFMergerUtility;
+import org.apache.pdfbox.pdfparser.PDFParser;
 import org.apache.pdfbox.pdfparser.PDFStreamParser;
 import org.apache.pdfbox.pdfwriter.ContentStreamWriter;
 import org.apache.pdfbox.pdmodel.PDDocument;
@@ -11,24 +20,43 @@ import org.apache.pdfbox.pdmodel.PDPage;
 import org.apache.pdfbox.pdmodel.PDPageContentStream;
 import org.apache.pdfbox.pdmodel.PDPageContentStream.AppendMode;
 import org.apache.pdfbox.pdmodel.PDPageTree;
+import org.apache.pdfbox.pdmodel.PDResources;
 import org.apache.pdfbox.pdmodel.common.PDRectangle;
 import org.apache.pdfbox.pdmodel.common.PDStream;
+import org.apache.pdfbox.pdmodel.font.PDFont;
+import org.apache.pdfbox.pdmodel.graphics.PDXObject;
+import org.apache.pdfbox.pdmodel.graphics.form.PDFormXObject;
 import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.apache.pdfbox.rendering.ImageType;
+
+import java.awt.Color;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
+import java.nio.file.Files;
 import java.nio.file.Path;
-
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
 
+import javax.imageio.ImageIO;
+
 
 /**
  * A PDF renderer implementation using the Apache PDFBox project.
@@ -44,70 +72,208 @@ public class PDFBoxRenderer implements PDFRenderer {
     // http://partners.adobe.com/public/developer/en/pdf/PDFReference.pdf
     private static final String SHOW_STRING_OP = "Tj";
     private static final String SHOW_MORE_STRINGS_OP = "TJ";
+    private static final String SET_FONT_OP = "Tf";
+
+    private static final long DEFAULT_MEMORY_MAPPING_THRESHOLD = 1024L * 1024L; // NOSONAR
+    private static final long CONCAT_MEMORY_LIMIT = 16L * 1024L * 1024L; // NOSONAR
+    private static final int DOCUMENT_ID_LENGTH = 16;
+    private static final int DEADLINE_CHECK_INTERVAL = 256;
+
+    private final long memoryMappingThreshold;
+    private final GlyphWidthCache glyphWidths = new GlyphWidthCache();
+
+    /**
+     * Creates a renderer that memory-maps path templates of 1 MB or larger.
+     */
+    public PDFBoxRenderer() {
+
+        this(DEFAULT_MEMORY_MAPPING_THRESHOLD);
+    }
+
+
+    /**
+     * Creates a renderer that memory-maps path templates from the given file size on. Mapped templates are paged in
+     * by the operating system, and shared between concurrent builds, instead of being read onto the heap.
+     *
+     * @param  memoryMappingThreshold  file size in bytes, from which templates are mapped, use {@link Long#MAX_VALUE}
+     *                                 to never map templates
+     *
+     * @since  0.6
+     */
+    public PDFBoxRenderer(long memoryMappingThreshold) {
+
+        this.memoryMappingThreshold = memoryMappingThreshold;
+    }
 
     @Override
     public byte[] renderFromTemplate(Path template) throws RenderException {
 
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RenderBuffer out = RenderBuffer.acquire(template.toFile().length());
 
-        try(PDDocument doc = PDDocument.load(template.toFile())) {
+        try(PDDocument doc = loadTemplate(template)) {
             doc.save(out);
+
+            return out.toByteArray();
         } catch (IOException e) {
             throw new RenderException("Parsing the template failed.", e);
+        } finally {
+            out.release();
+        }
+    }
+
+
+    private PDDocument loadTemplate(Path template) throws IOException {
+
+        long size = Files.size(template);
+
+        if (size < memoryMappingThreshold || size > Integer.MAX_VALUE) {
+            return PDDocument.load(template.toFile());
         }
 
-        return out.toByteArray();
+        MappedRandomAccessRead source = MappedRandomAccessRead.map(template);
+
+        try {
+            PDFParser parser = new PDFParser(source);
+            parser.parse();
+
+            // The document takes over the source, and closes it
+            return parser.getPDDocument();
+        } catch (IOException e) {
+            source.close();
+
+            throw e;
+        }
     }
 
 
     @Override
     public byte[] renderFromTemplate(InputStream template) throws RenderException {
 
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RenderBuffer out = RenderBuffer.acquire(0);
 
         try(PDDocument doc = PDDocument.load(template)) {
             doc.save(out);
+
+            return out.toByteArray();
         } catch (IOException e) {
             throw new RenderException("Parsing the template failed.", e);
+        } finally {
+            out.release();
         }
-
-        return out.toByteArray();
     }
 
 
     @Override
     public byte[] renderSearchAndReplaceText(byte[] pdf, Map<String, String> texts) throws RenderException {
 
-        ByteArrayInputStream documentIn = new ByteArrayInputStream(pdf);
-        ByteArrayOutputStream documentOut = new ByteArrayOutputStream();
+        RenderBuffer documentOut = RenderBuffer.acquire(pdf.length);
 
-        try(PDDocument doc = PDDocument.load(documentIn)) {
+        try(PDDocument doc = PDDocument.load(pdf)) {
             PDPageTree pages = doc.getDocumentCatalog().getPages();
             parsePages(texts, doc, pages);
             doc.save(documentOut);
+
+            return documentOut.toByteArray();
+        } catch (LayoutFailed e) {
+            throw new RenderException("Laying out the multi-line text failed.", e.getCause());
         } catch (IOException e) {
             throw new RenderException("Search and replace PDF text failed.", e);
+        } finally {
+            documentOut.release();
         }
-
-        return documentOut.toByteArray();
     }
 
 
     private void parsePages(Map<String, String> texts, PDDocument doc, PDPageTree pages) throws IOException {
 
+        List<Replacement> replacements = texts.entrySet()
+                .stream()
+                .map(Replacement::new)
+                .collect(Collectors.toList());
+
+        // Font metrics are only resolved, if a replace value depends on them
+        boolean measured = replacements.stream().anyMatch(Replacement::isMeasured);
+
         for (PDPage page : pages) {
-            parsePage(texts, doc, page);
+            Deadline.check();
+            parsePage(replacements, measured, doc, page);
         }
     }
 
 
-    private void parsePage(Map<String, String> texts, PDDocument doc, PDPage page) throws IOException {
+    /**
+     * Rewrites the shown texts of the page with the content stream lexer, copying all other content unchanged, and
+     * keeps the content streams of the page if no text changed.
+     */
+    private void parsePage(List<Replacement> texts, boolean measured, PDDocument doc, PDPage page)
+        throws IOException {
+
+        byte[] content = readContents(page);
+        PDResources fontResources = measured ? page.getResources() : null;
+        FontMeasures measures = new FontMeasures(fontResources);
+        byte[] updated;
+
+        try {
+            updated = ContentStreamRewriter.rewrite(content, (text, font, fontSize) -> {
+                        String result = searchAndReplace(texts, text, measures.get(font, fontSize));
 
-        PDFStreamParser parser = new PDFStreamParser(page);
-        parser.parse();
+                        return result.equals(text) ? null : result;
+                    });
+        } catch (ContentStreamRewriter.Malformed e) {
+            // Leave content the lexer does not understand to the lenient PDFBox parser
+            parseTokens(texts, fontResources, doc, page, content);
 
-        List<?> tokens = parser.getTokens();
-        updateTokens(texts, tokens);
+            return;
+        }
+
+        if (updated != null) {
+            PDStream updatedStream = new PDStream(doc);
+
+            try(OutputStream out = updatedStream.createOutputStream()) {
+                out.write(updated);
+            }
+
+            page.setContents(updatedStream);
+        }
+    }
+
+
+    /**
+     * @return  the decoded content streams of the page, separated by a line break, as content streams may split
+     *          the content only between tokens
+     */
+    private static byte[] readContents(PDPage page) throws IOException {
+
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        Iterator<PDStream> streams = page.getContentStreams();
+
+        while (streams.hasNext()) {
+            try(InputStream in = streams.next().createInputStream()) {
+                IOUtils.copy(in, content);
+            }
+
+            if (streams.hasNext()) {
+                content.write('\n');
+            }
+        }
+
+        return content.toByteArray();
+    }
+
+
+    private void parseTokens(List<Replacement> texts, PDResources fontResources, PDDocument doc, PDPage page,
+        byte[] content) throws IOException {
+
+        PDFStreamParser parser = new PDFStreamParser(content);
+        List<Object> tokens = new ArrayList<>();
+        Object token;
+
+        while ((token = parser.parseNextToken()) != null) {
+            tokens.add(token);
+            checkDeadline(tokens.size());
+        }
+
+        updateTokens(texts, tokens, fontResources);
 
         PDStream updatedStream = new PDStream(doc);
 
@@ -119,21 +285,55 @@ public class PDFBoxRenderer implements PDFRenderer {
     }
 
 
-    private void updateTokens(Map<String, String> texts, List<?> tokens) throws IOException {
+    /**
+     * Checks the deadline of the build every few hundred tokens, to keep the overhead of parsing low.
+     */
+    private static void checkDeadline(int tokenCount) {
 
+        if (tokenCount % DEADLINE_CHECK_INTERVAL == 0) {
+            Deadline.check();
+        }
+    }
+
+
+    private void updateTokens(List<Replacement> texts, List<?> tokens, PDResources fontResources)
+        throws IOException {
+
+        Object beforePrevious = null;
         Object previous = null;
+        TextMeasure measure = null;
 
         for (Object current : tokens) {
             if (current instanceof Operator) {
-                updateToken(texts, previous, (Operator) current);
+                Operator operator = (Operator) current;
+
+                if (fontResources != null && SET_FONT_OP.equals(operator.getName())) {
+                    measure = measureFont(fontResources, beforePrevious, previous);
+                } else {
+                    updateToken(texts, previous, operator, measure);
+                }
             }
 
+            beforePrevious = previous;
             previous = current;
         }
     }
 
 
-    private void updateToken(Map<String, String> texts, Object args, Operator operator) throws IOException {
+    private TextMeasure measureFont(PDResources resources, Object name, Object size) throws IOException {
+
+        if (!(name instanceof COSName) || !(size instanceof COSNumber)) {
+            return null;
+        }
+
+        PDFont font = resources.getFont((COSName) name);
+
+        return font == null ? null : glyphWidths.measure(font, ((COSNumber) size).floatValue());
+    }
+
+
+    private void updateToken(List<Replacement> texts, Object args, Operator operator, TextMeasure measure)
+        throws IOException {
 
         if (args == null) {
             return;
@@ -142,105 +342,554 @@ public class PDFBoxRenderer implements PDFRenderer {
         String operation = operator.getName();
 
         if (SHOW_STRING_OP.equals(operation)) {
-            searchAndReplaceInCOSString(texts, (COSString) args);
+            searchAndReplaceInCOSString(texts, (COSString) args, measure);
         } else if (SHOW_MORE_STRINGS_OP.equals(operation)) {
-            searchAndReplaceInCOSArray(texts, (COSArray) args);
+            searchAndReplaceInCOSArray(texts, (COSArray) args, measure);
         }
     }
 
 
-    private void searchAndReplaceInCOSString(Map<String, String> texts, COSString cosString) throws IOException {
+    private void searchAndReplaceInCOSString(List<Replacement> texts, COSString cosString, TextMeasure measure)
+        throws IOException {
 
         String string = cosString.getString();
-        String result = searchAndReplace(texts, string);
+        String result = searchAndReplace(texts, string, measure);
         cosString.setDirect(true);
         cosString.setValue(result.getBytes(ISO_8859_1));
     }
 
 
-    private String searchAndReplace(Map<String, String> texts, String orig) {
+    private String searchAndReplace(List<Replacement> texts, String orig, TextMeasure measure)
+        throws LayoutFailed {
 
         String result = orig;
 
-        for (Entry<String, String> e : texts.entrySet()) {
-            // escape any rouge backslashes in value, since the replacement fails on any unknown/missing escaped
-            // characters following the slash - that way slashes are replaced literally - see bug #13987
-            String value = e.getValue() == null ? null : e.getValue().replace("\\", "\\\\");
-            result = result.replaceAll(e.getKey(), value);
+        for (Replacement replacement : texts) {
+            result = replacement.apply(result, measure);
         }
 
         return result;
     }
 
 
-    private void searchAndReplaceInCOSArray(Map<String, String> texts, COSArray cosArray) throws IOException {
+    private void searchAndReplaceInCOSArray(List<Replacement> texts, COSArray cosArray, TextMeasure measure)
+        throws IOException {
 
-        String string = StreamSupport.stream(cosArray.spliterator(), false)
-                .filter(e -> e instanceof COSString)
-                .map(s -> ((COSString) s).getString())
-                .collect(Collectors.joining());
+        String string = joinStrings(cosArray);
 
-        String result = searchAndReplace(texts, string);
+        String result = searchAndReplace(texts, string, measure);
         COSString cosString = new COSString(result.getBytes(ISO_8859_1));
         cosArray.clear();
         cosArray.add(cosString);
     }
 
 
+    private static String joinStrings(COSArray cosArray) {
+
+        return StreamSupport.stream(cosArray.spliterator(), false)
+            .filter(e -> e instanceof COSString)
+            .map(s -> ((COSString) s).getString())
+            .collect(Collectors.joining());
+    }
+
+
+    @Override
+    public TemplateInspection inspect(byte[] pdf) throws RenderException {
+
+        List<List<String>> pages = new ArrayList<>();
+        List<List<String>> unreachablePages = new ArrayList<>();
+        Set<String> fonts = new LinkedHashSet<>();
+
+        try(PDDocument doc = PDDocument.load(pdf)) {
+            for (PDPage page : doc.getPages()) {
+                Deadline.check();
+
+                List<String> segments = new ArrayList<>();
+                inspectContent(page, page.getResources(), segments, fonts);
+                pages.add(segments);
+
+                List<String> unreachable = new ArrayList<>();
+                inspectForms(page.getResources(), unreachable, fonts, new HashSet<>());
+                unreachablePages.add(unreachable);
+            }
+        } catch (IOException e) {
+            throw new RenderException("Inspecting the PDF failed.", e);
+        }
+
+        return new TemplateInspection(pages, unreachablePages, fonts);
+    }
+
+
+    private void inspectContent(PDContentStream content, PDResources resources, List<String> segments,
+        Set<String> fonts) throws IOException {
+
+        PDFStreamParser parser = new PDFStreamParser(content);
+        List<Object> operands = new ArrayList<>();
+        Object token;
+        int count = 0;
+
+        while ((token = parser.parseNextToken()) != null) {
+            checkDeadline(++count);
+
+            if (!(token instanceof Operator)) {
+                operands.add(token);
+
+                continue;
+            }
+
+            String operation = ((Operator) token).getName();
+            Object args = operands.isEmpty() ? null : operands.get(operands.size() - 1);
+
+            if (SHOW_STRING_OP.equals(operation) && args instanceof COSString) {
+                segments.add(((COSString) args).getString());
+            } else if (SHOW_MORE_STRINGS_OP.equals(operation) && args instanceof COSArray) {
+                segments.add(joinStrings((COSArray) args));
+            } else if (SET_FONT_OP.equals(operation) && !operands.isEmpty() && operands.get(0) instanceof COSName
+                    && resources != null) {
+                PDFont font = resources.getFont((COSName) operands.get(0));
+
+                if (font != null) {
+                    fonts.add(font.getName());
+                }
+            }
+
+            operands.clear();
+        }
+    }
+
+
+    private void inspectForms(PDResources resources, List<String> segments, Set<String> fonts,
+        Set<COSBase> visited) throws IOException {
+
+        if (resources == null) {
+            return;
+        }
+
+        for (COSName name : resources.getXObjectNames()) {
+            PDXObject xObject = resources.getXObject(name);
+
+            if (xObject instanceof PDFormXObject && visited.add(xObject.getCOSObject())) {
+                PDFormXObject form = (PDFormXObject) xObject;
+                PDResources formResources = form.getResources() != null ? form.getResources() : resources;
+
+                inspectContent(form, formResources, segments, fonts);
+                inspectForms(form.getResources(), segments, fonts, visited);
+            }
+        }
+    }
+
+
     @Override
     public byte[] renderImages(byte[] pdf, List<PDFImage> images) throws RenderException {
 
-        ByteArrayInputStream documentIn = new ByteArrayInputStream(pdf);
-        ByteArrayOutputStream documentOut = new ByteArrayOutputStream();
+        long sizeHint = pdf.length + images.stream().mapToLong(PDFImage::size).sum();
+
+        return renderOnPage(pdf, sizeHint, "images", (document, rectangle, contentStream) -> {
+                for (PDFImage image : images) {
+                    addImage(document, rectangle, contentStream, image);
+                }
+            });
+    }
+
+
+    private void addImage(PDDocument document, PDRectangle rectangle, PDPageContentStream contentStream,
+        PDFImage rawImage) throws IOException {
+
+        PDImageXObject image = PDImageXObject.createFromByteArray(document, rawImage.getData(), null);
+
+        float x = calculateCoordinate(rawImage.getX(), rectangle.getWidth(), image.getWidth());
+        float y = calculateCoordinate(rawImage.getY(), rectangle.getHeight(), image.getHeight());
+
+        contentStream.drawImage(image, x, y, image.getWidth(), image.getHeight());
+    }
+
+
+    @Override
+    public byte[] renderBarcodes(byte[] pdf, List<PDFBarcode> barcodes) throws RenderException {
+
+        return renderOnPage(pdf, pdf.length, "barcodes", (document, rectangle, contentStream) -> {
+                contentStream.saveGraphicsState();
+                contentStream.setNonStrokingColor(Color.BLACK);
+
+                for (PDFBarcode barcode : barcodes) {
+                    addBarcode(rectangle, contentStream, barcode);
+                }
+
+                contentStream.fill();
+                contentStream.restoreGraphicsState();
+            });
+    }
+
+
+    /**
+     * Adds the dark modules of the given barcode to the current path, as rectangles. Adjacent modules of a row, and
+     * identical adjacent rows, are merged into one rectangle, which draws a linear barcode as one rectangle per bar.
+     */
+    private void addBarcode(PDRectangle rectangle, PDPageContentStream contentStream, PDFBarcode barcode)
+        throws IOException {
+
+        BarcodeMatrix matrix = barcode.getMatrix();
+
+        float x = calculateCoordinate(barcode.getX(), rectangle.getWidth(), barcode.getWidth());
+        float y = calculateCoordinate(barcode.getY(), rectangle.getHeight(), barcode.getHeight());
+        float moduleWidth = (float) barcode.getWidth() / matrix.getWidth();
+        float moduleHeight = (float) barcode.getHeight() / matrix.getHeight();
+
+        int row = 0;
+
+        while (row < matrix.getHeight()) {
+            int rows = 1;
+
+            while (row + rows < matrix.getHeight() && matrix.isSameRow(row, row + rows)) {
+                rows++;
+            }
+
+            // The matrix starts at the top, while the page origin is at the bottom
+            float rowY = y + (matrix.getHeight() - row - rows) * moduleHeight;
+            int column = 0;
+
+            while (column < matrix.getWidth()) {
+                if (matrix.isSet(column, row)) {
+                    int start = column;
 
-        try(PDDocument document = PDDocument.load(documentIn)) {
+                    while (column < matrix.getWidth() && matrix.isSet(column, row)) {
+                        column++;
+                    }
+
+                    contentStream.addRect(x + start * moduleWidth, rowY, (column - start) * moduleWidth,
+                        rows * moduleHeight);
+                } else {
+                    column++;
+                }
+            }
+
+            row += rows;
+        }
+    }
+
+
+    @Override
+    public byte[] optimize(byte[] pdf, OptimizeSpec spec) throws RenderException {
+
+        RenderBuffer documentOut = RenderBuffer.acquire(pdf.length);
+
+        try(PDDocument document = PDDocument.load(pdf)) {
+            new Optimizer(document, spec).optimize();
+            document.save(documentOut);
+
+            return documentOut.toByteArray();
+        } catch (IOException e) {
+            throw new RenderException("Optimizing PDF failed.", e);
+        } finally {
+            documentOut.release();
+        }
+    }
+
+
+    @Override
+    public byte[] linearize(byte[] pdf) throws RenderException {
+
+        RenderBuffer documentOut = RenderBuffer.acquire(pdf.length);
+
+        try(PDDocument document = PDDocument.load(pdf)) {
+            if (document.isEncrypted()) {
+                throw new RenderException("Cannot linearize an encrypted PDF.");
+            }
+
+            new Linearizer(document).write(documentOut);
+
+            return documentOut.toByteArray();
+        } catch (IOException e) {
+            throw new RenderException("Linearizing PDF failed.", e);
+        } finally {
+            documentOut.release();
+        }
+    }
+
+
+    @Override
+    public byte[] makeReproducible(byte[] pdf) throws RenderException {
+
+        RenderBuffer documentOut = RenderBuffer.acquire(pdf.length);
+
+        try(PDDocument document = PDDocument.load(pdf)) {
+            if (document.isEncrypted()) {
+                throw new RenderException("Cannot write an encrypted PDF reproducibly.");
+            }
+
+            COSDictionary trailer = document.getDocument().getTrailer();
+            COSBase info = trailer.getDictionaryObject(COSName.INFO);
+
+            if (info instanceof COSDictionary) {
+                ((COSDictionary) info).removeItem(COSName.CREATION_DATE);
+                ((COSDictionary) info).removeItem(COSName.MOD_DATE);
+            }
+
+            // Without an ID the writer generates one from the current time, so hash a write with a blank ID first,
+            // discarding its content, and derive the ID from that hash
+            setDocumentId(trailer, new byte[DOCUMENT_ID_LENGTH]);
+
+            MessageDigest digest = ContentHash.newDigest();
+            document.save(new DigestOutputStream(new DiscardingOutputStream(), digest));
+
+            setDocumentId(trailer, Arrays.copyOf(digest.digest(), DOCUMENT_ID_LENGTH));
+            document.save(documentOut);
+
+            return documentOut.toByteArray();
+        } catch (IOException e) {
+            throw new RenderException("Writing reproducible PDF failed.", e);
+        } finally {
+            documentOut.release();
+        }
+    }
+
+
+    private static void setDocumentId(COSDictionary trailer, byte[] id) {
+
+        COSArray ids = new COSArray();
+        ids.add(new COSString(id));
+        ids.add(new COSString(id));
+
+        trailer.setItem(COSName.ID, ids);
+    }
+
+
+    @Override
+    public byte[] concat(List<byte[]> pdfs) throws RenderException {
+
+        long size = pdfs.stream().mapToLong(pdf -> pdf.length).sum();
+        RenderBuffer documentOut = RenderBuffer.acquire(size);
+
+        // Copied streams are kept in a scratch file beyond the limit, so that large parts do not fill the heap
+        try(PDDocument target = new PDDocument(MemoryUsageSetting.setupMixed(CONCAT_MEMORY_LIMIT))) {
+            PDFMergerUtility merger = new PDFMergerUtility();
+
+            for (byte[] pdf : pdfs) {
+                // Appending copies all objects, so each part is closed before the next is loaded
+                try(PDDocument part = PDDocument.load(pdf)) {
+                    merger.appendDocument(target, part);
+                }
+            }
+
+            Optimizer optimizer = new Optimizer(target, OptimizeSpec.defaults());
+            optimizer.mergeDuplicateObjects();
+            target.save(documentOut);
+
+            return documentOut.toByteArray();
+        } catch (IOException e) {
+            throw new RenderException("Concatenating PDFs failed.", e);
+        } finally {
+            documentOut.release();
+        }
+    }
+
+
+    @Override
+    public int countPages(byte[] pdf) throws RenderException {
+
+        try(PDDocument document = PDDocument.load(pdf)) {
+            return document.getNumberOfPages();
+        } catch (IOException e) {
+            throw new RenderException("Parsing PDF failed.", e);
+        }
+    }
+
+
+    @Override
+    public List<byte[]> renderPreviews(byte[] pdf, List<Integer> pageIndexes, float dpi) throws RenderException {
+
+        try(PDDocument document = PDDocument.load(pdf)) {
+            org.apache.pdfbox.rendering.PDFRenderer rasterizer = new org.apache.pdfbox.rendering.PDFRenderer(document);
+            List<byte[]> previews = new ArrayList<>();
+
+            for (int pageIndex : pageIndexes) {
+                if (pageIndex >= document.getNumberOfPages()) {
+                    throw new RenderException(String.format("The document has no page with index %d", pageIndex));
+                }
+
+                ByteArrayOutputStream png = new ByteArrayOutputStream();
+                ImageIO.write(rasterizer.renderImageWithDPI(pageIndex, dpi, ImageType.RGB), "PNG", png);
+                previews.add(png.toByteArray());
+            }
+
+            return previews;
+        } catch (IOException e) {
+            throw new RenderException("Rendering PDF preview failed.", e);
+        }
+    }
+
+
+    /**
+     * Draws on the single page of the given document, with a content stream appended to the page content.
+     *
+     * @param  drawn  what is drawn, to name it in the failure
+     */
+    private byte[] renderOnPage(byte[] pdf, long sizeHint, String drawn, PageDrawing drawing)
+        throws RenderException {
+
+        RenderBuffer documentOut = RenderBuffer.acquire(sizeHint);
+
+        try(PDDocument document = PDDocument.load(pdf)) {
             PDDocumentCatalog documentCatalog = document.getDocumentCatalog();
             PDPageTree pages = documentCatalog.getPages();
 
             if (pages.getCount() > 1) {
-                throw new IllegalStateException("Cannot add image to document with more pages than 1.");
+                throw new RenderException(String.format("Cannot add %s to document with more pages than 1.", drawn));
             }
 
             PDPage page = pages.iterator().next();
             PDRectangle rectangle = page.getMediaBox();
 
             try(PDPageContentStream contentStream = new PDPageContentStream(document, page, AppendMode.APPEND, false)) {
-                for (PDFImage image : images) {
-                    addImage(document, rectangle, contentStream, image);
-                }
+                drawing.draw(document, rectangle, contentStream);
             }
 
             document.save(documentOut);
+
+            return documentOut.toByteArray();
         } catch (IOException e) {
-            throw new RenderException("Rendering images in PDF failed.", e);
+            throw new RenderException(String.format("Rendering %s in PDF failed.", drawn), e);
+        } finally {
+            documentOut.release();
         }
+    }
+
 
-        return documentOut.toByteArray();
+    private float calculateCoordinate(int position, float pageBounds, int size) {
+
+        // Negative positioning means flipped offset from other side of page
+        if (position < 0) {
+            return pageBounds - (Math.abs(position) + size);
+        }
+
+        return position;
     }
 
+    /**
+     * Measures of the fonts of a page, resolved only once the font is used by a measured replacement, and kept until
+     * the next font is set.
+     */
+    private final class FontMeasures {
 
-    private void addImage(PDDocument document, PDRectangle rectangle, PDPageContentStream contentStream,
-        PDFImage rawImage) throws IOException {
+        private final PDResources resources;
+        private String font;
+        private float fontSize;
+        private TextMeasure measure;
 
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        rawImage.save(out);
+        private FontMeasures(PDResources resources) {
 
-        PDImageXObject image = PDImageXObject.createFromByteArray(document, out.toByteArray(), null);
+            this.resources = resources;
+        }
 
-        float x = calculateCoordinate(rawImage.getX(), rectangle.getWidth(), image.getWidth());
-        float y = calculateCoordinate(rawImage.getY(), rectangle.getHeight(), image.getHeight());
+        /**
+         * @return  the measure of the given font, or {@code null} if not measured, or the font is unknown
+         */
+        TextMeasure get(String name, float size) throws IOException {
 
-        contentStream.drawImage(image, x, y, image.getWidth(), image.getHeight());
+            if (resources == null || name == null || Float.isNaN(size)) {
+                return null;
+            }
+
+            if (!name.equals(font) || size != fontSize) {
+                PDFont pdFont = resources.getFont(COSName.getPDFName(name));
+
+                font = name;
+                fontSize = size;
+                measure = pdFont == null ? null : glyphWidths.measure(pdFont, size);
+            }
+
+            return measure;
+        }
     }
 
+    /**
+     * Draws onto a page of a document.
+     */
+    @FunctionalInterface
+    private interface PageDrawing {
 
-    private float calculateCoordinate(int position, float pageBounds, int imageSize) {
+        void draw(PDDocument document, PDRectangle rectangle, PDPageContentStream contentStream) throws IOException;
+    }
 
-        // Negative positioning means flipped offset from other side of page
-        if (position < 0) {
-            return pageBounds - (Math.abs(position) + imageSize);
+    /**
+     * Discards everything written, for writes that are only hashed.
+     */
+    private static final class DiscardingOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) {
+
+            // discard
         }
 
-        return position;
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+
+            // discard
+        }
+    }
+
+    /**
+     * Signals a text that cannot be laid out in the lines of a fitted multi-line replacement. An {@link IOException},
+     * to pass through the parsing of the content streams, until it is translated into a {@link RenderException}.
+     */
+    private static final class LayoutFailed extends IOException {
+
+        private static final long serialVersionUID = 4617035218741052963L;
+
+        private LayoutFailed(RuntimeException cause) {
+
+            super(cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * A search-replace pair, with the search pattern compiled once per document. The replace value is read only when
+     * the pattern is found, resolving lazy values only if they are used.
+     */
+    private static final class Replacement {
+
+        private final Pattern search;
+        private final Entry<String, String> entry;
+
+        private Replacement(Entry<String, String> entry) {
+
+            this.search = Pattern.compile(entry.getKey());
+            this.entry = entry;
+        }
+
+        boolean isMeasured() {
+
+            return entry instanceof Replacements.ReplaceEntry && ((Replacements.ReplaceEntry) entry).isMeasured();
+        }
+
+
+        String apply(String text, TextMeasure measure) throws LayoutFailed {
+
+            Matcher matcher = search.matcher(text);
+
+            if (!matcher.find()) {
+                return text;
+            }
+
+            // escape any rouge backslashes in value, since the replacement fails on any unknown/missing escaped
+            // characters following the slash - that way slashes are replaced literally - see bug #13987
+            String replace = isMeasured() ? getMeasuredValue(measure) : entry.getValue();
+            String value = replace == null ? null : replace.replace("\\", "\\\\");
+
+            return matcher.replaceAll(value);
+        }
+
+
+        private String getMeasuredValue(TextMeasure measure) throws LayoutFailed {
+
+            try {
+                return ((Replacements.ReplaceEntry) entry).getValue(measure);
+            } catch (IllegalArgumentException | IllegalStateException e) {
+                // The text does not fit the lines, or no font is set for the placeholders
+                throw new LayoutFailed(e);
+            }
+        }
     }
 }
@@ -1,10 +1,24 @@
 package net.contargo.print.pdf;
 
+import org.apache.pdfbox.util.Version;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.function.BiConsumer;
 
 
@@ -36,6 +50,21 @@ import java.util.function.BiConsumer;
    Path template = this.getClass().getResourceAsStream("/documents/template.pdf");
  * </pre>
  *
+ * <p>The static factory methods use a shared default instance. Applications that want to provide their own renderers
+ * can configure one long-lived builder instance, and create buildable PDFs from it:</p>
+ *
+ * <pre>
+   PDFBuilder pdfBuilder = PDFBuilder.configure()
+       .withPDFRenderer(pdfRenderer)
+       .withQRCodeRenderer(qrCodeRenderer)
+       .build();
+
+   pdfBuilder.forTemplate(template)
+       .withReplacement("@name@", name)
+       .build()
+       .save(result);
+ * </pre>
+ *
  * @author  Olle Törnström - toernstroem@synyx.de
  * @author  Slaven Travar - slaven.travar@pta.de
  * @since  0.1
@@ -48,15 +77,101 @@ public class PDFBuilder {
         }
     };
 
+    // Shared process-wide by the static factory methods, so without a cache of rendered codes
+    private static final PDFBuilder DEFAULT = configure().withRenderCacheSize(0).build();
+
+    private static final int DEFAULT_RENDER_CACHE_SIZE = 256;
+    private static final int DEFAULT_MINIMUM_BATCH_SHARE = 10;
+    private static final long DEFAULT_RESULT_CACHE_DIRECTORY_BYTES = 1L << 30; // NOSONAR - 1 GB
+
+    /**
+     * Renders a single QR-code or barcode spec.
+     */
+    @FunctionalInterface
+    private interface SpecRenderer<S, R> {
+
+        R render(S spec) throws RenderException;
+    }
+
+    /**
+     * Renders a whole build, once admitted.
+     */
+    @FunctionalInterface
+    interface Build {
+
+        byte[] render() throws RenderException;
+    }
+
     private final PDFRenderer pdfRenderer;
     private final QRCodeRenderer qrRenderer;
+    private final BarcodeRenderer barcodeRenderer;
+    private final Executor executor;
+    private final OptimizeSpec templateOptimization;
+    private final RenderCache<List<Object>, byte[]> previewCache;
+    private final ResultCache resultCache;
+    private final String renderers;
+    private final DocumentStorage documentStorage;
+    private final AdmissionControl admission;
+    private final Map<String, CompletableFuture<byte[]>> inFlightBuilds;
+    private final ClasspathTemplateCache classpathTemplates;
 
     PDFBuilder(PDFRenderer pdfRenderer, QRCodeRenderer qrRenderer) {
 
-        this.pdfRenderer = pdfRenderer;
-        this.qrRenderer = qrRenderer;
+        this(configure().withPDFRenderer(pdfRenderer).withQRCodeRenderer(qrRenderer).withRenderCacheSize(0));
+    }
+
+
+    PDFBuilder(PDFRenderer pdfRenderer, QRCodeRenderer qrRenderer, Executor executor) {
+
+        this(configure().withPDFRenderer(pdfRenderer).withQRCodeRenderer(qrRenderer).withRenderCacheSize(0)
+            .withExecutor(executor));
+    }
+
+
+    private PDFBuilder(Config config) {
+
+        boolean cached = config.renderCacheSize > 0;
+
+        this.pdfRenderer = config.pdfRenderer;
+        this.qrRenderer = cached ? new CachingQRCodeRenderer(config.qrRenderer, config.renderCacheSize)
+                                 : config.qrRenderer;
+        this.barcodeRenderer = cached ? new CachingBarcodeRenderer(config.barcodeRenderer, config.renderCacheSize)
+                                      : config.barcodeRenderer;
+        this.executor = config.executor;
+        this.templateOptimization = config.templateOptimization;
+        this.previewCache = config.previewCacheSize > 0 ? new RenderCache<>(config.previewCacheSize) : null;
+        this.resultCache = config.resultCacheSize > 0 || config.resultCacheDirectory != null
+            ? new ResultCache(config.resultCacheSize, config.resultCacheDirectory, config.resultCacheDirectoryBytes)
+            : null;
+        this.renderers = config.pdfRenderer.getClass().getName() + ' ' + config.qrRenderer.getClass().getName() + ' '
+            + config.barcodeRenderer.getClass().getName();
+        this.documentStorage = config.documentStorage;
+        this.admission = config.memoryBudget > 0 || config.maxConcurrentBuilds > 0
+            ? new AdmissionControl(config.memoryBudget, config.maxConcurrentBuilds, config.maxQueuedBuilds,
+                config.minimumBatchShare) : null;
+        this.inFlightBuilds = config.coalescedBuilds ? new ConcurrentHashMap<>() : null;
+        this.classpathTemplates = new ClasspathTemplateCache();
+    }
+
+    /**
+     * Returns a configuration for a new, reusable, builder instance.
+     *
+     * @return  a new configuration with the default renderers set
+     *
+     * @since  0.6
+     */
+    public static Config configure() {
+
+        return new Config();
+    }
+
+
+    static PDFBuilder defaultBuilder() {
+
+        return DEFAULT;
     }
 
+
     /**
      * Returns a builder for PDF documents, based on a given template path.
      *
@@ -66,11 +181,7 @@ public class PDFBuilder {
      */
     public static BuildablePDF fromTemplate(Path template) {
 
-        ASSERT_NOT_NULL.accept("template", template); // NOSONAR - constants does not always make sense
-
-        PDFBuilder builder = new PDFBuilder(new PDFBoxRenderer(), new QRGenRenderer());
-
-        return new BuildablePDF(template, builder);
+        return DEFAULT.forTemplate(template);
     }
 
 
@@ -85,11 +196,146 @@ public class PDFBuilder {
      */
     public static BuildablePDF fromTemplate(InputStream template) {
 
+        return DEFAULT.forTemplate(template);
+    }
+
+
+    /**
+     * Returns a builder for PDF documents, based on a template resource on the classpath.
+     *
+     * <p>The template is loaded and compiled only once, on the first build, and then cached by resource name. The
+     * resource is loaded with the context class loader of the calling thread.</p>
+     *
+     * @param  name  of the template resource, for example {@code "documents/template.pdf"}, never {@code null}
+     *
+     * @return  a new builder instance
+     *
+     * @since  0.6
+     */
+    public static BuildablePDF fromClasspath(String name) {
+
+        return DEFAULT.forClasspath(name);
+    }
+
+
+    /**
+     * Inspects the given template, without rendering a document, to find the placeholders and fonts it contains.
+     *
+     * @param  template  path to inspect, never {@code null}
+     *
+     * @return  the inspection result
+     *
+     * @throws  RenderException  in case the template cannot be parsed
+     *
+     * @since  0.6
+     *
+     * @see  BuildablePDF#inspect()
+     */
+    public static TemplateInspection inspect(Path template) throws RenderException {
+
+        return fromTemplate(template).inspect();
+    }
+
+
+    /**
+     * Inspects the given template, without rendering a document, to find the placeholders and fonts it contains.
+     *
+     * @param  template  input stream to inspect, never {@code null}
+     *
+     * @return  the inspection result
+     *
+     * @throws  RenderException  in case the template cannot be parsed
+     *
+     * @since  0.6
+     *
+     * @see  BuildablePDF#inspect()
+     */
+    public static TemplateInspection inspect(InputStream template) throws RenderException {
+
+        return fromTemplate(template).inspect();
+    }
+
+
+    /**
+     * Returns a builder for PDF documents, based on a given template path, using the renderers of this instance.
+     *
+     * @param  template  path to base the builder on, never {@code null}
+     *
+     * @return  a new builder instance
+     *
+     * @since  0.6
+     */
+    public BuildablePDF forTemplate(Path template) {
+
+        ASSERT_NOT_NULL.accept("template", template); // NOSONAR - constants does not always make sense
+
+        return new BuildablePDF(template, this);
+    }
+
+
+    /**
+     * Returns a builder for PDF documents, based on a given template input stream, using the renderers of this
+     * instance.
+     *
+     * @param  template  input stream to base the builder on, never {@code null}
+     *
+     * @return  a new builder instance
+     *
+     * @since  0.6
+     */
+    public BuildablePDF forTemplate(InputStream template) {
+
         ASSERT_NOT_NULL.accept("template", template); // NOSONAR - constants does not always make sense
 
-        PDFBuilder builder = new PDFBuilder(new PDFBoxRenderer(), new QRGenRenderer());
+        return new BuildablePDF(template, this);
+    }
+
+
+    /**
+     * Returns a builder for PDF documents, based on a template resource on the classpath, using the renderers and the
+     * template cache of this instance.
+     *
+     * @param  name  of the template resource, for example {@code "documents/template.pdf"}, never {@code null}
+     *
+     * @return  a new builder instance
+     *
+     * @since  0.6
+     *
+     * @see  #fromClasspath(String)
+     */
+    public BuildablePDF forClasspath(String name) {
+
+        ASSERT_NOT_NULL.accept("template name", name);
+
+        // Class loader resources are never absolute, but accept the Class#getResource(String) notation
+        String resource = name.startsWith("/") ? name.substring(1) : name;
+
+        ClassLoader contextLoader = Thread.currentThread().getContextClassLoader();
+        ClassLoader loader = contextLoader != null ? contextLoader : PDFBuilder.class.getClassLoader();
+
+        return new BuildablePDF(b -> b.renderFromClasspath(loader, resource), this);
+    }
+
+
+    /**
+     * Compiles all templates of the given directory, and keeps recompiling them in the background whenever they
+     * change, using the renderers of this instance. Builds from the returned registry use the compiled templates in
+     * memory, so that template changes can be deployed without a restart, and without loading the template anew for
+     * every build.
+     *
+     * @param  directory  an existing directory of PDF templates, never {@code null}
+     *
+     * @return  a new registry, watching the directory until it is closed
+     *
+     * @throws  RenderException  in case the directory cannot be read or watched
+     *
+     * @since  0.6
+     */
+    public TemplateRegistry watchTemplates(Path directory) throws RenderException {
+
+        ASSERT_NOT_NULL.accept("template directory", directory);
 
-        return new BuildablePDF(template, builder);
+        return new TemplateRegistry(directory, this);
     }
 
 
@@ -108,7 +354,7 @@ public class PDFBuilder {
 
         ASSERT_NOT_NULL.accept("template", template); // NOSONAR - constants does not always make sense
 
-        return pdfRenderer.renderFromTemplate(template);
+        return optimizeTemplate(pdfRenderer.renderFromTemplate(template));
     }
 
 
@@ -127,7 +373,118 @@ public class PDFBuilder {
 
         ASSERT_NOT_NULL.accept("template", template); // NOSONAR - constants does not always make sense
 
-        return pdfRenderer.renderFromTemplate(template);
+        return optimizeTemplate(pdfRenderer.renderFromTemplate(template));
+    }
+
+
+    /**
+     * Returns the compiled template from the given precompiled template, if it is intact and current, compiling the
+     * source template otherwise.
+     *
+     * @param  source  the source template
+     * @param  precompiled  the precompiled template, may be {@code null}
+     *
+     * @return  the compiled template
+     *
+     * @throws  RenderException  in case compiling the source template fails
+     *
+     * @see  #precompileTemplate(Path, Path)
+     */
+    byte[] renderFromTemplate(byte[] source, byte[] precompiled) throws RenderException {
+
+        byte[] compiled = precompiled == null ? null
+                                              : PrecompiledTemplate.read(precompiled, source, getTemplateOptions());
+
+        return compiled != null ? compiled : renderFromTemplate(new ByteArrayInputStream(source));
+    }
+
+
+    /**
+     * @return  the hash of everything templates are compiled with by this builder
+     */
+    String getTemplateOptions() {
+
+        return PrecompiledTemplate.options(pdfRenderer, templateOptimization);
+    }
+
+
+    /**
+     * Compiles the given template ahead of time, with the renderers and template options of this instance, into a
+     * precompiled template. Placed next to its template, as {@code <template>.compiled}, on the classpath or in a
+     * watched template directory, it is loaded instead of compiling the template. A precompiled template of a
+     * changed template, of other template options, or of another format version is ignored.
+     *
+     * @param  template  path of the template, never {@code null}
+     * @param  target  path of the precompiled template to write, never {@code null}
+     *
+     * @throws  RenderException  in case compiling or writing fails
+     *
+     * @since  0.6
+     *
+     * @see  TemplateCompiler
+     */
+    public void precompileTemplate(Path template, Path target) throws RenderException {
+
+        ASSERT_NOT_NULL.accept("template", template); // NOSONAR - constants does not always make sense
+        ASSERT_NOT_NULL.accept("target", target);
+
+        byte[] source;
+
+        try {
+            source = Files.readAllBytes(template);
+        } catch (IOException e) {
+            throw new RenderException("Loading the template failed.", e);
+        }
+
+        byte[] compiled = renderFromTemplate(new ByteArrayInputStream(source));
+
+        try {
+            Files.write(target, PrecompiledTemplate.write(source, compiled, getTemplateOptions()));
+        } catch (IOException e) {
+            throw new RenderException("Writing the precompiled template failed.", e);
+        }
+    }
+
+
+    private byte[] optimizeTemplate(byte[] template) throws RenderException {
+
+        return templateOptimization == null ? template : pdfRenderer.optimize(template, templateOptimization);
+    }
+
+
+    /**
+     * Returns the cached compiled template for the given resource, rendering it with the PDF renderer on the first
+     * request.
+     *
+     * @param  loader  to load the resource with
+     * @param  name  of the resource
+     *
+     * @return  the rendered PDF document as a byte array, shared and must not be modified
+     *
+     * @throws  RenderException  in case the resource is missing, or rendering fails
+     */
+    byte[] renderFromClasspath(ClassLoader loader, String name) throws RenderException {
+
+        return classpathTemplates.get(loader, name, this);
+    }
+
+
+    /**
+     * Delegates to the PDF renderer.
+     *
+     * @param  pdf  document as byte array
+     *
+     * @return  the inspection result
+     *
+     * @throws  RenderException  in case parsing fails
+     *
+     * @see  PDFRenderer#inspect(byte[])
+     */
+    TemplateInspection inspect(byte[] pdf) throws RenderException {
+
+        ASSERT_NOT_NULL.accept("pdf", pdf);
+
+        return pdfRenderer.inspect(pdf);
     }
 
 
@@ -170,34 +527,894 @@ public class PDFBuilder {
         ASSERT_NOT_NULL.accept("pdf", pdf);
         ASSERT_NOT_NULL.accept("specs", specs);
 
-        List<PDFImage> codes = new ArrayList<>();
-
-        // No stream operation, the QRRenderer throws a checked exception.
-        for (QRSpec spec : specs) {
-            codes.add(spec.render(qrRenderer));
-        }
+        List<PDFImage> codes = renderAll(specs, spec -> spec.render(qrRenderer));
 
         return pdfRenderer.renderImages(pdf, codes);
     }
-    
-    
+
+
     /**
-     * Delegates to PDF renderers.
+     * Delegates to barcode and PDF renderers.
      *
      * @param  pdf  document as byte array
-     * @param  images  list of images to add
+     * @param  specs  list of barcode specifications to encode and draw
      *
      * @return  the PDF document as a byte array
      *
      * @throws  RenderException  in case rendering fails
      *
-     * @see  PDFRenderer#renderQRCodes(byte[], List)
+     * @see  BarcodeRenderer#render(BarcodeSpec.Symbology, String)
+     * @see  PDFRenderer#renderBarcodes(byte[], List)
      */
-    byte[] renderImages(byte[] pdf, List<PDFImage> images) throws RenderException {
+    byte[] renderBarcodes(byte[] pdf, List<BarcodeSpec> specs) throws RenderException {
 
         ASSERT_NOT_NULL.accept("pdf", pdf);
-        ASSERT_NOT_NULL.accept("images", images);
+        ASSERT_NOT_NULL.accept("specs", specs);
 
-        return pdfRenderer.renderImages(pdf, images);
+        List<PDFBarcode> codes = renderAll(specs, spec -> spec.render(barcodeRenderer));
+
+        return pdfRenderer.renderBarcodes(pdf, codes);
+    }
+
+
+    /**
+     * Delegates to the PDF renderer.
+     *
+     * @param  pdf  document as byte array
+     * @param  spec  of the optimization
+     *
+     * @return  the optimized PDF document as a byte array
+     *
+     * @throws  RenderException  in case optimizing fails
+     *
+     * @see  PDFRenderer#optimize(byte[], OptimizeSpec)
+     */
+    byte[] optimize(byte[] pdf, OptimizeSpec spec) throws RenderException {
+
+        ASSERT_NOT_NULL.accept("pdf", pdf);
+        ASSERT_NOT_NULL.accept("spec", spec);
+
+        return pdfRenderer.optimize(pdf, spec);
+    }
+
+
+    /**
+     * Delegates to the PDF renderer.
+     *
+     * @param  pdf  document as byte array
+     *
+     * @return  the linearized PDF document as a byte array
+     *
+     * @throws  RenderException  in case writing fails
+     *
+     * @see  PDFRenderer#linearize(byte[])
+     */
+    byte[] linearize(byte[] pdf) throws RenderException {
+
+        ASSERT_NOT_NULL.accept("pdf", pdf);
+
+        return pdfRenderer.linearize(pdf);
+    }
+
+
+    /**
+     * Delegates to the PDF renderer.
+     *
+     * @param  pdf  document as byte array
+     *
+     * @return  the reproducible PDF document as a byte array
+     *
+     * @throws  RenderException  in case writing fails
+     *
+     * @see  PDFRenderer#makeReproducible(byte[])
+     */
+    byte[] makeReproducible(byte[] pdf) throws RenderException {
+
+        ASSERT_NOT_NULL.accept("pdf", pdf);
+
+        return pdfRenderer.makeReproducible(pdf);
+    }
+
+
+    /**
+     * Delegates to the PDF renderer.
+     *
+     * @param  pdfs  documents as byte arrays
+     *
+     * @return  the concatenated PDF document as a byte array
+     *
+     * @throws  RenderException  in case concatenating fails
+     *
+     * @see  PDFRenderer#concat(List)
+     */
+    byte[] concat(List<byte[]> pdfs) throws RenderException {
+
+        ASSERT_NOT_NULL.accept("pdfs", pdfs);
+
+        return pdfRenderer.concat(pdfs);
+    }
+
+
+    /**
+     * Rasterizes the pages of the given document, using cached previews of the same document content. With an
+     * executor configured, the pages are split into batches, rendered concurrently, each parsing the document once.
+     *
+     * @param  pdf  document as byte array
+     * @param  spec  of the previews to render
+     *
+     * @return  the PNG images, in the order of the pages specified
+     *
+     * @throws  RenderException  in case rendering fails
+     *
+     * @see  PDFRenderer#renderPreviews(byte[], List, float)
+     */
+    List<byte[]> renderPreviews(byte[] pdf, PreviewSpec spec) throws RenderException {
+
+        ASSERT_NOT_NULL.accept("pdf", pdf);
+        ASSERT_NOT_NULL.accept("spec", spec);
+
+        List<Integer> pages = spec.getPageIndexes();
+
+        if (pages.isEmpty()) {
+            pages = new ArrayList<>();
+
+            for (int i = 0, count = pdfRenderer.countPages(pdf); i < count; i++) {
+                pages.add(i);
+            }
+        }
+
+        String hash = previewCache == null ? null : ContentHash.sha256(pdf);
+        List<byte[]> previews = new ArrayList<>(Collections.nCopies(pages.size(), (byte[]) null));
+        List<Integer> missing = new ArrayList<>();
+
+        for (int i = 0; i < pages.size(); i++) {
+            byte[] cached = hash == null ? null : previewCache.get(Arrays.asList(hash, pages.get(i), spec.getDPI()));
+
+            if (cached == null) {
+                missing.add(i);
+            } else {
+                previews.set(i, cached);
+            }
+        }
+
+        List<List<Integer>> batches = new ArrayList<>();
+        int batchCount = executor == null ? 1 : Math.min(missing.size(), Runtime.getRuntime().availableProcessors());
+
+        for (int i = 0; i < missing.size(); i++) {
+            if (i < batchCount) {
+                batches.add(new ArrayList<>());
+            }
+
+            batches.get(i % batchCount).add(pages.get(missing.get(i)));
+        }
+
+        List<List<byte[]>> rendered = renderAll(batches,
+                batch -> pdfRenderer.renderPreviews(pdf, batch, spec.getDPI()));
+
+        for (int i = 0; i < missing.size(); i++) {
+            byte[] preview = rendered.get(i % batchCount).get(i / batchCount);
+            previews.set(missing.get(i), preview);
+
+            if (hash != null) {
+                previewCache.put(Arrays.asList(hash, pages.get(missing.get(i)), spec.getDPI()), preview);
+            }
+        }
+
+        return previews;
+    }
+
+
+    /**
+     * Returns the current state of the admission control, for monitoring.
+     *
+     * @return  a snapshot of the admission control, or {@code null} if neither a memory budget, nor a limit of
+     *          concurrent builds is configured
+     *
+     * @since  0.6
+     *
+     * @see  Config#withMemoryBudget(long)
+     * @see  Config#withMaxConcurrentBuilds(int)
+     */
+    public AdmissionStats getAdmissionStats() {
+
+        return admission == null ? null : admission.stats();
+    }
+
+
+    /**
+     * @return  whether builds wait for a memory budget or a limit of concurrent builds
+     */
+    boolean isAdmissionControlled() {
+
+        return admission != null;
+    }
+
+
+    /**
+     * Waits until a build fits the memory budget and the limit of concurrent builds, if configured, in order of
+     * priority.
+     *
+     * @param  priority  of the build
+     * @param  template  of the build
+     * @param  qrCodes  of the build
+     * @param  images  of the build
+     *
+     * @return  the permit of the build, to be released with {@link #releaseBuild(AdmissionControl.Permit)}, or
+     *          {@code null} without admission control
+     *
+     * @throws  RenderException  in case the build is rejected, or the thread is interrupted while waiting
+     */
+    AdmissionControl.Permit admitBuild(RenderPriority priority, byte[] template, List<QRSpec> qrCodes,
+        List<PDFImage> images) throws RenderException {
+
+        if (admission == null) {
+            return null;
+        }
+
+        long cost = admission.isBudgeted() ? AdmissionControl.estimate(template, qrCodes, images) : 0;
+
+        return admission.acquire(priority, cost);
+    }
+
+
+    /**
+     * Waits until a build fits the memory budget and the limit of concurrent builds, like
+     * {@link #admitBuild(RenderPriority, byte[], List, List)}, estimated by the size of its template source, before
+     * the template is compiled.
+     *
+     * @param  priority  of the build
+     * @param  sourceSize  of the template source, in bytes
+     * @param  qrCodes  of the build
+     * @param  images  of the build
+     *
+     * @return  the permit of the build, to be released with {@link #releaseBuild(AdmissionControl.Permit)}, or
+     *          {@code null} without admission control
+     *
+     * @throws  RenderException  in case the build is rejected, or the thread is interrupted while waiting
+     */
+    AdmissionControl.Permit admitBuild(RenderPriority priority, long sourceSize, List<QRSpec> qrCodes,
+        List<PDFImage> images) throws RenderException {
+
+        if (admission == null) {
+            return null;
+        }
+
+        long cost = admission.isBudgeted() ? AdmissionControl.estimate(sourceSize, qrCodes, images) : 0;
+
+        return admission.acquire(priority, cost);
+    }
+
+
+    void releaseBuild(AdmissionControl.Permit permit) {
+
+        if (permit != null) {
+            admission.release(permit);
+        }
+    }
+
+
+    /**
+     * Creates a document of this builder, held in the configured storage.
+     *
+     * @param  pdf  document as byte array, taken over by the document, or shared if cached
+     *
+     * @return  the document
+     *
+     * @throws  RenderException  in case spilling the document fails
+     */
+    PDFDocument createDocument(byte[] pdf) throws RenderException {
+
+        return new PDFDocument(documentStorage.store(pdf), this);
+    }
+
+
+    /**
+     * @return  whether built documents are cached, by the inputs of their build
+     */
+    boolean isResultCached() {
+
+        return resultCache != null;
+    }
+
+
+    /**
+     * Adds what renders the documents of this builder to the given key, the renderers and the versions of this
+     * library and of PDFBox, so that documents cached by other renderers or versions are not used.
+     *
+     * @param  key  of a build
+     */
+    void addRenderersTo(BuildKey key) {
+
+        Package library = PDFBuilder.class.getPackage();
+
+        key.add(ResultCache.FORMAT_VERSION).add(renderers).add(Version.getVersion())
+            .add(library == null ? null : library.getImplementationVersion());
+    }
+
+
+    /**
+     * @param  key  of the build
+     *
+     * @return  the cached document, shared and must not be modified, or {@code null}
+     */
+    byte[] getCachedResult(String key) {
+
+        return resultCache.get(key);
+    }
+
+
+    void cacheResult(String key, byte[] pdf) {
+
+        resultCache.put(key, pdf);
+    }
+
+
+    /**
+     * @return  whether identical concurrent builds share one render
+     */
+    boolean isCoalescing() {
+
+        return inFlightBuilds != null;
+    }
+
+
+    /**
+     * Renders the build of the given key, or waits for the identical build already in flight and shares its result.
+     * If the build in flight runs out of time or is interrupted, a waiting build renders itself, within its own
+     * deadline.
+     *
+     * @param  key  of the build
+     * @param  build  rendering the build
+     *
+     * @return  the rendered document, shared and must not be modified
+     *
+     * @throws  RenderException  in case rendering the build fails, also for all builds waiting for it
+     */
+    byte[] coalesce(String key, Build build) throws RenderException {
+
+        while (true) {
+            CompletableFuture<byte[]> flight = new CompletableFuture<>();
+            CompletableFuture<byte[]> leader = inFlightBuilds.putIfAbsent(key, flight);
+
+            if (leader == null) {
+                return lead(key, flight, build);
+            }
+
+            byte[] pdf = await(leader);
+
+            if (pdf != null) {
+                return pdf;
+            }
+        }
+    }
+
+
+    private byte[] lead(String key, CompletableFuture<byte[]> flight, Build build) throws RenderException {
+
+        byte[] pdf;
+
+        try {
+            pdf = build.render();
+        } catch (Deadline.Exceeded e) {
+            land(key, flight).complete(null);
+
+            throw e;
+        } catch (RenderException | RuntimeException | Error e) {
+            if (Thread.currentThread().isInterrupted()) {
+                land(key, flight).complete(null);
+            } else {
+                land(key, flight).completeExceptionally(e);
+            }
+
+            throw e;
+        }
+
+        land(key, flight).complete(pdf);
+
+        return pdf;
+    }
+
+
+    /**
+     * Removes the given build from the builds in flight, before completing it, so that waiting builds retrying after
+     * an abandoned build do not find it again.
+     */
+    private CompletableFuture<byte[]> land(String key, CompletableFuture<byte[]> flight) {
+
+        inFlightBuilds.remove(key, flight);
+
+        return flight;
+    }
+
+
+    /**
+     * Renders all given specs, concurrently if an executor is configured, keeping the order of the specs.
+     */
+    private <S, R> List<R> renderAll(List<S> specs, SpecRenderer<S, R> renderer) throws RenderException {
+
+        List<R> codes = new ArrayList<>();
+
+        if (executor == null || specs.size() < 2) {
+            // No stream operation, the renderers throw a checked exception.
+            for (S spec : specs) {
+                codes.add(renderer.render(spec));
+            }
+
+            return codes;
+        }
+
+        List<CompletableFuture<R>> futures = new ArrayList<>();
+
+        for (S spec : specs) {
+            futures.add(CompletableFuture.supplyAsync(() -> {
+                        try {
+                            return renderer.render(spec);
+                        } catch (RenderException e) {
+                            throw new CompletionException(e);
+                        }
+                    }, executor));
+        }
+
+        // Collect in order of the specs, so that the codes are always embedded in the same order
+        try {
+            for (CompletableFuture<R> future : futures) {
+                codes.add(await(future));
+            }
+        } catch (RenderException | RuntimeException e) {
+            // Do not keep the executor busy with a failed build
+            futures.forEach(future -> future.cancel(false));
+
+            throw e;
+        }
+
+        return codes;
+    }
+
+
+    /**
+     * Waits for the given future, at most until the deadline of the build, if any.
+     */
+    private static <T> T await(CompletableFuture<T> future) throws RenderException {
+
+        Deadline deadline = Deadline.current();
+
+        try {
+            return deadline == null ? future.get() : future.get(deadline.remainingNanos(), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            deadline.checkNow();
+
+            throw new RenderException("Timed out waiting for rendering.", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            throw new RenderException("Interrupted while waiting for rendering.", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+
+            if (cause instanceof RenderException) {
+                throw (RenderException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+
+            throw new RenderException("Rendering failed.", cause);
+        }
+    }
+
+
+    /**
+     * Delegates to PDF renderers.
+     *
+     * @param  pdf  document as byte array
+     * @param  images  list of images to add
+     *
+     * @return  the PDF document as a byte array
+     *
+     * @throws  RenderException  in case rendering fails
+     *
+     * @see  PDFRenderer#renderQRCodes(byte[], List)
+     */
+    byte[] renderImages(byte[] pdf, List<PDFImage> images) throws RenderException {
+
+        ASSERT_NOT_NULL.accept("pdf", pdf);
+        ASSERT_NOT_NULL.accept("images", images);
+
+        return pdfRenderer.renderImages(pdf, images);
+    }
+
+
+    /**
+     * Configuration of a {@link PDFBuilder} instance. A configured builder is meant to be created once, and shared by
+     * the application, so that all renderers are set up only once.
+     *
+     * <p>Any renderer given must be safe for use by concurrent builds.</p>
+     *
+     * @since  0.6
+     */
+    public static final class Config {
+
+        private PDFRenderer pdfRenderer;
+        private QRCodeRenderer qrRenderer;
+        private BarcodeRenderer barcodeRenderer;
+        private Executor executor;
+        private int renderCacheSize;
+        private OptimizeSpec templateOptimization;
+        private int previewCacheSize;
+        private int resultCacheSize;
+        private Path resultCacheDirectory;
+        private long resultCacheDirectoryBytes;
+        private DocumentStorage documentStorage;
+        private long memoryBudget;
+        private int maxQueuedBuilds;
+        private int maxConcurrentBuilds;
+        private int minimumBatchShare;
+        private boolean coalescedBuilds;
+
+        private Config() {
+
+            this.pdfRenderer = new PDFBoxRenderer();
+            this.qrRenderer = new SegmentedQRCodeRenderer();
+            this.barcodeRenderer = new ZXingBarcodeRenderer();
+            this.renderCacheSize = DEFAULT_RENDER_CACHE_SIZE;
+            this.documentStorage = DocumentStorage.onHeap();
+            this.maxQueuedBuilds = Integer.MAX_VALUE;
+            this.minimumBatchShare = DEFAULT_MINIMUM_BATCH_SHARE;
+        }
+
+        /**
+         * Sets the renderer used for all PDF manipulation.
+         *
+         * @param  pdfRenderer  to use, never {@code null}
+         *
+         * @return  this configuration for chaining
+         */
+        public Config withPDFRenderer(PDFRenderer pdfRenderer) {
+
+            ASSERT_NOT_NULL.accept("PDF renderer", pdfRenderer);
+
+            this.pdfRenderer = pdfRenderer;
+
+            return this;
+        }
+
+
+        /**
+         * Sets the renderer used for QR-code generation.
+         *
+         * @param  qrRenderer  to use, never {@code null}
+         *
+         * @return  this configuration for chaining
+         */
+        public Config withQRCodeRenderer(QRCodeRenderer qrRenderer) {
+
+            ASSERT_NOT_NULL.accept("QR-code renderer", qrRenderer);
+
+            this.qrRenderer = qrRenderer;
+
+            return this;
+        }
+
+
+        /**
+         * Sets the renderer used for encoding barcodes.
+         *
+         * @param  barcodeRenderer  to use, never {@code null}
+         *
+         * @return  this configuration for chaining
+         */
+        public Config withBarcodeRenderer(BarcodeRenderer barcodeRenderer) {
+
+            ASSERT_NOT_NULL.accept("barcode renderer", barcodeRenderer);
+
+            this.barcodeRenderer = barcodeRenderer;
+
+            return this;
+        }
+
+
+        /**
+         * Sets the number of rendered QR-codes and encoded barcodes to keep, so that recurring codes are rendered only
+         * once. The least recently used codes are evicted first. Defaults to 256 of each. The builder of the static
+         * factory methods, like {@link PDFBuilder#fromTemplate(Path)}, does not cache codes.
+         *
+         * @param  entries  maximum number of codes to cache, {@code 0} disables caching
+         *
+         * @return  this configuration for chaining
+         */
+        public Config withRenderCacheSize(int entries) {
+
+            if (entries < 0) {
+                throw new IllegalArgumentException("The render cache size must not be negative");
+            }
+
+            this.renderCacheSize = entries;
+
+            return this;
+        }
+
+
+        /**
+         * Sets an executor, to render the QR-codes and barcodes of a document, and the pages of a preview,
+         * concurrently. Without an executor, all rendering is done on the calling thread.
+         *
+         * @param  executor  to render on, never {@code null}
+         *
+         * @return  this configuration for chaining
+         */
+        public Config withExecutor(Executor executor) {
+
+            ASSERT_NOT_NULL.accept("executor", executor);
+
+            this.executor = executor;
+
+            return this;
+        }
+
+
+        /**
+         * Sets the number of page previews to keep, so that previews of documents with the same content are rendered
+         * only once. The least recently used previews are evicted first. Defaults to {@code 0}, without caching.
+         *
+         * @param  entries  maximum number of page previews to cache, {@code 0} disables caching
+         *
+         * @return  this configuration for chaining
+         *
+         * @see  PDFDocument#renderPreviews(PreviewSpec)
+         */
+        public Config withPreviewCacheSize(int entries) {
+
+            if (entries < 0) {
+                throw new IllegalArgumentException("The preview cache size must not be negative");
+            }
+
+            this.previewCacheSize = entries;
+
+            return this;
+        }
+
+
+        /**
+         * Sets the number of built documents to keep in memory, so that builds with the same template and the same
+         * values, like reprints, return the cached document instead of rendering it again. The least recently used
+         * documents are evicted first. Defaults to {@code 0}, without caching.
+         *
+         * <p>Builds are identified by a hash of the template and of all values rendered into it. Template files and
+         * streams are identified by their source, so that a cached document is returned without compiling the
+         * template. Builds with lazy or fitted replacements are never cached, since their values are only known while
+         * rendering.</p>
+         *
+         * @param  entries  maximum number of documents to cache, {@code 0} disables the memory cache
+         *
+         * @return  this configuration for chaining
+         *
+         * @see  #withResultCacheDirectory(Path)
+         */
+        public Config withResultCacheSize(int entries) {
+
+            if (entries < 0) {
+                throw new IllegalArgumentException("The result cache size must not be negative");
+            }
+
+            this.resultCacheSize = entries;
+
+            return this;
+        }
+
+
+        /**
+         * Sets a directory to cache built documents in, in addition to the memory cache, so that cached documents
+         * survive restarts and can be shared by several builders and processes. The directory holds up to 1 GB of
+         * documents, see {@link #withResultCacheDirectory(Path, long)}.
+         *
+         * @param  directory  an existing, writable directory, never {@code null}
+         *
+         * @return  this configuration for chaining
+         *
+         * @see  #withResultCacheSize(int)
+         */
+        public Config withResultCacheDirectory(Path directory) {
+
+            return withResultCacheDirectory(directory, DEFAULT_RESULT_CACHE_DIRECTORY_BYTES);
+        }
+
+
+        /**
+         * Sets a directory to cache built documents in, in addition to the memory cache, so that cached documents
+         * survive restarts and can be shared by several builders and processes. Once the documents in the directory
+         * exceed the given size, the least recently used documents are deleted.
+         *
+         * <p>Cached documents are identified by the renderers and the library versions as well, so builders with
+         * other renderers, or of other versions, do not use each other's documents. Their documents still share
+         * the size of the directory.</p>
+         *
+         * @param  directory  an existing, writable directory, never {@code null}
+         * @param  maxBytes  total size of the documents to keep in the directory, must be positive
+         *
+         * @return  this configuration for chaining
+         *
+         * @see  #withResultCacheSize(int)
+         */
+        public Config withResultCacheDirectory(Path directory, long maxBytes) {
+
+            ASSERT_NOT_NULL.accept("result cache directory", directory);
+
+            if (maxBytes <= 0) {
+                throw new IllegalArgumentException("The result cache directory size must be positive");
+            }
+
+            this.resultCacheDirectory = directory;
+            this.resultCacheDirectoryBytes = maxBytes;
+
+            return this;
+        }
+
+
+        /**
+         * Lets concurrent builds with the same template and the same values share one render, so that a burst of
+         * identical requests, like a daily manifest at the end of a shift, renders the document only once. Builds
+         * waiting for an identical build honor their own deadline, and render themselves if the identical build
+         * runs out of time. Defaults to rendering every build.
+         *
+         * <p>Builds are identified like in the result cache, builds with lazy or fitted replacements are never
+         * coalesced. Unlike the result cache, no document is kept after its build completes.</p>
+         *
+         * @return  this configuration for chaining
+         *
+         * @see  #withResultCacheSize(int)
+         */
+        public Config withCoalescedBuilds() {
+
+            this.coalescedBuilds = true;
+
+            return this;
+        }
+
+
+        /**
+         * Sets a memory budget for concurrent builds. Each build is estimated by the size and page count of its
+         * template, and the decoded size of its images and QR-codes, and started only while the estimates of all
+         * running builds fit the budget. Other builds wait, in order of arrival. Defaults to {@code 0}, starting all
+         * builds at once.
+         *
+         * <p>Builds compiling a template file or stream are admitted before compiling it, estimated by the size of
+         * the template source. The estimate is rough, the budget should leave room for the rest of the
+         * application.</p>
+         *
+         * @param  bytes  the heap available for builds, {@code 0} disables admission control
+         *
+         * @return  this configuration for chaining
+         *
+         * @see  PDFBuilder#getAdmissionStats()
+         */
+        public Config withMemoryBudget(long bytes) {
+
+            if (bytes < 0) {
+                throw new IllegalArgumentException("The memory budget must not be negative");
+            }
+
+            this.memoryBudget = bytes;
+
+            return this;
+        }
+
+
+        /**
+         * Sets the number of builds that may wait, further builds are rejected with a
+         * {@link RenderRejectedException}. Defaults to no limit. Only applies with a memory budget, or a limit of
+         * concurrent builds.
+         *
+         * @param  builds  the maximum number of waiting builds, {@code 0} rejects every build that does not fit
+         *
+         * @return  this configuration for chaining
+         *
+         * @see  #withMemoryBudget(long)
+         */
+        public Config withMaxQueuedBuilds(int builds) {
+
+            if (builds < 0) {
+                throw new IllegalArgumentException("The maximum number of queued builds must not be negative");
+            }
+
+            this.maxQueuedBuilds = builds;
+
+            return this;
+        }
+
+
+        /**
+         * Sets the number of builds running at once, further builds wait, and are started in order of their
+         * {@link RenderPriority}. Defaults to {@code 0}, starting all builds at once.
+         *
+         * @param  builds  the maximum number of running builds, {@code 0} for no limit
+         *
+         * @return  this configuration for chaining
+         *
+         * @see  BuildablePDF#withPriority(RenderPriority)
+         * @see  PDFBuilder#getAdmissionStats()
+         */
+        public Config withMaxConcurrentBuilds(int builds) {
+
+            if (builds < 0) {
+                throw new IllegalArgumentException("The maximum number of concurrent builds must not be negative");
+            }
+
+            this.maxConcurrentBuilds = builds;
+
+            return this;
+        }
+
+
+        /**
+         * Sets the minimum share of batch builds, among the builds started while batch builds are waiting, so that
+         * batch work still progresses while interactive builds keep arriving. Defaults to 10 percent.
+         *
+         * @param  percent  of the builds started, from {@code 0} for strict priority, to {@code 100}
+         *
+         * @return  this configuration for chaining
+         *
+         * @see  RenderPriority#BATCH
+         */
+        public Config withMinimumBatchShare(int percent) {
+
+            if (percent < 0 || percent > 100) { // NOSONAR
+                throw new IllegalArgumentException("The minimum batch share must be a percentage");
+            }
+
+            this.minimumBatchShare = percent;
+
+            return this;
+        }
+
+
+        /**
+         * Sets where built documents are held, until they are released. Defaults to the heap.
+         *
+         * @param  storage  of the documents, never {@code null}
+         *
+         * @return  this configuration for chaining
+         *
+         * @see  PDFDocument#release()
+         */
+        public Config withDocumentStorage(DocumentStorage storage) {
+
+            ASSERT_NOT_NULL.accept("document storage", storage);
+
+            this.documentStorage = storage;
+
+            return this;
+        }
+
+
+        /**
+         * Sets an optimization, applied to every template once when it is loaded, so that all documents built from
+         * it are smaller. Templates loaded from the classpath are optimized only once, before they are cached.
+         *
+         * @param  spec  of the optimization, never {@code null}
+         *
+         * @return  this configuration for chaining
+         *
+         * @see  BuildablePDF#withOptimizedOutput(OptimizeSpec)
+         */
+        public Config withTemplateOptimization(OptimizeSpec spec) {
+
+            ASSERT_NOT_NULL.accept("optimization", spec);
+
+            this.templateOptimization = spec;
+
+            return this;
+        }
+
+
+        /**
+         * Creates a new builder instance from this configuration.
+         *
+         * @return  a new builder, to be shared for all builds
+         */
+        public PDFBuilder build() {
+
+            return new PDFBuilder(this);
+        }
     }
 }
@@ -1,35 +1,240 @@
 package net.contargo.print.pdf;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.Path;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 
 /**
  * A rendered PDF document.
  *
+ * <p>The content is held on the heap, or spilled to a temporary file or a direct buffer, as configured with
+ * {@link PDFBuilder.Config#withDocumentStorage(DocumentStorage)}. Once a document is no longer needed, for example
+ * after it is uploaded, {@link #release()} frees its storage.</p>
+ *
  * @author  Olle Törnström - toernstroem@synyx.de
  * @since  0.1
  */
 public final class PDFDocument {
 
-    private final byte[] data;
+    private final DocumentContent content;
+    private final PDFBuilder builder;
+
+    /**
+     * Creates a document that takes over ownership of the given data, without copying it, held on the heap.
+     */
+    PDFDocument(byte[] data, PDFBuilder builder) {
+
+        this(DocumentContent.onHeap(data), builder);
+    }
+
+
+    PDFDocument(DocumentContent content, PDFBuilder builder) {
+
+        this.content = content;
+        this.builder = builder;
+    }
+
+    /**
+     * Creates a document of an existing PDF, taking over ownership of the given data without copying it, for example
+     * to concatenate it with built documents. The caller must not modify the data afterwards.
+     *
+     * @param  pdf  the PDF data, never {@code null}
+     *
+     * @return  the document, held on the heap, using the default renderers
+     *
+     * @since  0.6
+     */
+    public static PDFDocument wrap(byte[] pdf) {
+
+        if (pdf == null) {
+            throw new IllegalArgumentException("The PDF must not be null");
+        }
+
+        return new PDFDocument(pdf, PDFBuilder.defaultBuilder());
+    }
+
+
+    /**
+     * Concatenates the given documents into one, for example a cover letter, delivery notes and the terms and
+     * conditions. Fonts, images and other resources that are identical in several documents, like the ones of a
+     * shared template, are contained only once.
+     *
+     * @param  documents  to concatenate, in order, not empty
+     *
+     * @return  the concatenated document
+     *
+     * @throws  RenderException  in case concatenating fails
+     *
+     * @since  0.6
+     */
+    public static PDFDocument concat(PDFDocument... documents) throws RenderException {
 
-    PDFDocument(byte[] data) {
+        if (documents == null) {
+            throw new IllegalArgumentException("The documents must not be null");
+        }
 
-        this.data = data.clone();
+        return concat(Arrays.asList(documents));
     }
 
+
+    /**
+     * Concatenates the given documents into one, using the renderers of the builder of the first document.
+     *
+     * @param  documents  to concatenate, in order, not empty
+     *
+     * @return  the concatenated document
+     *
+     * @throws  RenderException  in case concatenating fails
+     *
+     * @since  0.6
+     *
+     * @see  #concat(PDFDocument...)
+     */
+    public static PDFDocument concat(List<PDFDocument> documents) throws RenderException {
+
+        if (documents == null || documents.isEmpty() || documents.contains(null)) {
+            throw new IllegalArgumentException("The documents must not be empty, or contain null");
+        }
+
+        PDFBuilder builder = documents.get(0).builder;
+        List<byte[]> pdfs = new ArrayList<>();
+
+        for (PDFDocument document : documents) {
+            pdfs.add(document.data());
+        }
+
+        return builder.createDocument(builder.concat(pdfs));
+    }
+
+
     public void save(Path target) throws IOException {
 
-        Files.write(target, data);
+        content.writeTo(target);
     }
 
 
     public void save(OutputStream output) throws IOException {
 
-        output.write(data);
+        content.writeTo(output);
+    }
+
+
+    /**
+     * @return  the size of this document in bytes
+     *
+     * @throws  IllegalStateException  in case the document has been released
+     *
+     * @since  0.6
+     */
+    public long size() {
+
+        return content.size();
+    }
+
+
+    /**
+     * Returns a read-only view of the content of this document, without copying it, for example to hand it to a
+     * non-blocking client. A document spilled to a temporary file is memory-mapped.
+     *
+     * @return  a new buffer, positioned at the start of the content
+     *
+     * @throws  IOException  in case the temporary file of the document cannot be mapped
+     * @throws  IllegalStateException  in case the document has been released
+     *
+     * @since  0.6
+     */
+    public ByteBuffer asByteBuffer() throws IOException {
+
+        return content.asByteBuffer();
+    }
+
+
+    /**
+     * Opens a stream reading the content of this document, for example to hand it to an uploader, without loading
+     * a spilled document into the heap.
+     *
+     * @return  a new stream, to be closed by the caller
+     *
+     * @throws  IOException  in case the temporary file of the document cannot be opened
+     * @throws  IllegalStateException  in case the document has been released
+     *
+     * @since  0.6
+     */
+    public InputStream openInputStream() throws IOException {
+
+        return content.openStream();
+    }
+
+
+    /**
+     * Opens a channel reading the content of this document.
+     *
+     * @return  a new channel, to be closed by the caller
+     *
+     * @throws  IOException  in case the temporary file of the document cannot be opened
+     * @throws  IllegalStateException  in case the document has been released
+     *
+     * @since  0.6
+     *
+     * @see  #openInputStream()
+     */
+    public ReadableByteChannel openChannel() throws IOException {
+
+        return content.openChannel();
+    }
+
+
+    /**
+     * Releases the storage of this document, deleting its temporary file, or dropping its buffer. Afterwards the
+     * document can no longer be read. Releasing again has no effect.
+     *
+     * @since  0.6
+     *
+     * @see  DocumentStorage
+     */
+    public void release() {
+
+        content.release();
+    }
+
+
+    /**
+     * Renders previews of pages of this document, as PNG images, for example to show a document before it is
+     * downloaded. The pages are rendered concurrently, if the builder of this document is configured with an
+     * executor, and previews are cached, if it is configured with a preview cache.
+     *
+     * @param  spec  of the previews, never {@code null}
+     *
+     * @return  the PNG images, in the order of the pages specified
+     *
+     * @throws  RenderException  in case a page does not exist, or rendering fails
+     *
+     * @since  0.6
+     *
+     * @see  PDFBuilder.Config#withExecutor(java.util.concurrent.Executor)
+     * @see  PDFBuilder.Config#withPreviewCacheSize(int)
+     */
+    public List<byte[]> renderPreviews(PreviewSpec spec) throws RenderException {
+
+        return builder.renderPreviews(data(), spec);
+    }
+
+
+    private byte[] data() throws RenderException {
+
+        try {
+            return content.toByteArray();
+        } catch (IOException e) {
+            throw new RenderException("Reading the document failed.", e);
+        }
     }
 }
@@ -1,8 +1,12 @@
 package net.contargo.print.pdf;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 
+import java.nio.ByteBuffer;
+
 
 /**
  * A image, providing it's byte array and position information.
@@ -16,13 +20,112 @@ public class PDFImage {
     private final int x;
     private final int y;
 
+    /**
+     * Creates an image from a copy of the given data.
+     *
+     * @param  data  of the image, PNG, JPEG or any other format supported by {@code ImageIO}
+     * @param  x  position offset, from the left side of the page
+     * @param  y  position offset, from the bottom of the page
+     *
+     * @see  #wrap(byte[], int, int)
+     */
     public PDFImage(byte[] data, int x, int y) {
 
-        this.data = data.clone();
+        this(x, y, data.clone());
+    }
+
+
+    private PDFImage(int x, int y, byte[] data) {
+
+        this.data = data;
         this.x = x;
         this.y = y;
     }
 
+    /**
+     * Creates an image that takes over ownership of the given data, without copying it. For internal use only, where
+     * the data is known to be not referenced elsewhere.
+     */
+    static PDFImage adopt(byte[] data, int x, int y) {
+
+        return new PDFImage(x, y, data);
+    }
+
+
+    /**
+     * Creates an image that takes over ownership of the given data, without copying it. The caller must not modify
+     * the data afterwards.
+     *
+     * @param  data  of the image, never {@code null}
+     * @param  x  position offset, from the left side of the page
+     * @param  y  position offset, from the bottom of the page
+     *
+     * @return  the image
+     *
+     * @since  0.6
+     */
+    public static PDFImage wrap(byte[] data, int x, int y) {
+
+        if (data == null) {
+            throw new IllegalArgumentException("The data must not be null");
+        }
+
+        return new PDFImage(x, y, data);
+    }
+
+
+    /**
+     * Returns the image data, without copying. The array must not be modified.
+     */
+    byte[] getData() {
+
+        return data;
+    }
+
+
+    void addTo(BuildKey key) {
+
+        key.add(data).add(x).add(y);
+    }
+
+
+    /**
+     * @return  the size of the image data in bytes
+     *
+     * @since  0.6
+     */
+    public int size() {
+
+        return data.length;
+    }
+
+
+    /**
+     * Returns a read-only view of the image data, without copying it.
+     *
+     * @return  a new buffer, positioned at the start of the data
+     *
+     * @since  0.6
+     */
+    public ByteBuffer asByteBuffer() {
+
+        return ByteBuffer.wrap(data).asReadOnlyBuffer();
+    }
+
+
+    /**
+     * Returns a stream reading the image data, without copying it.
+     *
+     * @return  a new stream, that needs no closing
+     *
+     * @since  0.6
+     */
+    public InputStream openInputStream() {
+
+        return new ByteArrayInputStream(data);
+    }
+
+
     public int getX() {
 
         return x;
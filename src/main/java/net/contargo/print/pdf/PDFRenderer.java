@@ -56,7 +56,21 @@ public interface PDFRenderer {
     byte[] renderSearchAndReplaceText(byte[] pdf, Map<String, String> text) throws RenderException;
 
 
-    
+
+    /**
+     * Inspects the given PDF document, collecting the text reachable for search and replace, and the fonts used.
+     *
+     * @param  pdf  document byte array, to inspect
+     *
+     * @return  the inspection result
+     *
+     * @throws  RenderException  in case a failure occurs during parsing
+     *
+     * @since  0.6
+     */
+    TemplateInspection inspect(byte[] pdf) throws RenderException;
+
+
     /**
      * Renders the list of given images into the provided pdf document.
      *
@@ -69,4 +83,112 @@ public interface PDFRenderer {
      * @throws  RenderException  in case a failure occurs during rendering
      */
     byte[] renderImages(byte[] pdf, List<PDFImage> images) throws RenderException;
+
+
+    /**
+     * Draws the list of given barcodes into the provided pdf document, as vector graphics.
+     *
+     * @param  pdf  document byte array, to render on. Must not necessarily be copied since it is assumed that the
+     *              renderer is only part of an internal process.
+     * @param  barcodes  to draw into the document
+     *
+     * @return  the changed PDF document byte array
+     *
+     * @throws  RenderException  in case a failure occurs during rendering
+     *
+     * @since  0.6
+     */
+    byte[] renderBarcodes(byte[] pdf, List<PDFBarcode> barcodes) throws RenderException;
+
+
+    /**
+     * Optimizes the given PDF document, removing unused resources, merging identical streams, and stripping metadata
+     * as specified.
+     *
+     * @param  pdf  document byte array, to optimize
+     * @param  spec  of the optimization
+     *
+     * @return  the optimized PDF document byte array
+     *
+     * @throws  RenderException  in case a failure occurs during optimizing
+     *
+     * @since  0.6
+     */
+    byte[] optimize(byte[] pdf, OptimizeSpec spec) throws RenderException;
+
+
+    /**
+     * Writes the given PDF document linearized ("fast web view"), so that a viewer can display the first page before
+     * the whole document is loaded.
+     *
+     * @param  pdf  document byte array, to linearize
+     *
+     * @return  the linearized PDF document byte array
+     *
+     * @throws  RenderException  in case a failure occurs during writing
+     *
+     * @since  0.6
+     */
+    byte[] linearize(byte[] pdf) throws RenderException;
+
+
+    /**
+     * Writes the given PDF document reproducibly, so that the same content always results in the same bytes. The
+     * creation and modification dates are removed, and the document ID is derived from the content, instead of the
+     * time of writing.
+     *
+     * @param  pdf  document byte array, to write reproducibly
+     *
+     * @return  the reproducible PDF document byte array
+     *
+     * @throws  RenderException  in case a failure occurs during writing
+     *
+     * @since  0.6
+     */
+    byte[] makeReproducible(byte[] pdf) throws RenderException;
+
+
+    /**
+     * Concatenates the given PDF documents into one, in the given order. Resources that are identical in several
+     * documents, like the fonts and images of a shared template, are written only once.
+     *
+     * @param  pdfs  document byte arrays, to concatenate
+     *
+     * @return  the concatenated PDF document byte array
+     *
+     * @throws  RenderException  in case a failure occurs during concatenating
+     *
+     * @since  0.6
+     */
+    byte[] concat(List<byte[]> pdfs) throws RenderException;
+
+
+    /**
+     * Counts the pages of the given PDF document.
+     *
+     * @param  pdf  document byte array
+     *
+     * @return  the number of pages
+     *
+     * @throws  RenderException  in case a failure occurs during parsing
+     *
+     * @since  0.6
+     */
+    int countPages(byte[] pdf) throws RenderException;
+
+
+    /**
+     * Rasterizes the given pages of the PDF document into PNG images, parsing the document only once.
+     *
+     * @param  pdf  document byte array, to rasterize
+     * @param  pageIndexes  of the pages, starting at {@code 0}
+     * @param  dpi  resolution of the images
+     *
+     * @return  the PNG images, in the order of the page indexes
+     *
+     * @throws  RenderException  in case a page does not exist, or a failure occurs during rendering
+     *
+     * @since  0.6
+     */
+    List<byte[]> renderPreviews(byte[] pdf, List<Integer> pageIndexes, float dpi) throws RenderException;
 }
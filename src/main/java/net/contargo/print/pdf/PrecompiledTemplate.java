@@ -0,0 +1,174 @@
+package net.contargo.print.pdf;
+
+import org.apache.pdfbox.util.Version;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import java.security.MessageDigest;
+
+import java.util.Arrays;
+
+
+/**
+ * The file format of a template compiled ahead of time, loaded instead of compiling the template at startup.
+ *
+ * <p>A precompiled template holds the compiled template, together with the hash of its source template and of the
+ * template options it was compiled with. It is only used while both match, and the file is intact:</p>
+ *
+ * <pre>
+ * magic            8 bytes, "PDFBTPL\n"
+ * format version   int
+ * source hash      UTF, SHA-256 of the source template
+ * options hash     UTF, SHA-256 of the template options
+ * compiled length  int
+ * compiled         the compiled template
+ * checksum         32 bytes, SHA-256 of all of the above
+ * </pre>
+ *
+ * @since  0.6
+ *
+ * @see  TemplateCompiler
+ */
+final class PrecompiledTemplate {
+
+    /**
+     * Appended to the name of a template, for the name of its precompiled template.
+     */
+    static final String SUFFIX = ".compiled";
+
+    private static final Logger LOG = LoggerFactory.getLogger(PrecompiledTemplate.class);
+
+    private static final byte[] MAGIC = "PDFBTPL\n".getBytes(StandardCharsets.US_ASCII);
+    private static final int FORMAT_VERSION = 1;
+    private static final int CHECKSUM_LENGTH = 32;
+
+    private PrecompiledTemplate() {
+
+        // hide
+    }
+
+    /**
+     * @param  source  the source template
+     * @param  compiled  the template compiled from the source
+     * @param  options  the hash of the template options
+     *
+     * @return  the precompiled template
+     */
+    static byte[] write(byte[] source, byte[] compiled, String options) {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(compiled.length + 256); // NOSONAR
+
+        try(DataOutputStream out = new DataOutputStream(bytes)) {
+            out.write(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(ContentHash.sha256(source));
+            out.writeUTF(options);
+            out.writeInt(compiled.length);
+            out.write(compiled);
+            out.write(ContentHash.newDigest().digest(bytes.toByteArray()));
+        } catch (IOException e) {
+            throw new IllegalStateException("Writing to memory failed.", e); // NOSONAR - never thrown
+        }
+
+        return bytes.toByteArray();
+    }
+
+
+    /**
+     * @param  precompiled  the precompiled template
+     * @param  source  the current source template
+     * @param  options  the hash of the current template options
+     *
+     * @return  the compiled template, or {@code null} if the precompiled template is corrupt, of another format
+     *          version, or stale
+     */
+    static byte[] read(byte[] precompiled, byte[] source, String options) {
+
+        int content = precompiled.length - CHECKSUM_LENGTH;
+
+        if (content < MAGIC.length || !Arrays.equals(MAGIC, Arrays.copyOf(precompiled, MAGIC.length))) {
+            return rejected("is no precompiled template");
+        }
+
+        MessageDigest digest = ContentHash.newDigest();
+        digest.update(precompiled, 0, content);
+
+        if (!Arrays.equals(digest.digest(), Arrays.copyOfRange(precompiled, content, precompiled.length))) {
+            return rejected("is corrupt");
+        }
+
+        ByteBuffer in = ByteBuffer.wrap(precompiled, MAGIC.length, content - MAGIC.length);
+
+        try {
+            if (in.getInt() != FORMAT_VERSION) {
+                return rejected("is of another format version");
+            }
+
+            if (!ContentHash.sha256(source).equals(readUTF(in))) {
+                return rejected("is stale, the template changed");
+            }
+
+            if (!options.equals(readUTF(in))) {
+                return rejected("is stale, the template options changed");
+            }
+
+            byte[] compiled = new byte[in.getInt()];
+            in.get(compiled);
+
+            return compiled;
+        } catch (BufferUnderflowException | NegativeArraySizeException e) {
+            return rejected("is corrupt");
+        }
+    }
+
+
+    /**
+     * Hashes everything a template is compiled with: the PDF renderer, the PDFBox version, and the template
+     * optimization.
+     *
+     * @param  pdfRenderer  the PDF renderer of a builder
+     * @param  templateOptimization  the template optimization of a builder, may be {@code null}
+     *
+     * @return  the hash of the template options
+     */
+    static String options(PDFRenderer pdfRenderer, OptimizeSpec templateOptimization) {
+
+        BuildKey key = new BuildKey().add(pdfRenderer.getClass().getName()).add(Version.getVersion())
+            .add(templateOptimization != null);
+
+        if (templateOptimization != null) {
+            templateOptimization.addTo(key);
+        }
+
+        return key.toHex();
+    }
+
+
+    /**
+     * Reads a string as written by {@link DataOutputStream#writeUTF(String)}, hashes are plain ASCII.
+     */
+    private static String readUTF(ByteBuffer in) {
+
+        byte[] value = new byte[in.getShort() & 0xFFFF]; // NOSONAR
+        in.get(value);
+
+        return new String(value, StandardCharsets.US_ASCII);
+    }
+
+
+    private static byte[] rejected(String reason) {
+
+        LOG.info("The precompiled template {}, compiling the template instead", reason);
+
+        return null; // NOSONAR - null marks the fallback
+    }
+}
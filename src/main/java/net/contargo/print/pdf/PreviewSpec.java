@@ -0,0 +1,103 @@
+package net.contargo.print.pdf;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * Describing the page previews to render of a {@link PDFDocument}, as PNG images.
+ *
+ * <pre><code>
+        List&lt;byte[]&gt; previews = document.renderPreviews(PreviewSpec.ofPages(0).withDPI(36));
+   </code></pre>
+ *
+ * <p>Pages are selected by their index, starting at {@code 0}. The resolution defaults to 72 DPI, which renders one
+ * pixel per point, for example 595 x 842 pixels for an A4 page.</p>
+ *
+ * @since  0.6
+ */
+public final class PreviewSpec {
+
+    private static final float DEFAULT_DPI = 72;
+
+    private final List<Integer> pageIndexes;
+    private float dpi;
+
+    private PreviewSpec(List<Integer> pageIndexes) {
+
+        this.pageIndexes = pageIndexes;
+        this.dpi = DEFAULT_DPI;
+    }
+
+    /**
+     * Creates a new default specification, for previews of all pages.
+     *
+     * @return  this specification for chaining
+     */
+    public static PreviewSpec ofAllPages() {
+
+        return new PreviewSpec(Collections.emptyList());
+    }
+
+
+    /**
+     * Creates a new default specification, for previews of the given pages.
+     *
+     * @param  pageIndexes  of the pages, starting at {@code 0}, in the order of the previews
+     *
+     * @return  this specification for chaining
+     */
+    public static PreviewSpec ofPages(int... pageIndexes) {
+
+        if (pageIndexes == null || pageIndexes.length == 0) {
+            throw new IllegalArgumentException("The page indexes must not be empty");
+        }
+
+        List<Integer> pages = new ArrayList<>();
+
+        for (int pageIndex : pageIndexes) {
+            if (pageIndex < 0) {
+                throw new IllegalArgumentException("The page indexes must not be negative");
+            }
+
+            pages.add(pageIndex);
+        }
+
+        return new PreviewSpec(Collections.unmodifiableList(pages));
+    }
+
+
+    /**
+     * Set the resolution of the previews.
+     *
+     * @param  dpi  dots per inch, must be positive
+     *
+     * @return  this specification for chaining
+     */
+    public PreviewSpec withDPI(float dpi) {
+
+        if (!(dpi > 0)) {
+            throw new IllegalArgumentException("The DPI must be positive");
+        }
+
+        this.dpi = dpi;
+
+        return this;
+    }
+
+
+    /**
+     * @return  the selected page indexes, or an empty list for all pages
+     */
+    List<Integer> getPageIndexes() {
+
+        return pageIndexes;
+    }
+
+
+    float getDPI() {
+
+        return dpi;
+    }
+}
@@ -25,4 +25,29 @@ public interface QRCodeRenderer {
      * @since  0.3
      */
     byte[] render(String code, int size, int level, boolean margin) throws RenderException;
+
+
+    /**
+     * Render a QR code image, optionally raising the error correction level above the given one, as long as the
+     * code does not grow in size.
+     *
+     * <p>The default implementation ignores the boost, and renders with the given level.</p>
+     *
+     * @param  code  to render
+     * @param  size  of the rendered image (square)
+     * @param  level  to use as minimum error correction level, one of the values 7%, 15%, 25% or 30%
+     * @param  margin  whether to use the default silent-zone margin (default) or not
+     * @param  boostErrorCorrection  whether to raise the error correction level, where it is free
+     *
+     * @return  the rendered image as an image byte array
+     *
+     * @throws  RenderException  in case a failure occurs during rendering
+     *
+     * @since  0.6
+     */
+    default byte[] render(String code, int size, int level, boolean margin, boolean boostErrorCorrection)
+        throws RenderException {
+
+        return render(code, size, level, margin);
+    }
 }
@@ -0,0 +1,744 @@
+package net.contargo.print.pdf;
+
+import com.google.zxing.common.BitArray;
+import com.google.zxing.common.reedsolomon.GenericGF;
+import com.google.zxing.common.reedsolomon.ReedSolomonEncoder;
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+import com.google.zxing.qrcode.decoder.Mode;
+import com.google.zxing.qrcode.decoder.Version;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Encodes QR-codes with the smallest possible version, by splitting the content into numeric, alphanumeric and byte
+ * segments.
+ *
+ * <p>ZXing encodes the whole content in a single mode, so a single lowercase letter puts a long number into byte mode.
+ * Here the segmentation with the fewest bits is computed for each range of versions (the segment headers differ in
+ * size), and the smallest version that holds it is used. Optionally, the error correction level is raised as far as
+ * the chosen version still holds the content, which makes the code more robust at no cost in size.</p>
+ *
+ * <p>Content that is not representable in ISO-8859-1 is encoded as UTF-8, announced with an ECI header.</p>
+ *
+ * @since  0.6
+ */
+final class QREncoder {
+
+    private static final String ALPHANUMERIC_CHARS = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ $%*+-./:";
+
+    private static final Mode[] MODES = { Mode.NUMERIC, Mode.ALPHANUMERIC, Mode.BYTE };
+    private static final int NUMERIC = 0;
+    private static final int ALPHANUMERIC = 1;
+    private static final int BYTE = 2;
+
+    private static final ErrorCorrectionLevel[] LEVELS = {
+        ErrorCorrectionLevel.L, ErrorCorrectionLevel.M, ErrorCorrectionLevel.Q, ErrorCorrectionLevel.H
+    };
+
+    private static final int MAX_VERSION = 40;
+    private static final int UTF_8_ECI = 26;
+    private static final int MODE_BITS = 4;
+
+    // Costs are counted in sixths of a bit, so that both 10 bits per 3 digits and 11 bits per 2 characters are exact
+    private static final int NUMERIC_COST = 20;
+    private static final int ALPHANUMERIC_COST = 33;
+    private static final int BYTE_COST = 48;
+    private static final int IMPOSSIBLE = Integer.MAX_VALUE;
+
+    private static final int FORMAT_MASK = 0x5412;
+    private static final int FORMAT_GENERATOR = 0x537;
+    private static final int VERSION_GENERATOR = 0x1F25;
+    private static final int NUM_MASK_PATTERNS = 8;
+
+    private QREncoder() {
+
+        // Hide utility constructor
+    }
+
+    /**
+     * Maps the error correction level of a {@link QRSpec}, in percent of recoverable codewords, to its QR-code level.
+     *
+     * @param  level  in percent, as by {@link QRSpec.Level}
+     *
+     * @return  the error correction level, {@link ErrorCorrectionLevel#H} for any percentage not listed
+     */
+    static ErrorCorrectionLevel toErrorCorrectionLevel(int level) {
+
+        if (level == 7) {
+            return ErrorCorrectionLevel.L;
+        } else if (level == 15) {
+            return ErrorCorrectionLevel.M;
+        } else if (level == 25) {
+            return ErrorCorrectionLevel.Q;
+        } else {
+            return ErrorCorrectionLevel.H;
+        }
+    }
+
+
+    /**
+     * Encodes the given content.
+     *
+     * @param  content  to encode
+     * @param  level  the minimum error correction level
+     * @param  boostErrorCorrection  whether to raise the error correction level, as long as the version stays the same
+     *
+     * @return  the encoded QR-code modules, without quiet zone
+     *
+     * @throws  RenderException  in case the content is too long for a QR-code
+     */
+    static BarcodeMatrix encode(String content, ErrorCorrectionLevel level, boolean boostErrorCorrection)
+        throws RenderException {
+
+        Charset charset = StandardCharsets.ISO_8859_1.newEncoder().canEncode(content) ? StandardCharsets.ISO_8859_1
+                                                                                        : StandardCharsets.UTF_8;
+        int[] codePoints = content.codePoints().toArray();
+
+        // The character count fields change size at versions 10 and 27, so are the optimal segmentations
+        List<List<Segment>> segmentations = new ArrayList<>();
+        int group = -1;
+
+        for (int number = 1; number <= MAX_VERSION; number++) {
+            Version version = Version.getVersionForNumber(number);
+
+            if (number == 1 || number == 10 || number == 27) { // NOSONAR - the version ranges of the standard
+                segmentations.add(segment(codePoints, charset, version));
+                group++;
+            }
+
+            List<Segment> segments = segmentations.get(group);
+            int bits = bitLength(segments, charset, version);
+
+            if (bits <= dataCodewords(version, level) * 8) {
+                ErrorCorrectionLevel ecLevel = level;
+
+                for (int i = level.ordinal() + 1; boostErrorCorrection && i < LEVELS.length; i++) {
+                    if (bits > dataCodewords(version, LEVELS[i]) * 8) {
+                        break;
+                    }
+
+                    ecLevel = LEVELS[i];
+                }
+
+                return buildMatrix(codewords(segments, charset, version, ecLevel), version, ecLevel);
+            }
+        }
+
+        throw new RenderException("The code is too long for a QR-code.");
+    }
+
+
+    /**
+     * Computes the segmentation with the fewest bits, for the character count sizes of the given version, by dynamic
+     * programming over the modes each character can be encoded in.
+     */
+    private static List<Segment> segment(int[] codePoints, Charset charset, Version version) {
+
+        int n = codePoints.length;
+        int[] headers = new int[MODES.length];
+
+        for (int m = 0; m < MODES.length; m++) {
+            headers[m] = (MODE_BITS + MODES[m].getCharacterCountBits(version)) * 6;
+        }
+
+        // cost[i][m] is the cost of the first i characters, with the last one in mode m and its segment still open
+        int[][] cost = new int[n + 1][MODES.length];
+        int[][] previous = new int[n + 1][MODES.length];
+
+        for (int i = 0; i < n; i++) {
+            for (int m = 0; m < MODES.length; m++) {
+                int charCost = charCost(m, codePoints[i], charset);
+                int best = IMPOSSIBLE;
+
+                if (charCost != IMPOSSIBLE) {
+                    if (i == 0) {
+                        best = headers[m];
+                        previous[i + 1][m] = m;
+                    }
+
+                    for (int k = 0; i > 0 && k < MODES.length; k++) {
+                        if (cost[i][k] == IMPOSSIBLE) {
+                            continue;
+                        }
+
+                        int candidate = k == m ? cost[i][k] : roundUp(cost[i][k]) + headers[m];
+
+                        if (candidate < best) {
+                            best = candidate;
+                            previous[i + 1][m] = k;
+                        }
+                    }
+                }
+
+                cost[i + 1][m] = best == IMPOSSIBLE ? IMPOSSIBLE : best + charCost;
+            }
+        }
+
+        int mode = BYTE;
+
+        for (int m = 0; m < MODES.length; m++) {
+            if (cost[n][m] != IMPOSSIBLE && roundUp(cost[n][m]) < roundUp(cost[n][mode])) {
+                mode = m;
+            }
+        }
+
+        int[] modes = new int[n];
+
+        for (int i = n; i > 0; i--) {
+            modes[i - 1] = mode;
+            mode = previous[i][mode];
+        }
+
+        List<Segment> segments = new ArrayList<>();
+        int start = 0;
+
+        for (int i = 1; i <= n; i++) {
+            if (i == n || modes[i] != modes[start]) {
+                segments.add(new Segment(modes[start], new String(codePoints, start, i - start), charset));
+                start = i;
+            }
+        }
+
+        return segments;
+    }
+
+
+    private static int charCost(int mode, int codePoint, Charset charset) {
+
+        if (mode == NUMERIC) {
+            return codePoint >= '0' && codePoint <= '9' ? NUMERIC_COST : IMPOSSIBLE;
+        } else if (mode == ALPHANUMERIC) {
+            return ALPHANUMERIC_CHARS.indexOf(codePoint) >= 0 ? ALPHANUMERIC_COST : IMPOSSIBLE;
+        }
+
+        return BYTE_COST * byteLength(codePoint, charset);
+    }
+
+
+    private static int byteLength(int codePoint, Charset charset) {
+
+        if (charset == StandardCharsets.ISO_8859_1 || codePoint < 0x80) { // NOSONAR - UTF-8 length boundaries
+            return 1;
+        } else if (codePoint < 0x800) { // NOSONAR
+            return 2;
+        } else if (codePoint < 0x10000) { // NOSONAR
+            return 3;
+        }
+
+        return 4; // NOSONAR
+    }
+
+
+    private static int roundUp(int sixths) {
+
+        return (sixths + 5) / 6 * 6; // NOSONAR
+    }
+
+
+    private static int bitLength(List<Segment> segments, Charset charset, Version version) {
+
+        int bits = charset == StandardCharsets.UTF_8 ? MODE_BITS + 8 : 0;
+
+        for (Segment segment : segments) {
+            int countBits = MODES[segment.mode].getCharacterCountBits(version);
+
+            if (segment.count >= 1 << countBits) {
+                return Integer.MAX_VALUE;
+            }
+
+            bits += MODE_BITS + countBits + segment.dataBits();
+        }
+
+        return bits;
+    }
+
+
+    private static int dataCodewords(Version version, ErrorCorrectionLevel level) {
+
+        return version.getTotalCodewords() - version.getECBlocksForLevel(level).getTotalECCodewords();
+    }
+
+
+    /**
+     * Returns the data and error correction codewords, interleaved in the order they are placed in the symbol.
+     */
+    private static byte[] codewords(List<Segment> segments, Charset charset, Version version,
+        ErrorCorrectionLevel level) {
+
+        BitArray bits = new BitArray();
+
+        if (charset == StandardCharsets.UTF_8) {
+            bits.appendBits(Mode.ECI.getBits(), MODE_BITS);
+            bits.appendBits(UTF_8_ECI, 8);
+        }
+
+        for (Segment segment : segments) {
+            bits.appendBits(MODES[segment.mode].getBits(), MODE_BITS);
+            bits.appendBits(segment.count, MODES[segment.mode].getCharacterCountBits(version));
+            segment.appendData(bits);
+        }
+
+        int capacity = dataCodewords(version, level) * 8;
+
+        // Terminator, padding to a full codeword, and then alternating pad codewords
+        bits.appendBits(0, Math.min(MODE_BITS, capacity - bits.getSize()));
+        bits.appendBits(0, (8 - bits.getSize() % 8) % 8);
+
+        for (int pad = 0xEC; bits.getSize() < capacity; pad ^= 0xEC ^ 0x11) { // NOSONAR - pad codewords
+            bits.appendBits(pad, 8);
+        }
+
+        byte[] data = new byte[capacity / 8];
+        bits.toBytes(0, data, 0, data.length);
+
+        return interleave(data, version.getECBlocksForLevel(level));
+    }
+
+
+    private static byte[] interleave(byte[] data, Version.ECBlocks ecBlocks) {
+
+        int ecCount = ecBlocks.getECCodewordsPerBlock();
+        ReedSolomonEncoder reedSolomon = new ReedSolomonEncoder(GenericGF.QR_CODE_FIELD_256);
+
+        List<int[]> blocks = new ArrayList<>();
+        List<Integer> dataCounts = new ArrayList<>();
+        int maxDataCount = 0;
+        int offset = 0;
+
+        for (Version.ECB ecb : ecBlocks.getECBlocks()) {
+            for (int i = 0; i < ecb.getCount(); i++) {
+                int dataCount = ecb.getDataCodewords();
+                int[] block = new int[dataCount + ecCount];
+
+                for (int j = 0; j < dataCount; j++) {
+                    block[j] = data[offset + j] & 0xFF; // NOSONAR
+                }
+
+                reedSolomon.encode(block, ecCount);
+                blocks.add(block);
+                dataCounts.add(dataCount);
+                maxDataCount = Math.max(maxDataCount, dataCount);
+                offset += dataCount;
+            }
+        }
+
+        byte[] result = new byte[data.length + ecCount * blocks.size()];
+        int index = 0;
+
+        for (int j = 0; j < maxDataCount; j++) {
+            for (int b = 0; b < blocks.size(); b++) {
+                if (j < dataCounts.get(b)) {
+                    result[index++] = (byte) blocks.get(b)[j];
+                }
+            }
+        }
+
+        for (int j = 0; j < ecCount; j++) {
+            for (int b = 0; b < blocks.size(); b++) {
+                result[index++] = (byte) blocks.get(b)[dataCounts.get(b) + j];
+            }
+        }
+
+        return result;
+    }
+
+
+    private static BarcodeMatrix buildMatrix(byte[] codewords, Version version, ErrorCorrectionLevel level) {
+
+        Symbol symbol = new Symbol(version);
+        symbol.drawFunctionPatterns(version);
+        symbol.drawFormatBits(level, 0);
+        symbol.drawCodewords(codewords);
+
+        int bestMask = 0;
+        int bestPenalty = Integer.MAX_VALUE;
+
+        for (int mask = 0; mask < NUM_MASK_PATTERNS; mask++) {
+            symbol.applyMask(mask);
+            symbol.drawFormatBits(level, mask);
+
+            int penalty = symbol.penalty();
+
+            if (penalty < bestPenalty) {
+                bestMask = mask;
+                bestPenalty = penalty;
+            }
+
+            // Masking twice restores the unmasked modules
+            symbol.applyMask(mask);
+        }
+
+        symbol.applyMask(bestMask);
+        symbol.drawFormatBits(level, bestMask);
+
+        return new BarcodeMatrix(symbol.modules);
+    }
+
+    /**
+     * A run of characters, encoded in one mode.
+     */
+    private static final class Segment {
+
+        private final int mode;
+        private final String text;
+        private final byte[] bytes;
+        private final int count;
+
+        private Segment(int mode, String text, Charset charset) {
+
+            this.mode = mode;
+            this.text = text;
+            this.bytes = mode == BYTE ? text.getBytes(charset) : null;
+            this.count = mode == BYTE ? bytes.length : text.length();
+        }
+
+        int dataBits() {
+
+            if (mode == NUMERIC) {
+                return count / 3 * 10 + (count % 3 == 0 ? 0 : count % 3 * 3 + 1); // NOSONAR - 4 or 7 bits remaining
+            } else if (mode == ALPHANUMERIC) {
+                return count / 2 * 11 + count % 2 * 6; // NOSONAR
+            }
+
+            return count * 8;
+        }
+
+
+        void appendData(BitArray bits) {
+
+            if (mode == NUMERIC) {
+                for (int i = 0; i < count; i += 3) {
+                    int digits = Math.min(3, count - i);
+                    bits.appendBits(Integer.parseInt(text.substring(i, i + digits)), digits * 3 + 1);
+                }
+            } else if (mode == ALPHANUMERIC) {
+                for (int i = 0; i < count; i += 2) {
+                    int value = ALPHANUMERIC_CHARS.indexOf(text.charAt(i));
+
+                    if (i + 1 < count) {
+                        bits.appendBits(value * 45 + ALPHANUMERIC_CHARS.indexOf(text.charAt(i + 1)), 11); // NOSONAR
+                    } else {
+                        bits.appendBits(value, 6); // NOSONAR
+                    }
+                }
+            } else {
+                for (byte b : bytes) {
+                    bits.appendBits(b & 0xFF, 8); // NOSONAR
+                }
+            }
+        }
+    }
+
+    /**
+     * The modules of a symbol under construction, with the function modules that are excluded from data and masking.
+     */
+    private static final class Symbol {
+
+        private final int size;
+        private final boolean[][] modules;
+        private final boolean[][] function;
+
+        private Symbol(Version version) {
+
+            this.size = version.getDimensionForVersion();
+            this.modules = new boolean[size][size];
+            this.function = new boolean[size][size];
+        }
+
+        private void set(int x, int y, boolean dark) {
+
+            modules[y][x] = dark;
+            function[y][x] = true;
+        }
+
+
+        void drawFunctionPatterns(Version version) {
+
+            for (int i = 0; i < size; i++) {
+                set(6, i, i % 2 == 0);
+                set(i, 6, i % 2 == 0);
+            }
+
+            drawFinderPattern(3, 3);
+            drawFinderPattern(size - 4, 3);
+            drawFinderPattern(3, size - 4);
+
+            int[] centers = version.getAlignmentPatternCenters();
+            int last = centers.length - 1;
+
+            for (int i = 0; i < centers.length; i++) {
+                for (int j = 0; j < centers.length; j++) {
+                    // Skip the three positions overlapping the finder patterns
+                    if (!(i == 0 && j == 0 || i == 0 && j == last || i == last && j == 0)) {
+                        drawAlignmentPattern(centers[i], centers[j]);
+                    }
+                }
+            }
+
+            drawVersionBits(version.getVersionNumber());
+        }
+
+
+        private void drawFinderPattern(int x, int y) {
+
+            for (int dy = -4; dy <= 4; dy++) {
+                for (int dx = -4; dx <= 4; dx++) {
+                    int distance = Math.max(Math.abs(dx), Math.abs(dy));
+
+                    if (x + dx >= 0 && x + dx < size && y + dy >= 0 && y + dy < size) {
+                        set(x + dx, y + dy, distance != 2 && distance != 4);
+                    }
+                }
+            }
+        }
+
+
+        private void drawAlignmentPattern(int x, int y) {
+
+            for (int dy = -2; dy <= 2; dy++) {
+                for (int dx = -2; dx <= 2; dx++) {
+                    set(x + dx, y + dy, Math.max(Math.abs(dx), Math.abs(dy)) != 1);
+                }
+            }
+        }
+
+
+        private void drawVersionBits(int version) {
+
+            if (version < 7) { // NOSONAR - version information starts with version 7
+                return;
+            }
+
+            int remainder = version;
+
+            for (int i = 0; i < 12; i++) { // NOSONAR - 12 bit BCH code
+                remainder = (remainder << 1) ^ ((remainder >>> 11) * VERSION_GENERATOR);
+            }
+
+            int bits = version << 12 | remainder;
+
+            for (int i = 0; i < 18; i++) { // NOSONAR
+                boolean dark = (bits >>> i & 1) != 0;
+                int a = size - 11 + i % 3;
+                int b = i / 3;
+                set(a, b, dark);
+                set(b, a, dark);
+            }
+        }
+
+
+        void drawFormatBits(ErrorCorrectionLevel level, int mask) {
+
+            int data = level.getBits() << 3 | mask;
+            int remainder = data;
+
+            for (int i = 0; i < 10; i++) { // NOSONAR - 10 bit BCH code
+                remainder = (remainder << 1) ^ ((remainder >>> 9) * FORMAT_GENERATOR);
+            }
+
+            int bits = (data << 10 | remainder) ^ FORMAT_MASK;
+
+            // First copy, around the top left finder pattern
+            for (int i = 0; i <= 5; i++) { // NOSONAR
+                set(8, i, bit(bits, i));
+            }
+
+            set(8, 7, bit(bits, 6));
+            set(8, 8, bit(bits, 7));
+            set(7, 8, bit(bits, 8));
+
+            for (int i = 9; i < 15; i++) { // NOSONAR
+                set(14 - i, 8, bit(bits, i));
+            }
+
+            // Second copy, split between the other two finder patterns
+            for (int i = 0; i < 8; i++) {
+                set(size - 1 - i, 8, bit(bits, i));
+            }
+
+            for (int i = 8; i < 15; i++) { // NOSONAR
+                set(8, size - 15 + i, bit(bits, i));
+            }
+
+            set(8, size - 8, true);
+        }
+
+
+        private static boolean bit(int bits, int i) {
+
+            return (bits >>> i & 1) != 0;
+        }
+
+
+        /**
+         * Places the codewords in the zigzag order of the standard, in pairs of columns from the bottom right corner.
+         */
+        void drawCodewords(byte[] codewords) {
+
+            int i = 0;
+            int totalBits = codewords.length * 8;
+
+            for (int right = size - 1; right >= 1; right -= 2) {
+                if (right == 6) {
+                    // Skip the vertical timing pattern
+                    right = 5;
+                }
+
+                boolean upward = ((right + 1) & 2) == 0;
+
+                for (int vertical = 0; vertical < size; vertical++) {
+                    for (int j = 0; j < 2; j++) {
+                        int x = right - j;
+                        int y = upward ? size - 1 - vertical : vertical;
+
+                        if (!function[y][x] && i < totalBits) {
+                            modules[y][x] = bit(codewords[i >>> 3], 7 - (i & 7)); // NOSONAR
+                            i++;
+                        }
+                    }
+                }
+            }
+        }
+
+
+        void applyMask(int mask) {
+
+            for (int y = 0; y < size; y++) {
+                for (int x = 0; x < size; x++) {
+                    if (!function[y][x] && isMasked(mask, x, y)) {
+                        modules[y][x] = !modules[y][x];
+                    }
+                }
+            }
+        }
+
+
+        private static boolean isMasked(int mask, int x, int y) {
+
+            switch (mask) {
+                case 0:
+                    return (x + y) % 2 == 0;
+
+                case 1:
+                    return y % 2 == 0;
+
+                case 2:
+                    return x % 3 == 0;
+
+                case 3:
+                    return (x + y) % 3 == 0;
+
+                case 4:
+                    return (x / 3 + y / 2) % 2 == 0;
+
+                case 5:
+                    return x * y % 2 + x * y % 3 == 0;
+
+                case 6:
+                    return (x * y % 2 + x * y % 3) % 2 == 0;
+
+                default:
+                    return ((x + y) % 2 + x * y % 3) % 2 == 0;
+            }
+        }
+
+
+        /**
+         * Computes the penalty of the four rules of the standard, used to choose the mask pattern.
+         */
+        int penalty() {
+
+            int penalty = 0;
+            int dark = 0;
+
+            for (int a = 0; a < size; a++) {
+                int rowRun = 1;
+                int columnRun = 1;
+
+                for (int b = 0; b < size; b++) {
+                    dark += modules[a][b] ? 1 : 0;
+
+                    // Rule 1, runs of five or more modules of the same color
+                    if (b > 0) {
+                        rowRun = modules[a][b] == modules[a][b - 1] ? rowRun + 1 : 1;
+                        columnRun = modules[b][a] == modules[b - 1][a] ? columnRun + 1 : 1;
+                        penalty += runPenalty(rowRun) + runPenalty(columnRun);
+                    }
+
+                    // Rule 2, blocks of 2x2 modules of the same color
+                    if (a > 0 && b > 0 && modules[a][b] == modules[a - 1][b] && modules[a][b] == modules[a][b - 1]
+                            && modules[a][b] == modules[a - 1][b - 1]) {
+                        penalty += 3; // NOSONAR
+                    }
+
+                    // Rule 3, patterns looking like a finder pattern
+                    if (b + 6 < size) { // NOSONAR
+                        penalty += isFinderLike(a, b, true) ? 40 : 0; // NOSONAR
+                        penalty += isFinderLike(b, a, false) ? 40 : 0; // NOSONAR
+                    }
+                }
+            }
+
+            // Rule 4, the deviation of dark modules from half, in steps of five percent
+            int total = size * size;
+
+            return penalty + Math.abs(dark * 2 - total) * 10 / total * 10; // NOSONAR
+        }
+
+
+        /**
+         * Adds the penalty of one module to a run: 3 once the run reaches 5 modules, and 1 for each further module.
+         */
+        private static int runPenalty(int run) {
+
+            if (run == 5) { // NOSONAR
+                return 3; // NOSONAR
+            }
+
+            return run > 5 ? 1 : 0; // NOSONAR
+        }
+
+
+        /**
+         * Whether the 1:1:3:1:1 pattern starts at the given module, in a row or column, with four light modules on
+         * either side.
+         */
+        private boolean isFinderLike(int row, int column, boolean horizontal) {
+
+            boolean[] pattern = { true, false, true, true, true, false, true };
+
+            for (int i = 0; i < pattern.length; i++) {
+                if (module(row, column, i, horizontal) != pattern[i]) {
+                    return false;
+                }
+            }
+
+            return isLight(row, column, -4, -1, horizontal) || isLight(row, column, 7, 10, horizontal); // NOSONAR
+        }
+
+
+        private boolean isLight(int row, int column, int from, int to, boolean horizontal) {
+
+            for (int i = from; i <= to; i++) {
+                int position = (horizontal ? column : row) + i;
+
+                if (position >= 0 && position < size && module(row, column, i, horizontal)) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+
+        private boolean module(int row, int column, int offset, boolean horizontal) {
+
+            return horizontal ? modules[row][column + offset] : modules[row + offset][column];
+        }
+    }
+}
@@ -1,7 +1,6 @@
 package net.contargo.print.pdf;
 
 import com.google.zxing.EncodeHintType;
-import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
 
 import net.glxn.qrgen.core.exception.QRGenerationException;
 import net.glxn.qrgen.javase.QRCode;
@@ -19,7 +18,8 @@ public class QRGenRenderer implements QRCodeRenderer {
     public byte[] render(String code, int size, int level, boolean margin) throws RenderException {
 
         try {
-            QRCode c = QRCode.from(code).withErrorCorrection(toErrorCorrectionLevel(level)).withSize(size, size);
+            QRCode c = QRCode.from(code).withErrorCorrection(QREncoder.toErrorCorrectionLevel(level))
+                .withSize(size, size);
 
             if (!margin) {
                 c = c.withHint(EncodeHintType.MARGIN, 0);
@@ -30,18 +30,4 @@ public class QRGenRenderer implements QRCodeRenderer {
             throw new RenderException("QR-code render failed.", e);
         }
     }
-
-
-    private ErrorCorrectionLevel toErrorCorrectionLevel(int level) {
-
-        if (level == 7) {
-            return ErrorCorrectionLevel.L;
-        } else if (level == 15) {
-            return ErrorCorrectionLevel.M;
-        } else if (level == 25) {
-            return ErrorCorrectionLevel.Q;
-        } else {
-            return ErrorCorrectionLevel.H;
-        }
-    }
 }
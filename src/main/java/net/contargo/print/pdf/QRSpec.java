@@ -22,6 +22,7 @@ package net.contargo.print.pdf;
  *
  * <p>Lastly, we can adjust the error correction level, setting the level to {@code Low}, {@code Medium},
  * {@code Quartile} or {@code High}. More information is here: https://en.wikipedia.org/wiki/QR_code#Error_correction.
+ * With {@code withErrorCorrectionBoost()} the level is raised further, where that does not make the code larger.
  * </p>
  *
  * @author  Olle Törnström - toernstroem@synyx.de
@@ -55,6 +56,7 @@ public final class QRSpec {
     private int size;
     private Level level;
     private boolean margin;
+    private boolean boostErrorCorrection;
 
     private QRSpec(String code) {
 
@@ -81,9 +83,22 @@ public final class QRSpec {
 
     PDFImage render(QRCodeRenderer renderer) throws RenderException {
 
-        byte[] qrCode = renderer.render(code, size, level.val, margin);
+        byte[] qrCode = boostErrorCorrection ? renderer.render(code, size, level.val, margin, true)
+                                             : renderer.render(code, size, level.val, margin);
 
-        return new PDFImage(qrCode, x, y);
+        return PDFImage.adopt(qrCode, x, y);
+    }
+
+
+    int getSize() {
+
+        return size;
+    }
+
+
+    void addTo(BuildKey key) {
+
+        key.add(code).add(x).add(y).add(size).add(level.name()).add(margin).add(boostErrorCorrection);
     }
 
 
@@ -172,6 +187,24 @@ public final class QRSpec {
     }
 
 
+    /**
+     * Raises the error correction level above the one set, as far as the QR-code does not grow in size. A short code
+     * often leaves spare capacity in the smallest symbol that holds it, which is then used for error correction.
+     *
+     * <p>NOTE: Only honored by renderers that choose the symbol size, like {@link SegmentedQRCodeRenderer}.</p>
+     *
+     * @return  this spec for chaining
+     *
+     * @since  0.6
+     */
+    public QRSpec withErrorCorrectionBoost() {
+
+        this.boostErrorCorrection = true;
+
+        return this;
+    }
+
+
     /**
      * Tries to disable the silent-zone default margin.
      *
@@ -0,0 +1,97 @@
+package net.contargo.print.pdf;
+
+import java.io.ByteArrayOutputStream;
+
+
+/**
+ * An output buffer for the render stages, that is sized from a hint and recycled per thread.
+ *
+ * <p>A buffer is acquired with the expected size of the output, typically the size of the document going in, so that
+ * it rarely needs to grow. Releasing the buffer returns it to the current thread, where the next render stage picks it
+ * up again. Only the final {@link #toByteArray()} copies the content, into an array of the exact size, which is then
+ * owned by the caller.</p>
+ *
+ * <p>Buffers larger than 1 MB are not retained, to keep the memory held by idle threads bounded: each thread that
+ * rendered holds at most one buffer of up to 1 MB, so a pool of n rendering threads retains at most n MB, for as
+ * long as the threads live. Larger documents allocate a fresh buffer per render stage.</p>
+ *
+ * @since  0.6
+ */
+final class RenderBuffer extends ByteArrayOutputStream {
+
+    private static final int MIN_CAPACITY = 32 * 1024; // NOSONAR
+    private static final int MAX_RETAINED_CAPACITY = 1024 * 1024; // NOSONAR
+    private static final int MAX_CAPACITY = Integer.MAX_VALUE - 8; // NOSONAR
+
+    private static final ThreadLocal<RenderBuffer> RECYCLED = new ThreadLocal<>();
+
+    private boolean inUse;
+
+    private RenderBuffer(int capacity) {
+
+        super(capacity);
+    }
+
+    /**
+     * Acquires the buffer of the current thread, or a new one if the thread buffer is already in use.
+     *
+     * @param  sizeHint  the expected number of bytes to be written, or {@code 0} if unknown
+     *
+     * @return  an empty buffer, with at least the hinted capacity
+     */
+    static RenderBuffer acquire(long sizeHint) {
+
+        int capacity = capacityFor(sizeHint);
+
+        RenderBuffer buffer = RECYCLED.get();
+
+        if (buffer == null || buffer.inUse) {
+            buffer = new RenderBuffer(capacity);
+
+            if (RECYCLED.get() == null) {
+                RECYCLED.set(buffer);
+            }
+        } else if (buffer.buf.length < capacity) {
+            buffer.buf = new byte[capacity];
+        }
+
+        buffer.reset();
+        buffer.inUse = true;
+
+        return buffer;
+    }
+
+
+    private static int capacityFor(long sizeHint) {
+
+        // Some headroom, since rendering mostly adds to a document
+        long capacity = sizeHint + (sizeHint >> 3);
+
+        return (int) Math.min(Math.max(capacity, MIN_CAPACITY), MAX_CAPACITY);
+    }
+
+
+    /**
+     * @return  the number of bytes this buffer holds without growing
+     */
+    int capacity() {
+
+        return buf.length;
+    }
+
+
+    /**
+     * Releases this buffer back to the current thread. The content must not be accessed after releasing.
+     *
+     * <p>Note that {@link #close()} does not release the buffer, since PDFBox closes the stream it saves to.</p>
+     */
+    void release() {
+
+        if (buf.length > MAX_RETAINED_CAPACITY) {
+            buf = new byte[MIN_CAPACITY];
+        }
+
+        reset();
+        inUse = false;
+    }
+}
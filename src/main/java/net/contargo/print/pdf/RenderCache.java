@@ -0,0 +1,54 @@
+package net.contargo.print.pdf;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * A bounded cache of render results, evicting the least recently used entry when full.
+ *
+ * <p>Cached values are shared by all readers, and must therefore never be modified.</p>
+ *
+ * @param  <K>  the key type, with value based equality
+ * @param  <V>  the cached result type
+ *
+ * @since  0.6
+ */
+final class RenderCache<K, V> {
+
+    private final Map<K, V> entries;
+
+    RenderCache(int maxEntries) {
+
+        this.entries = new LinkedHashMap<K, V>(16, 0.75f, true) { // NOSONAR - the defaults of LinkedHashMap
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @return  the cached value, or {@code null} if there is none
+     */
+    synchronized V get(K key) {
+
+        return entries.get(key);
+    }
+
+
+    synchronized void put(K key, V value) {
+
+        entries.put(key, value);
+    }
+
+
+    synchronized int size() {
+
+        return entries.size();
+    }
+}
@@ -4,13 +4,13 @@ package net.contargo.print.pdf;
  * A general exception denoting that something went wrong during `rendering`. This is a one-for-all checked exception
  * that users of the library will receive, if something goes wrong, which can not be attributed to API-misuse.
  *
- * <p>The exception always provides the source, or originating, failure (most likely an {@link java.io.IOException}).
- * </p>
+ * <p>The exception provides the source, or originating, failure (most likely an {@link java.io.IOException}), unless
+ * the failure is detected by the library itself.</p>
  *
  * @author  Olle Törnström - toernstroem@synyx.de
  * @since  0.1
  */
-public final class RenderException extends Exception {
+public class RenderException extends Exception {
 
     private static final long serialVersionUID = 6167566822228335521L;
 
@@ -24,4 +24,17 @@ public final class RenderException extends Exception {
 
         super(message, cause);
     }
+
+
+    /**
+     * Constructs a new exception with the given message, for failures without an originating cause.
+     *
+     * @param  message  to clarify the context of this exception
+     *
+     * @since  0.6
+     */
+    public RenderException(String message) {
+
+        super(message);
+    }
 }
@@ -0,0 +1,24 @@
+package net.contargo.print.pdf;
+
+/**
+ * The priority class of a build, deciding which waiting build is started first, when a builder limits its concurrent
+ * builds.
+ *
+ * @since  0.6
+ *
+ * @see  BuildablePDF#withPriority(RenderPriority)
+ */
+public enum RenderPriority {
+
+    /**
+     * Builds a user is waiting for, started before any waiting batch build. This is the default.
+     */
+    INTERACTIVE,
+
+    /**
+     * Bulk builds, started when no interactive build is waiting, but still with a guaranteed minimum share.
+     *
+     * @see  PDFBuilder.Config#withMinimumBatchShare(int)
+     */
+    BATCH
+}
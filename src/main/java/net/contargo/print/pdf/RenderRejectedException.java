@@ -0,0 +1,23 @@
+package net.contargo.print.pdf;
+
+/**
+ * Denotes that a build was not started, because the builder is overloaded, so that the caller can retry later.
+ *
+ * @since  0.6
+ *
+ * @see  PDFBuilder.Config#withMaxQueuedBuilds(int)
+ */
+public final class RenderRejectedException extends RenderException {
+
+    private static final long serialVersionUID = 4720360883917853016L;
+
+    /**
+     * Constructs a new exception with the given message.
+     *
+     * @param  message  to clarify the context of this exception
+     */
+    public RenderRejectedException(String message) {
+
+        super(message);
+    }
+}
@@ -0,0 +1,23 @@
+package net.contargo.print.pdf;
+
+/**
+ * Denotes that a build was aborted, because it did not complete before its deadline.
+ *
+ * @since  0.6
+ *
+ * @see  BuildablePDF#withDeadline(java.time.Duration)
+ */
+public final class RenderTimeoutException extends RenderException {
+
+    private static final long serialVersionUID = -1496125366745829651L;
+
+    /**
+     * Constructs a new exception with the given message.
+     *
+     * @param  message  to clarify the context of this exception
+     */
+    public RenderTimeoutException(String message) {
+
+        super(message);
+    }
+}
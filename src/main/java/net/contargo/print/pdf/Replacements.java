@@ -0,0 +1,260 @@
+package net.contargo.print.pdf;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+
+/**
+ * The search-replace pairs of a build, where replace values may be resolved lazily.
+ *
+ * <p>A lazy value is computed only when it is first read, and then memoized. Renderers read a value only once the
+ * search value is actually found in the document, so expensive values are never computed for templates that do not
+ * use them.</p>
+ *
+ * @since  0.6
+ */
+final class Replacements extends AbstractMap<String, String> {
+
+    private final Map<String, Value> values = new HashMap<>();
+
+    /**
+     * Adds a search-replace pair, replacing any previous value without resolving it.
+     *
+     * @return  the previous replace value, or {@code null} if there was none, or it was lazy or measured
+     */
+    @Override
+    public String put(String search, String replace) {
+
+        Value previous = values.put(search, new Value(replace));
+
+        return previous == null ? null : previous.value;
+    }
+
+
+    /**
+     * Adds a search value, with a replace value that is computed on first use.
+     *
+     * @param  search  string to search for
+     * @param  replace  supplier of the string to replace with, called at most once
+     */
+    void putLazy(String search, Supplier<String> replace) {
+
+        values.put(search, new Value(replace));
+    }
+
+
+    /**
+     * Adds a search value, with a replace value that depends on the font and size of the text it is found in.
+     *
+     * @param  search  string to search for
+     * @param  replace  function computing the string to replace with, from the measure of the found text
+     */
+    void putMeasured(String search, Function<TextMeasure, String> replace) {
+
+        values.put(search, new Value(replace));
+    }
+
+
+    /**
+     * @return  whether all replace values are known up front, none is computed lazily or from the measure of the
+     *          text it is found in
+     */
+    boolean isResolved() {
+
+        return values.values().stream().allMatch(value -> value.supplier == null && value.measured == null);
+    }
+
+
+    /**
+     * Adds all search-replace pairs, ordered by search value, to the given build key. Only valid if
+     * {@link #isResolved()}.
+     */
+    void addTo(BuildKey key) {
+
+        key.add(values.size());
+        new TreeMap<>(values).forEach((search, value) -> key.add(search).add(value.value));
+    }
+
+
+    @Override
+    public String get(Object search) {
+
+        Value value = values.get(search);
+
+        return value == null ? null : value.get();
+    }
+
+
+    @Override
+    public boolean containsKey(Object search) {
+
+        return values.containsKey(search);
+    }
+
+
+    @Override
+    public int size() {
+
+        return values.size();
+    }
+
+
+    @Override
+    public Set<String> keySet() {
+
+        return Collections.unmodifiableSet(values.keySet());
+    }
+
+
+    /**
+     * Returns the search-replace pairs, where reading the value of an entry resolves a lazy replace value.
+     */
+    @Override
+    public Set<Entry<String, String>> entrySet() {
+
+        return new AbstractSet<Entry<String, String>>() {
+
+            @Override
+            public Iterator<Entry<String, String>> iterator() {
+
+                Iterator<Entry<String, Value>> entries = values.entrySet().iterator();
+
+                return new Iterator<Entry<String, String>>() {
+
+                    @Override
+                    public boolean hasNext() {
+
+                        return entries.hasNext();
+                    }
+
+
+                    @Override
+                    public Entry<String, String> next() {
+
+                        Entry<String, Value> entry = entries.next();
+
+                        return new ReplaceEntry(entry.getKey(), entry.getValue());
+                    }
+                };
+            }
+
+
+            @Override
+            public int size() {
+
+                return values.size();
+            }
+        };
+    }
+
+    /**
+     * A search-replace pair, where the replace value may depend on the measure of the text it is found in.
+     */
+    static final class ReplaceEntry implements Entry<String, String> {
+
+        private final String search;
+        private final Value replace;
+
+        private ReplaceEntry(String search, Value replace) {
+
+            this.search = search;
+            this.replace = replace;
+        }
+
+        @Override
+        public String getKey() {
+
+            return search;
+        }
+
+
+        @Override
+        public String getValue() {
+
+            return replace.get();
+        }
+
+
+        /**
+         * @return  whether the replace value depends on the measure of the text it is found in
+         */
+        boolean isMeasured() {
+
+            return replace.measured != null;
+        }
+
+
+        /**
+         * @param  measure  of the text the search value is found in, may be {@code null} if unknown
+         *
+         * @return  the replace value
+         */
+        String getValue(TextMeasure measure) {
+
+            return replace.get(measure);
+        }
+
+
+        @Override
+        public String setValue(String value) {
+
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * A replace value, memoizing the result of its supplier. Measured values are not memoized here, since they are
+     * backed by a shared layout.
+     */
+    private static final class Value {
+
+        private Supplier<String> supplier;
+        private Function<TextMeasure, String> measured;
+        private String value;
+
+        private Value(String value) {
+
+            this.value = value;
+        }
+
+
+        private Value(Supplier<String> supplier) {
+
+            this.supplier = supplier;
+        }
+
+
+        private Value(Function<TextMeasure, String> measured) {
+
+            this.measured = measured;
+        }
+
+        String get(TextMeasure measure) {
+
+            return measured != null ? measured.apply(measure) : get();
+        }
+
+
+        synchronized String get() {
+
+            if (measured != null) {
+                throw new IllegalStateException("The replace value depends on font metrics, that are not known");
+            }
+
+            if (supplier != null) {
+                value = supplier.get();
+                supplier = null;
+            }
+
+            return value;
+        }
+    }
+}
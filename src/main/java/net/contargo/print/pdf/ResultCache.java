@@ -0,0 +1,187 @@
+package net.contargo.print.pdf;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Caches built documents by their {@link BuildKey}, so that identical builds, like reprints, are not rendered again.
+ *
+ * <p>Documents are kept in a bounded in-memory tier, evicting the least recently used document first, and optionally
+ * in a directory, where they survive restarts and are shared by all builders using the same directory. A document
+ * read from the directory is added to the memory tier. Failing to read or write the directory is logged, and treated
+ * like a missing entry, since the document can always be rendered instead.</p>
+ *
+ * <p>The directory is bounded by the total size of its documents. Once exceeded, the least recently used documents
+ * are deleted, by their modification time, which is updated whenever a document is read. The size is tracked per
+ * process, and measured anew on every eviction, so that the directory can be shared.</p>
+ *
+ * @since  0.6
+ */
+final class ResultCache {
+
+    /**
+     * Part of every key, to be incremented whenever the rendering changes the output for the same inputs, so that
+     * documents cached by earlier versions are not used.
+     */
+    static final int FORMAT_VERSION = 1;
+
+    private static final Logger LOG = LoggerFactory.getLogger(ResultCache.class);
+
+    private static final String SUFFIX = ".pdf";
+
+    private final RenderCache<String, byte[]> memory;
+    private final Path directory;
+    private final long maxDirectoryBytes;
+    private final AtomicLong directoryBytes = new AtomicLong();
+
+    /**
+     * @param  maxEntries  of the memory tier, {@code 0} for none
+     * @param  directory  of the disk tier, {@code null} for none
+     * @param  maxDirectoryBytes  total size of the documents in the disk tier
+     */
+    ResultCache(int maxEntries, Path directory, long maxDirectoryBytes) {
+
+        this.memory = maxEntries > 0 ? new RenderCache<>(maxEntries) : null;
+        this.directory = directory;
+        this.maxDirectoryBytes = maxDirectoryBytes;
+
+        if (directory != null) {
+            evict();
+        }
+    }
+
+    /**
+     * @return  the cached document, shared by all callers and must therefore not be modified, or {@code null}
+     */
+    byte[] get(String key) {
+
+        byte[] pdf = memory == null ? null : memory.get(key);
+
+        if (pdf == null && directory != null) {
+            Path file = directory.resolve(key + SUFFIX);
+
+            try {
+                pdf = Files.readAllBytes(file);
+                Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+
+                if (memory != null) {
+                    memory.put(key, pdf);
+                }
+            } catch (NoSuchFileException e) {
+                return null;
+            } catch (IOException e) {
+                LOG.warn("Reading the cached document {} failed: {}", key, e.getMessage());
+
+                return pdf;
+            }
+        }
+
+        return pdf;
+    }
+
+
+    void put(String key, byte[] pdf) {
+
+        if (memory != null) {
+            memory.put(key, pdf);
+        }
+
+        if (directory != null) {
+            Path temp = null;
+
+            try {
+                // Write completely before it becomes visible, concurrent readers never see a partial document
+                temp = Files.createTempFile(directory, key, ".tmp");
+                Files.write(temp, pdf);
+                Files.move(temp, directory.resolve(key + SUFFIX), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                LOG.warn("Writing the cached document {} failed: {}", key, e.getMessage());
+                deleteQuietly(temp);
+
+                return;
+            }
+
+            if (directoryBytes.addAndGet(pdf.length) > maxDirectoryBytes) {
+                evict();
+            }
+        }
+    }
+
+
+    /**
+     * Deletes the least recently used documents of the directory, until they fit its size.
+     */
+    private synchronized void evict() {
+
+        List<Path> files = new ArrayList<>();
+        List<BasicFileAttributes> attributes = new ArrayList<>();
+        long total = 0;
+
+        try(DirectoryStream<Path> documents = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : documents) {
+                try {
+                    BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+                    files.add(file);
+                    attributes.add(attrs);
+                    total += attrs.size();
+                } catch (IOException e) {
+                    // Deleted concurrently
+                }
+            }
+        } catch (IOException e) {
+            LOG.warn("Measuring the result cache directory {} failed: {}", directory, e.getMessage());
+
+            return;
+        }
+
+        List<Integer> order = new ArrayList<>();
+
+        for (int i = 0; i < files.size(); i++) {
+            order.add(i);
+        }
+
+        order.sort(Comparator.comparing(i -> attributes.get(i).lastModifiedTime()));
+
+        for (int i : order) {
+            if (total <= maxDirectoryBytes) {
+                break;
+            }
+
+            deleteQuietly(files.get(i));
+            total -= attributes.get(i).size();
+        }
+
+        directoryBytes.set(total);
+    }
+
+
+    private static void deleteQuietly(Path file) {
+
+        if (file == null) {
+            return;
+        }
+
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            LOG.warn("Deleting the cached document {} failed: {}", file, e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package net.contargo.print.pdf;
+
+import com.google.zxing.client.j2se.MatrixToImageWriter;
+import com.google.zxing.common.BitMatrix;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+
+/**
+ * A QR-code renderer, that encodes the content in numeric, alphanumeric and byte segments, with the smallest version
+ * possible for the requested error correction level.
+ *
+ * <p>Container numbers and other uppercase or numeric content need far fewer modules than in byte mode, even as part
+ * of a longer text like an URL. The image is laid out like with {@link QRGenRenderer}: the symbol is scaled by the
+ * largest whole number of pixels per module that fits the size, and centered.</p>
+ *
+ * @since  0.6
+ */
+public class SegmentedQRCodeRenderer implements QRCodeRenderer {
+
+    private static final int QUIET_ZONE = 4;
+    private static final String FORMAT = "PNG";
+
+    @Override
+    public byte[] render(String code, int size, int level, boolean margin) throws RenderException {
+
+        return render(code, size, level, margin, false);
+    }
+
+
+    @Override
+    public byte[] render(String code, int size, int level, boolean margin, boolean boostErrorCorrection)
+        throws RenderException {
+
+        BarcodeMatrix matrix = QREncoder.encode(code, QREncoder.toErrorCorrectionLevel(level), boostErrorCorrection);
+
+        int quietZone = margin ? QUIET_ZONE : 0;
+        int symbolSize = matrix.getWidth() + 2 * quietZone;
+        int imageSize = Math.max(size, symbolSize);
+        int scale = imageSize / symbolSize;
+        int padding = (imageSize - matrix.getWidth() * scale) / 2;
+
+        BitMatrix image = new BitMatrix(imageSize);
+
+        for (int row = 0; row < matrix.getHeight(); row++) {
+            for (int column = 0; column < matrix.getWidth(); column++) {
+                if (matrix.isSet(column, row)) {
+                    image.setRegion(padding + column * scale, padding + row * scale, scale, scale);
+                }
+            }
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        try {
+            MatrixToImageWriter.writeToStream(image, FORMAT, out);
+        } catch (IOException e) {
+            throw new RenderException("QR-code render failed.", e);
+        }
+
+        return out.toByteArray();
+    }
+}
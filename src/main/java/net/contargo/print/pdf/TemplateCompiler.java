@@ -0,0 +1,62 @@
+package net.contargo.print.pdf;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+
+/**
+ * Command line tool compiling templates ahead of time, for example at build time, so that services load the
+ * precompiled templates at startup, instead of compiling them.
+ *
+ * <pre><code>
+        java -cp pdf-builder.jar:... net.contargo.print.pdf.TemplateCompiler src/main/resources/letter.pdf
+   </code></pre>
+ *
+ * <p>Each template is compiled with the default renderers, and without template optimization, into a precompiled
+ * template next to it, named {@code <template>.compiled}. Builders configured with another PDF renderer or template
+ * optimization, or running another PDFBox version, ignore the precompiled templates, and compile the templates as
+ * before. In a Maven build the tool can be run by the {@code exec-maven-plugin}, in the {@code generate-resources}
+ * phase.</p>
+ *
+ * @since  0.6
+ *
+ * @see  PDFBuilder#precompileTemplate(Path, Path)
+ */
+public final class TemplateCompiler {
+
+    private TemplateCompiler() {
+
+        // hide
+    }
+
+    /**
+     * @param  args  paths of the templates to compile
+     */
+    public static void main(String[] args) {
+
+        if (args.length == 0) {
+            System.err.println("Usage: TemplateCompiler <template.pdf>..."); // NOSONAR - command line tool
+            System.exit(2); // NOSONAR
+        }
+
+        PDFBuilder builder = PDFBuilder.defaultBuilder();
+        int failures = 0;
+
+        for (String arg : args) {
+            Path template = Paths.get(arg);
+            Path target = template.resolveSibling(template.getFileName() + PrecompiledTemplate.SUFFIX);
+
+            try {
+                builder.precompileTemplate(template, target);
+                System.out.println("Compiled " + template + " to " + target); // NOSONAR - command line tool
+            } catch (RenderException e) {
+                System.err.println("Compiling " + template + " failed: " + e.getMessage()); // NOSONAR
+                failures++;
+            }
+        }
+
+        if (failures > 0) {
+            System.exit(1); // NOSONAR - command line tool
+        }
+    }
+}
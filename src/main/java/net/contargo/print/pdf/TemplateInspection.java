@@ -0,0 +1,209 @@
+package net.contargo.print.pdf;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * The result of inspecting a template, describing the text that is reachable for search and replace, and the fonts
+ * used.
+ *
+ * <p>Text is recorded per page, as the segments that a replacement is applied to, one per text showing operator. A
+ * placeholder can only be replaced if it is fully contained in one segment. Placeholders that are split across
+ * several operators, or that are drawn from form XObjects, are visible in the document but not reachable.</p>
+ *
+ * <pre><code>
+   TemplateInspection inspection = PDFBuilder.inspect(template);
+
+   inspection.getPlaceholders();             // per page, for example `${name}` or `@name@`
+   inspection.getUnreachablePlaceholders();  // split or otherwise not replaceable
+   inspection.contains("@name@");            // whether a search value would be replaced
+   </code></pre>
+ *
+ * @since  0.6
+ */
+public final class TemplateInspection {
+
+    /**
+     * The default placeholder syntax, matching both {@code ${name}} and {@code @name@} placeholders.
+     */
+    public static final Pattern DEFAULT_PLACEHOLDER = Pattern.compile("\\$\\{[^}\\s]+\\}|@[^@\\s]+@");
+
+    private final List<List<String>> pages;
+    private final List<List<String>> unreachablePages;
+    private final Set<String> fonts;
+
+    /**
+     * Creates a new inspection result.
+     *
+     * @param  pages  the reachable text segments, in content order, for each page
+     * @param  unreachablePages  the text segments that are not reachable for replacement, for each page, for example
+     *                           text in form XObjects
+     * @param  fonts  the names of all fonts used
+     */
+    public TemplateInspection(List<List<String>> pages, List<List<String>> unreachablePages, Set<String> fonts) {
+
+        this.pages = pages;
+        this.unreachablePages = unreachablePages;
+        this.fonts = Collections.unmodifiableSet(new LinkedHashSet<>(fonts));
+    }
+
+    /**
+     * @return  the number of pages in the template
+     */
+    public int getPageCount() {
+
+        return pages.size();
+    }
+
+
+    /**
+     * @return  the names of the fonts used in the template
+     */
+    public Set<String> getFonts() {
+
+        return fonts;
+    }
+
+
+    /**
+     * Returns the reachable placeholders, using the {@link #DEFAULT_PLACEHOLDER default syntax}.
+     *
+     * @return  the placeholders found, for each page
+     */
+    public List<Set<String>> getPlaceholders() {
+
+        return getPlaceholders(DEFAULT_PLACEHOLDER);
+    }
+
+
+    /**
+     * Returns the reachable placeholders, matching the given syntax.
+     *
+     * @param  placeholder  pattern describing the placeholder syntax
+     *
+     * @return  the placeholders found, for each page
+     */
+    public List<Set<String>> getPlaceholders(Pattern placeholder) {
+
+        List<Set<String>> result = new ArrayList<>();
+
+        for (List<String> segments : pages) {
+            Set<String> found = new LinkedHashSet<>();
+
+            for (String segment : segments) {
+                Matcher matcher = placeholder.matcher(segment);
+
+                while (matcher.find()) {
+                    found.add(matcher.group());
+                }
+            }
+
+            result.add(Collections.unmodifiableSet(found));
+        }
+
+        return Collections.unmodifiableList(result);
+    }
+
+
+    /**
+     * Returns the unreachable placeholders, using the {@link #DEFAULT_PLACEHOLDER default syntax}.
+     *
+     * @return  the placeholders that are visible, but cannot be replaced
+     */
+    public Set<String> getUnreachablePlaceholders() {
+
+        return getUnreachablePlaceholders(DEFAULT_PLACEHOLDER);
+    }
+
+
+    /**
+     * Returns the unreachable placeholders matching the given syntax. These are split across several text operators
+     * (for example by kerning or a change of font), or drawn from form XObjects.
+     *
+     * @param  placeholder  pattern describing the placeholder syntax
+     *
+     * @return  the placeholders that are visible, but cannot be replaced
+     */
+    public Set<String> getUnreachablePlaceholders(Pattern placeholder) {
+
+        Set<String> result = new LinkedHashSet<>();
+
+        for (List<String> segments : pages) {
+            result.addAll(findSplit(placeholder, segments));
+        }
+
+        for (List<String> segments : unreachablePages) {
+            for (String segment : segments) {
+                Matcher matcher = placeholder.matcher(segment);
+
+                while (matcher.find()) {
+                    result.add(matcher.group());
+                }
+            }
+        }
+
+        return Collections.unmodifiableSet(result);
+    }
+
+
+    private static Set<String> findSplit(Pattern placeholder, List<String> segments) {
+
+        if (segments.isEmpty()) {
+            return Collections.emptySet();
+        }
+
+        StringBuilder text = new StringBuilder();
+        List<Integer> segmentEnds = new ArrayList<>();
+
+        for (String segment : segments) {
+            text.append(segment);
+            segmentEnds.add(text.length());
+        }
+
+        Set<String> split = new LinkedHashSet<>();
+        Matcher matcher = placeholder.matcher(text);
+        int segment = 0;
+
+        while (matcher.find()) {
+            while (segment < segmentEnds.size() - 1 && segmentEnds.get(segment) <= matcher.start()) {
+                segment++;
+            }
+
+            if (matcher.end() > segmentEnds.get(segment)) {
+                split.add(matcher.group());
+            }
+        }
+
+        return split;
+    }
+
+
+    /**
+     * Returns whether the given search value, as used for {@link BuildablePDF#withReplacement(String, String)}, would
+     * be found and replaced in this template.
+     *
+     * @param  search  value to look for
+     *
+     * @return  {@code true} if the value is reachable for replacement, otherwise {@code false}
+     */
+    public boolean contains(String search) {
+
+        Pattern pattern = Pattern.compile(search);
+
+        for (List<String> segments : pages) {
+            for (String segment : segments) {
+                if (pattern.matcher(segment).find()) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+}
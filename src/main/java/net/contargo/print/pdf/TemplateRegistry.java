@@ -0,0 +1,280 @@
+package net.contargo.print.pdf;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Serving the compiled templates of a directory, recompiled in the background whenever a template file changes.
+ *
+ * <pre><code>
+        TemplateRegistry templates = pdfBuilder.watchTemplates(Paths.get("/etc/templates"));
+
+        PDFDocument document = templates.forTemplate("letter.pdf").withReplacement("foo", "bar").build();
+   </code></pre>
+ *
+ * <p>All PDF files of the directory are compiled once, when the registry is created. Afterwards builds start from
+ * the compiled templates in memory, without any file I/O. A changed template is swapped in atomically once it has
+ * compiled, until then, or if compiling it fails, builds keep using the previous version. A deleted template is no
+ * longer served. Sub-directories are not watched. A precompiled template next to a template, named
+ * {@code <template>.compiled}, is loaded instead of compiling the template, while it is current. Changing only the
+ * precompiled template reloads the template as well.</p>
+ *
+ * <p>The registry watches the directory until it is closed.</p>
+ *
+ * @since  0.6
+ *
+ * @see  PDFBuilder#watchTemplates(Path)
+ */
+public final class TemplateRegistry implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TemplateRegistry.class);
+
+    // Editors and deployments write a file in several steps, settle before compiling
+    private static final long SETTLE_MILLIS = 50;
+
+    private final Path directory;
+    private final PDFBuilder builder;
+    private final WatchService watcher;
+    private final ConcurrentMap<String, byte[]> templates = new ConcurrentHashMap<>();
+
+    TemplateRegistry(Path directory, PDFBuilder builder) throws RenderException {
+
+        this.directory = directory;
+        this.builder = builder;
+
+        try {
+            this.watcher = directory.getFileSystem().newWatchService();
+        } catch (IOException e) {
+            throw new RenderException("Watching the template directory failed.", e);
+        }
+
+        try {
+            // Register before the first scan, so that no change in between is missed
+            directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+                StandardWatchEventKinds.ENTRY_DELETE);
+            listTemplates().forEach(this::compile);
+        } catch (IOException e) {
+            closeWatcher();
+
+            throw new RenderException("Watching the template directory failed.", e);
+        }
+
+        Thread thread = new Thread(this::watch, "pdf-builder-templates-" + directory.getFileName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns a builder for PDF documents, based on the current version of the given template.
+     *
+     * @param  name  of the template file in the watched directory, for example {@code "letter.pdf"}, never
+     *               {@code null}
+     *
+     * @return  a new builder instance, failing to build if the template is not available
+     */
+    public BuildablePDF forTemplate(String name) {
+
+        if (name == null) {
+            throw new IllegalArgumentException("The template name must not be null");
+        }
+
+        return new BuildablePDF(b -> get(name), builder);
+    }
+
+
+    /**
+     * @return  the names of the templates currently served, in alphabetical order
+     */
+    public Set<String> getTemplateNames() {
+
+        return Collections.unmodifiableSet(new TreeSet<>(templates.keySet()));
+    }
+
+
+    /**
+     * Stops watching the directory. Templates already compiled are still served.
+     */
+    @Override
+    public void close() {
+
+        closeWatcher();
+    }
+
+
+    /**
+     * @return  the current version of the compiled template, shared and must not be modified
+     *
+     * @throws  RenderException  in case the template is not available
+     */
+    byte[] get(String name) throws RenderException {
+
+        byte[] template = templates.get(name);
+
+        if (template == null) {
+            throw new RenderException("Loading the template failed.",
+                new FileNotFoundException(directory.resolve(name).toString()));
+        }
+
+        return template;
+    }
+
+
+    private Set<String> listTemplates() throws IOException {
+
+        Set<String> names = new TreeSet<>();
+
+        try(DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+
+                if (isTemplate(name)) {
+                    names.add(name);
+                }
+            }
+        }
+
+        return names;
+    }
+
+
+    private static boolean isTemplate(String name) {
+
+        return name.toLowerCase(Locale.ROOT).endsWith(".pdf");
+    }
+
+
+    /**
+     * Compiles the given template and swaps it in, keeping the previous version if compiling fails.
+     */
+    private void compile(String name) {
+
+        Path file = directory.resolve(name);
+
+        if (!Files.isRegularFile(file)) {
+            if (templates.remove(name) != null) {
+                LOG.info("Removed the template {}", file);
+            }
+
+            return;
+        }
+
+        Path precompiled = directory.resolve(name + PrecompiledTemplate.SUFFIX);
+
+        try {
+            byte[] template = Files.isRegularFile(precompiled)
+                ? builder.renderFromTemplate(Files.readAllBytes(file), Files.readAllBytes(precompiled))
+                : builder.renderFromTemplate(file);
+
+            templates.put(name, template);
+            LOG.info("Compiled the template {}", file);
+        } catch (IOException | RenderException | RuntimeException e) {
+            LOG.warn("Compiling the template {} failed, keeping the previous version: {}", file, e.getMessage());
+        }
+    }
+
+
+    private void watch() {
+
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                Set<String> changed = new TreeSet<>();
+                boolean overflow = false;
+
+                // Collect the changes until the directory settles, to compile each template once
+                while (key != null) {
+                    overflow |= collect(key, changed);
+                    key.reset();
+                    key = watcher.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+                }
+
+                if (overflow) {
+                    changed.addAll(templates.keySet());
+                    changed.addAll(rescan());
+                }
+
+                changed.forEach(this::compile);
+            }
+        } catch (ClosedWatchServiceException e) {
+            // Closed, stop watching
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /**
+     * @return  the templates of the directory, or none if listing fails, keeping the ones already served
+     */
+    private Set<String> rescan() {
+
+        try {
+            return listTemplates();
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Listing the template directory {} failed, keeping the current templates: {}", directory,
+                e.getMessage());
+
+            return Collections.emptySet();
+        }
+    }
+
+
+    /**
+     * @return  whether events were lost, and the whole directory must be scanned again
+     */
+    private static boolean collect(WatchKey key, Set<String> changed) {
+
+        boolean overflow = false;
+
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                overflow = true;
+            } else {
+                String name = ((Path) event.context()).getFileName().toString();
+
+                // Deploying a precompiled template alone reloads its template as well
+                if (name.endsWith(PrecompiledTemplate.SUFFIX)) {
+                    name = name.substring(0, name.length() - PrecompiledTemplate.SUFFIX.length());
+                }
+
+                if (isTemplate(name)) {
+                    changed.add(name);
+                }
+            }
+        }
+
+        return overflow;
+    }
+
+
+    private void closeWatcher() {
+
+        try {
+            watcher.close();
+        } catch (IOException e) {
+            LOG.warn("Closing the watch of the template directory {} failed: {}", directory, e.getMessage());
+        }
+    }
+}
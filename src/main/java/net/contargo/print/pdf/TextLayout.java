@@ -0,0 +1,122 @@
+package net.contargo.print.pdf;
+
+import net.contargo.print.pdf.BuildablePDF.MultiLineTextFillMode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Breaks a text into a number of lines, measured with the font and size of the placeholders the lines replace.
+ *
+ * <p>The layout is computed once, with the measure of the first placeholder found in the document, and then shared by
+ * all lines. Line breaking is greedy, and linear in the length of the text.</p>
+ *
+ * @since  0.6
+ */
+final class TextLayout {
+
+    private static final char WHITESPACE = ' ';
+
+    private final String[] words;
+    private final float maxLineWidth;
+    private final int numberOfLines;
+    private final MultiLineTextFillMode fillFrom;
+
+    private String[] lines;
+
+    TextLayout(String text, float maxLineWidth, int numberOfLines, MultiLineTextFillMode fillFrom) {
+
+        this.words = text.trim().isEmpty() ? new String[0] : text.trim().split("\\s+");
+        this.maxLineWidth = maxLineWidth;
+        this.numberOfLines = numberOfLines;
+        this.fillFrom = fillFrom;
+    }
+
+    /**
+     * Returns the given line of this layout, computing the layout on first access.
+     *
+     * @param  index  of the line
+     * @param  measure  of the placeholder, used if the layout is not yet computed, may be {@code null} if the
+     *                  placeholder font is unknown
+     *
+     * @return  the text of the line, empty if there is no text for this line
+     *
+     * @throws  IllegalStateException  if the layout must be computed, but no measure is available
+     * @throws  IllegalArgumentException  if the text does not fit the lines
+     */
+    synchronized String line(int index, TextMeasure measure) {
+
+        if (lines == null) {
+            if (measure == null) {
+                throw new IllegalStateException("No font is set for the multi-line placeholders");
+            }
+
+            lines = layout(measure);
+        }
+
+        return lines[index];
+    }
+
+
+    private String[] layout(TextMeasure measure) {
+
+        List<String> content = breakLines(measure);
+
+        if (content.size() > numberOfLines) {
+            throw new IllegalArgumentException(String.format(
+                    "The given text needs %d lines of maximum width %.1f, but there are only %d lines",
+                    content.size(), maxLineWidth, numberOfLines));
+        }
+
+        String[] result = new String[numberOfLines];
+        Arrays.fill(result, "");
+
+        int offset = MultiLineTextFillMode.BOTTOM.equals(fillFrom) ? numberOfLines - content.size() : 0;
+
+        for (int i = 0; i < content.size(); i++) {
+            result[offset + i] = content.get(i);
+        }
+
+        return result;
+    }
+
+
+    private List<String> breakLines(TextMeasure measure) {
+
+        List<String> result = new ArrayList<>();
+
+        float spaceWidth = measure.width(String.valueOf(WHITESPACE));
+        StringBuilder line = new StringBuilder();
+        float lineWidth = 0;
+
+        for (String word : words) {
+            float wordWidth = measure.width(word);
+
+            if (wordWidth > maxLineWidth) {
+                throw new IllegalArgumentException(String.format(
+                        "The word `%s` is wider than the maximum line width %.1f", word, maxLineWidth));
+            }
+
+            if (line.length() == 0) {
+                line.append(word);
+                lineWidth = wordWidth;
+            } else if (lineWidth + spaceWidth + wordWidth <= maxLineWidth) {
+                line.append(WHITESPACE).append(word);
+                lineWidth += spaceWidth + wordWidth;
+            } else {
+                result.add(line.toString());
+                line.setLength(0);
+                line.append(word);
+                lineWidth = wordWidth;
+            }
+        }
+
+        if (line.length() > 0) {
+            result.add(line.toString());
+        }
+
+        return result;
+    }
+}
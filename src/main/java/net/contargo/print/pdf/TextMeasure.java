@@ -0,0 +1,17 @@
+package net.contargo.print.pdf;
+
+/**
+ * Measures the width of a text, as set in a specific font and font size.
+ *
+ * @since  0.6
+ */
+@FunctionalInterface
+interface TextMeasure {
+
+    /**
+     * @param  text  to measure
+     *
+     * @return  the width of the text, in unscaled text space units
+     */
+    float width(String text);
+}
@@ -0,0 +1,63 @@
+package net.contargo.print.pdf;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.EncodeHintType;
+import com.google.zxing.MultiFormatWriter;
+import com.google.zxing.WriterException;
+import com.google.zxing.common.BitMatrix;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+
+/**
+ * A barcode renderer implementation using the ZXing library (https://github.com/zxing/zxing), which is also used
+ * for QR-code generation.
+ *
+ * @since  0.6
+ */
+public class ZXingBarcodeRenderer implements BarcodeRenderer {
+
+    private static final Map<EncodeHintType, Object> HINTS = new EnumMap<>(EncodeHintType.class);
+
+    static {
+        // The quiet zone is left to the layout of the template
+        HINTS.put(EncodeHintType.MARGIN, 0);
+    }
+
+    @Override
+    public BarcodeMatrix render(BarcodeSpec.Symbology symbology, String code) throws RenderException {
+
+        try {
+            // Requesting the minimum size returns a matrix of one pixel per module
+            BitMatrix bits = new MultiFormatWriter().encode(code, toBarcodeFormat(symbology), 0, 0, HINTS);
+
+            boolean[][] rows = new boolean[bits.getHeight()][bits.getWidth()];
+
+            for (int row = 0; row < rows.length; row++) {
+                for (int column = 0; column < rows[row].length; column++) {
+                    rows[row][column] = bits.get(column, row);
+                }
+            }
+
+            return new BarcodeMatrix(rows);
+        } catch (WriterException | IllegalArgumentException e) {
+            throw new RenderException("Barcode render failed.", e);
+        }
+    }
+
+
+    private BarcodeFormat toBarcodeFormat(BarcodeSpec.Symbology symbology) {
+
+        switch (symbology) {
+            case DATA_MATRIX:
+                return BarcodeFormat.DATA_MATRIX;
+
+            case PDF_417:
+                return BarcodeFormat.PDF_417;
+
+            default:
+                return BarcodeFormat.CODE_128;
+        }
+    }
+}
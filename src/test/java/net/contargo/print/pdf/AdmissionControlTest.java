@@ -0,0 +1,196 @@
+package net.contargo.print.pdf;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import java.time.Duration;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+
+public class AdmissionControlTest {
+
+    @Test
+    public void ensureEstimatesByTemplateSizeAndPageCount() {
+
+        byte[] template = "<< /Type /Pages >> << /Type /Page >> << /Type /Page >>".getBytes(StandardCharsets.US_ASCII);
+        byte[] larger = "<< /Type /Pages >> << /Type /Page >> << /Type /Page >> << /Type /Page >>".getBytes(
+                StandardCharsets.US_ASCII);
+
+        long cost = AdmissionControl.estimate(template, Collections.emptyList(), Collections.emptyList());
+        long largerCost = AdmissionControl.estimate(larger, Collections.emptyList(), Collections.emptyList());
+
+        Assert.assertTrue("Pages not counted", largerCost - cost > (larger.length - template.length) * 3);
+        Assert.assertTrue("QR-codes not counted",
+            AdmissionControl.estimate(template, Collections.singletonList(QRSpec.fromCode("foo")),
+                Collections.emptyList()) > cost);
+    }
+
+
+    @Test
+    public void ensureQueuesBuildsUntilTheyFitTheBudget() throws Exception {
+
+        AdmissionControl admission = new AdmissionControl(100, 0, Integer.MAX_VALUE, 0);
+
+        AdmissionControl.Permit first = admission.acquire(RenderPriority.INTERACTIVE, 60); // NOSONAR
+
+        CompletableFuture<AdmissionControl.Permit> second = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return admission.acquire(RenderPriority.INTERACTIVE, 60); // NOSONAR
+                } catch (RenderException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+
+        while (admission.stats().getQueuedBuilds() == 0) {
+            Thread.sleep(1);
+        }
+
+        Assert.assertFalse("Admitted beyond the budget", second.isDone());
+
+        admission.release(first);
+
+        Assert.assertEquals("Wrong reservation", 60, second.get(10, TimeUnit.SECONDS).getReserved()); // NOSONAR
+
+        AdmissionStats stats = admission.stats();
+
+        Assert.assertEquals("Wrong admitted builds", 2, stats.getAdmittedBuilds());
+        Assert.assertEquals("Wrong reserved bytes", 60, stats.getReservedBytes()); // NOSONAR
+        Assert.assertTrue("Wait not measured", stats.getMaxQueueWait().toNanos() > 0);
+    }
+
+
+    @Test
+    public void ensureRejectsBuildsIfQueueIsFullOrDeadlinePasses() throws RenderException {
+
+        AdmissionControl admission = new AdmissionControl(100, 0, 0, 0);
+
+        Assert.assertEquals("Not clamped to the budget", 100,
+            admission.acquire(RenderPriority.INTERACTIVE, 1000).getReserved()); // NOSONAR
+
+        try {
+            admission.acquire(RenderPriority.INTERACTIVE, 1);
+            Assert.fail("Should reject if the queue is full");
+        } catch (RenderRejectedException e) {
+            // Expected
+        }
+
+        AdmissionControl queued = new AdmissionControl(100, 0, 1, 0);
+        queued.acquire(RenderPriority.INTERACTIVE, 100); // NOSONAR
+
+        Deadline deadline = Deadline.start(Duration.ofMillis(10));
+
+        try {
+            queued.acquire(RenderPriority.INTERACTIVE, 1);
+            Assert.fail("Should fail after the deadline");
+        } catch (Deadline.Exceeded e) {
+            // Expected
+        } finally {
+            deadline.end();
+        }
+
+        Assert.assertEquals("Wrong rejected builds", 1, admission.stats().getRejectedBuilds());
+        Assert.assertEquals("Timed out build counted as rejected", 0, queued.stats().getRejectedBuilds());
+        Assert.assertEquals("Wrong timed out builds", 1,
+            queued.stats().getStats(RenderPriority.INTERACTIVE).getTimedOutBuilds());
+        Assert.assertEquals("Wrong timed out builds", 1, queued.stats().getTimedOutBuilds());
+        Assert.assertEquals("Timed out build still queued", 0, queued.stats().getQueuedBuilds());
+    }
+
+
+    @Test
+    public void ensureAdmitsInteractiveBuildsFirstWithMinimumBatchShare() throws Exception {
+
+        // Every other build admitted is a batch build, while batch builds are waiting
+        AdmissionControl admission = new AdmissionControl(0, 1, Integer.MAX_VALUE, 50); // NOSONAR
+        AdmissionControl.Permit running = admission.acquire(RenderPriority.BATCH, 0);
+
+        List<RenderPriority> admitted = Collections.synchronizedList(new ArrayList<>());
+        List<CompletableFuture<Void>> builds = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(4); // NOSONAR
+
+        for (RenderPriority priority : Arrays.asList(RenderPriority.BATCH, RenderPriority.BATCH,
+                    RenderPriority.INTERACTIVE, RenderPriority.INTERACTIVE)) {
+            int queued = admission.stats().getQueuedBuilds();
+
+            builds.add(CompletableFuture.runAsync(() -> {
+                        try {
+                            AdmissionControl.Permit permit = admission.acquire(priority, 0);
+                            admitted.add(priority);
+                            admission.release(permit);
+                        } catch (RenderException e) {
+                            throw new IllegalStateException(e);
+                        }
+                    }, executor));
+
+            while (admission.stats().getQueuedBuilds() == queued) {
+                Thread.sleep(1);
+            }
+        }
+
+        admission.release(running);
+        CompletableFuture.allOf(builds.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+        executor.shutdown();
+
+        Assert.assertEquals("Wrong order of admission",
+            Arrays.asList(RenderPriority.INTERACTIVE, RenderPriority.BATCH, RenderPriority.INTERACTIVE,
+                RenderPriority.BATCH), admitted);
+
+        AdmissionStats stats = admission.stats();
+
+        Assert.assertEquals("Wrong completed batch builds", 3,
+            stats.getStats(RenderPriority.BATCH).getCompletedBuilds());
+        Assert.assertEquals("Wrong completed interactive builds", 2,
+            stats.getStats(RenderPriority.INTERACTIVE).getCompletedBuilds());
+    }
+
+
+    @Test
+    public void ensureAdmitsBatchBuildsByTheirShareAboveHalf() throws Exception {
+
+        // At least 60 percent of the builds admitted are batch builds, while batch builds are waiting
+        AdmissionControl admission = new AdmissionControl(0, 1, Integer.MAX_VALUE, 60); // NOSONAR
+        AdmissionControl.Permit running = admission.acquire(RenderPriority.BATCH, 0);
+
+        List<RenderPriority> admitted = Collections.synchronizedList(new ArrayList<>());
+        List<CompletableFuture<Void>> builds = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(6); // NOSONAR
+
+        for (RenderPriority priority : Arrays.asList(RenderPriority.BATCH, RenderPriority.BATCH,
+                    RenderPriority.BATCH, RenderPriority.INTERACTIVE, RenderPriority.INTERACTIVE,
+                    RenderPriority.INTERACTIVE)) {
+            int queued = admission.stats().getQueuedBuilds();
+
+            builds.add(CompletableFuture.runAsync(() -> {
+                        try {
+                            AdmissionControl.Permit permit = admission.acquire(priority, 0);
+                            admitted.add(priority);
+                            admission.release(permit);
+                        } catch (RenderException e) {
+                            throw new IllegalStateException(e);
+                        }
+                    }, executor));
+
+            while (admission.stats().getQueuedBuilds() == queued) {
+                Thread.sleep(1);
+            }
+        }
+
+        admission.release(running);
+        CompletableFuture.allOf(builds.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+        executor.shutdown();
+
+        Assert.assertEquals("Wrong order of admission",
+            Arrays.asList(RenderPriority.INTERACTIVE, RenderPriority.BATCH, RenderPriority.BATCH,
+                RenderPriority.INTERACTIVE, RenderPriority.BATCH, RenderPriority.INTERACTIVE), admitted);
+    }
+}
@@ -1,6 +1,10 @@
 package net.contargo.print.pdf;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.function.Consumer;
@@ -11,6 +15,7 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Captor;
+import org.mockito.InOrder;
 import org.mockito.Matchers;
 import org.mockito.Mock;
 import org.mockito.Mockito;
@@ -44,6 +49,8 @@ public class BuildablePDFTest {
             .thenReturn(bytes);
         Mockito.when(mockedPDFBuilder.renderImages(Mockito.any(byte[].class), Mockito.anyListOf(PDFImage.class)))
         	.thenReturn(bytes);
+        Mockito.when(mockedPDFBuilder.createDocument(Mockito.any(byte[].class)))
+            .thenAnswer(invocation -> new PDFDocument((byte[]) invocation.getArguments()[0], mockedPDFBuilder));
     }
 
 
@@ -127,6 +134,61 @@ public class BuildablePDFTest {
     }
 
 
+    @Test
+    public void ensurePDFIsBuiltWithLazyReplacement() throws RenderException {
+
+        new BuildablePDF(mockedPath, mockedPDFBuilder).withReplacement("foo", "bar")
+            .withLazyReplacement("search", () -> "replace")
+            .build();
+
+        Mockito.verify(mockedPDFBuilder)
+            .renderSearchAndReplaceText(Matchers.any(byte[].class), replacementsCaptor.capture());
+
+        Map<String, String> replacements = replacementsCaptor.getValue();
+        Assert.assertEquals("Wrong amount of replacements", 2, replacements.size());
+        Assert.assertEquals("Wrong replacement", "bar", replacements.get("foo"));
+        Assert.assertEquals("Wrong replacement", "replace", replacements.get("search"));
+    }
+
+
+    @Test
+    public void ensureOverwritingLazyReplacementDoesNotResolveIt() throws RenderException {
+
+        new BuildablePDF(mockedPath, mockedPDFBuilder).withLazyReplacement("@foo@", () -> {
+                    throw new AssertionError("Overwritten lazy value resolved");
+                })
+            .withReplacement("@foo@", "y")
+            .build();
+
+        Mockito.verify(mockedPDFBuilder)
+            .renderSearchAndReplaceText(Matchers.any(byte[].class), replacementsCaptor.capture());
+
+        Assert.assertEquals("Wrong replacement", "y", replacementsCaptor.getValue().get("@foo@"));
+    }
+
+
+    @Test
+    public void ensureOverwritingFittedReplacementDoesNotResolveIt() throws RenderException {
+
+        new BuildablePDF(mockedPath, mockedPDFBuilder).withFittedMultiLineReplacement("Lucy in the sky", 100, "@l1@",
+                "@l2@")
+            .withReplacement("@l1@", "z")
+            .build();
+
+        Mockito.verify(mockedPDFBuilder)
+            .renderSearchAndReplaceText(Matchers.any(byte[].class), replacementsCaptor.capture());
+
+        Assert.assertEquals("Wrong replacement", "z", replacementsCaptor.getValue().get("@l1@"));
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void ensureThrowsIfLazyReplacementKeyContainsLigature() {
+
+        new BuildablePDF(mockedPath, mockedPDFBuilder).withLazyReplacement("truckIdentifier", () -> "foo");
+    }
+
+
     @Test
     public void ensureThrowsIfReplacementMapContainsKeyThatIsNullOrEmpty() {
 
@@ -159,6 +221,39 @@ public class BuildablePDFTest {
     }
 
 
+    @Test
+    public void ensureStrictPlaceholdersFailsBeforeRendering() throws RenderException {
+
+        Mockito.when(mockedPDFBuilder.inspect(Mockito.any(byte[].class))).thenReturn(new TemplateInspection(
+                Collections.singletonList(Collections.singletonList("Hello foo")), Collections.emptyList(),
+                Collections.emptySet()));
+
+        try {
+            new BuildablePDF(mockedPath, mockedPDFBuilder).withStrictPlaceholders()
+                .withReplacement("foo", "bar")
+                .withReplacement("missing", "bar")
+                .build();
+            Assert.fail("Should fail for missing search value");
+        } catch (RenderException ex) {
+            // Expected
+        }
+
+        Mockito.verify(mockedPDFBuilder, Mockito.never())
+            .renderSearchAndReplaceText(Matchers.any(byte[].class), Matchers.anyMapOf(String.class, String.class));
+    }
+
+
+    @Test
+    public void ensureTemplateIsRenderedOnceForInspectionAndBuild() throws RenderException {
+
+        BuildablePDF pdf = new BuildablePDF(mockedPath, mockedPDFBuilder);
+        pdf.inspect();
+        pdf.build();
+
+        Mockito.verify(mockedPDFBuilder, Mockito.times(1)).renderFromTemplate(mockedPath);
+    }
+
+
     // Multi-line text replacement, see #14181 -------------------------------------------------------------------------
 
     @Test
@@ -358,4 +453,90 @@ public class BuildablePDFTest {
         new BuildablePDF(mockedPath, mockedPDFBuilder).withMultiLineReplacement(text, 20, "replace0", "replace1",
             "replace2");
     }
+
+
+    // Output passes ---------------------------------------------------------------------------------------------------
+
+    @Test
+    public void ensureOptimizesAndWritesOutputAfterAllRenderStages() throws RenderException, IOException {
+
+        byte[] optimized = "Optimized".getBytes();
+        byte[] reproducible = "Reproducible".getBytes();
+        byte[] linearized = "Linearized".getBytes();
+        OptimizeSpec spec = OptimizeSpec.defaults();
+
+        Mockito.when(mockedPDFBuilder.optimize(Mockito.any(byte[].class), Mockito.eq(spec))).thenReturn(optimized);
+        Mockito.when(mockedPDFBuilder.makeReproducible(optimized)).thenReturn(reproducible);
+        Mockito.when(mockedPDFBuilder.linearize(reproducible)).thenReturn(linearized);
+
+        PDFDocument document = new BuildablePDF(mockedPath, mockedPDFBuilder).withReplacement("foo", "bar")
+            .withLinearizedOutput()
+            .withReproducibleOutput()
+            .withOptimizedOutput(spec)
+            .build();
+
+        InOrder order = Mockito.inOrder(mockedPDFBuilder);
+        order.verify(mockedPDFBuilder).renderSearchAndReplaceText(Matchers.any(byte[].class),
+            Matchers.anyMapOf(String.class, String.class));
+        order.verify(mockedPDFBuilder).optimize(Matchers.any(byte[].class), Matchers.eq(spec));
+        order.verify(mockedPDFBuilder).makeReproducible(optimized);
+        order.verify(mockedPDFBuilder).linearize(reproducible);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        document.save(out);
+
+        Assert.assertArrayEquals("Wrong document", linearized, out.toByteArray());
+    }
+
+
+    @Test
+    public void ensureAbortsBetweenStagesAfterDeadline() throws RenderException {
+
+        Mockito.when(mockedPDFBuilder.renderSearchAndReplaceText(Mockito.any(byte[].class),
+                    Mockito.anyMapOf(String.class, String.class)))
+            .thenAnswer(invocation -> {
+                Thread.sleep(20); // NOSONAR
+
+                return "Replaced".getBytes();
+            });
+
+        try {
+            new BuildablePDF(mockedPath, mockedPDFBuilder).withReplacement("foo", "bar")
+                .withQRCode(QRSpec.fromCode("foo"))
+                .withDeadline(Duration.ofMillis(10))
+                .build();
+            Assert.fail("Should fail after the deadline");
+        } catch (RenderTimeoutException e) {
+            // Expected
+        }
+
+        Mockito.verify(mockedPDFBuilder, Mockito.never()).renderQRCodes(Mockito.any(byte[].class),
+            Mockito.anyListOf(QRSpec.class));
+        Assert.assertNull("Deadline not ended", Deadline.current());
+    }
+
+
+    @Test
+    public void ensureAbortsInterruptedBuild() {
+
+        Thread.currentThread().interrupt();
+
+        try {
+            new BuildablePDF(mockedPath, mockedPDFBuilder).withReplacement("foo", "bar")
+                .withDeadline(Duration.ofMinutes(1))
+                .build();
+            Assert.fail("Should fail if interrupted");
+        } catch (RenderException e) {
+            Assert.assertFalse("Not a timeout", e instanceof RenderTimeoutException);
+        } finally {
+            Assert.assertTrue("Interrupt not kept", Thread.interrupted());
+        }
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void ensureThrowsIfDeadlineIsNotPositive() {
+
+        new BuildablePDF(mockedPath, mockedPDFBuilder).withDeadline(Duration.ZERO);
+    }
 }
@@ -0,0 +1,101 @@
+package net.contargo.print.pdf;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+public class ContentStreamRewriterTest {
+
+    private static final ContentStreamRewriter.TextRewrite FOO_TO_BAR = (text, font, fontSize) ->
+            text.contains("foo") ? text.replace("foo", "bar") : null;
+
+    @Test
+    public void ensureRewritesOnlyChangedStringsCopyingEverythingElse() throws Exception {
+
+        String content = "BT /F1 12 Tf 1 0 0 1 10 20 Tm (a foo) Tj (other) Tj [(x) -250 (y)] TJ ET % (foo) Tj\n";
+
+        Assert.assertEquals("Wrong content",
+            "BT /F1 12 Tf 1 0 0 1 10 20 Tm (a bar) Tj (other) Tj [(x) -250 (y)] TJ ET % (foo) Tj\n",
+            rewrite(content, FOO_TO_BAR));
+    }
+
+
+    @Test
+    public void ensureJoinsTheStringsOfChangedArrays() throws Exception {
+
+        Assert.assertEquals("Wrong content", "[(a bar)] TJ", rewrite("[(a f) -120 <6f6f>] TJ", FOO_TO_BAR));
+    }
+
+
+    @Test
+    public void ensureDecodesEscapesAndEncodesTheReplacement() throws Exception {
+
+        Assert.assertEquals("Wrong content", "(\\(bar\\)\\\\) Tj", rewrite("(\\(f\\157o\\)\\\\) Tj", FOO_TO_BAR));
+        Assert.assertEquals("Wrong content", "(bar) Tj", rewrite("(f\\\no(o)) Tj",
+                (text, font, fontSize) -> "fo(o)".equals(text) ? "bar" : null));
+    }
+
+
+    @Test
+    public void ensureReturnsNullWithoutChanges() throws Exception {
+
+        Assert.assertNull("Unchanged content copied", rewrite("BT (other) Tj ET", FOO_TO_BAR));
+    }
+
+
+    @Test
+    public void ensurePassesTheCurrentFont() throws Exception {
+
+        List<String> fonts = new ArrayList<>();
+
+        rewrite("(a) Tj /F#31 10.5 Tf (b) Tj /F2 8 Tf [(c)] TJ", (text, font, fontSize) -> {
+                fonts.add(text + ":" + font + ":" + fontSize);
+
+                return null;
+            });
+
+        Assert.assertEquals("Wrong fonts", "[a:null:NaN, b:F1:10.5, c:F2:8.0]", fonts.toString());
+    }
+
+
+    @Test
+    public void ensureSkipsDictionariesAndInlineImages() throws Exception {
+
+        String content = "/Span <</ActualText (foo) /Nested <</A [1 2]>>>> BDC BI /W 1 /H 1 ID \n(foo) Tj\nEI "
+            + "(foo) Tj EMC";
+
+        Assert.assertEquals("Wrong content",
+            "/Span <</ActualText (foo) /Nested <</A [1 2]>>>> BDC BI /W 1 /H 1 ID \n(foo) Tj\nEI (bar) Tj EMC",
+            rewrite(content, FOO_TO_BAR));
+    }
+
+
+    @Test
+    public void ensureReportsMalformedContent() throws IOException {
+
+        for (String content : new String[] { "(foo Tj", "<6g> Tj", "[(foo) Tj", "foo) Tj", "BI ID xx" }) {
+            try {
+                rewrite(content, FOO_TO_BAR);
+                Assert.fail("Not reported as malformed: " + content);
+            } catch (ContentStreamRewriter.Malformed e) {
+                // Expected
+            }
+        }
+    }
+
+
+    private static String rewrite(String content, ContentStreamRewriter.TextRewrite rewrite) throws IOException,
+        ContentStreamRewriter.Malformed {
+
+        byte[] rewritten = ContentStreamRewriter.rewrite(content.getBytes(StandardCharsets.ISO_8859_1), rewrite);
+
+        return rewritten == null ? null : new String(rewritten, StandardCharsets.ISO_8859_1);
+    }
+}
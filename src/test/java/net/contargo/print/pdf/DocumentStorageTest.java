@@ -0,0 +1,150 @@
+package net.contargo.print.pdf;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import java.util.stream.Stream;
+
+
+public class DocumentStorageTest {
+
+    private static final byte[] CONTENT = { 1, 2, 3, 4, 5 };
+
+    @Test
+    public void ensureSpillsToTempFileUntilReleased() throws IOException, RenderException {
+
+        Path directory = Files.createTempDirectory("pdf-builder-documents");
+
+        try {
+            DocumentContent content = DocumentStorage.tempFiles(directory).store(CONTENT.clone());
+
+            Assert.assertEquals("Not spilled to a file", 1, count(directory));
+            Assert.assertEquals("Wrong size", CONTENT.length, content.size());
+            Assert.assertArrayEquals("Wrong content", CONTENT, read(content.openStream()));
+
+            content.release();
+            content.release();
+
+            Assert.assertEquals("File not deleted", 0, count(directory));
+        } finally {
+            Files.delete(directory);
+        }
+    }
+
+
+    @Test
+    public void ensureMapsTempFileReadOnly() throws IOException, RenderException {
+
+        Path directory = Files.createTempDirectory("pdf-builder-documents");
+
+        try {
+            DocumentContent content = DocumentStorage.tempFiles(directory).store(CONTENT.clone());
+            ByteBuffer buffer = content.asByteBuffer();
+            content.release();
+
+            byte[] mapped = new byte[buffer.remaining()];
+            buffer.get(mapped);
+
+            Assert.assertTrue("Buffer not read-only", buffer.isReadOnly());
+            Assert.assertArrayEquals("Wrong content", CONTENT, mapped);
+        } finally {
+            Files.delete(directory);
+        }
+    }
+
+
+    @Test
+    public void ensureSpillsOffHeapWithIndependentReaders() throws IOException, RenderException {
+
+        DocumentContent content = DocumentStorage.offHeap().store(CONTENT.clone());
+
+        try(ReadableByteChannel channel = content.openChannel()) {
+            ByteBuffer buffer = ByteBuffer.allocate(2);
+
+            Assert.assertEquals("Wrong read", 2, channel.read(buffer));
+            Assert.assertArrayEquals("Reader affected by other reader", CONTENT, read(content.openStream()));
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        content.writeTo(out);
+
+        Assert.assertArrayEquals("Wrong content", CONTENT, out.toByteArray());
+    }
+
+
+    @Test(expected = IllegalStateException.class)
+    public void ensureReleasedContentCannotBeRead() throws IOException, RenderException {
+
+        DocumentContent content = DocumentStorage.offHeap().store(CONTENT.clone());
+        content.release();
+
+        content.openStream();
+    }
+
+
+    @Test
+    public void ensureSpillsOnlyAboveThresholds() throws IOException, RenderException {
+
+        DocumentStorage storage = DocumentStorage.offHeap().withSizeThreshold(CONTENT.length).withCountThreshold(1);
+
+        byte[] one = { 1 };
+        DocumentContent small = storage.store(one);
+
+        Assert.assertSame("Small document not kept on heap", one, small.toByteArray());
+        Assert.assertNotSame("Exceeding count not spilled", CONTENT, storage.store(CONTENT).toByteArray());
+
+        small.release();
+
+        byte[] other = { 2 };
+
+        Assert.assertSame("Count not decremented on release", other, storage.store(other).toByteArray());
+        Assert.assertNotSame("Large document not spilled", CONTENT,
+            DocumentStorage.offHeap().withSizeThreshold(CONTENT.length).store(CONTENT).toByteArray());
+    }
+
+
+    @Test
+    public void ensureThresholdsReturnNewStorage() throws IOException, RenderException {
+
+        DocumentStorage storage = DocumentStorage.offHeap();
+        DocumentStorage configured = storage.withSizeThreshold(CONTENT.length + 1);
+
+        Assert.assertNotSame("Storage modified", storage, configured);
+        Assert.assertNotSame("Threshold applied to the original storage", CONTENT,
+            storage.store(CONTENT).toByteArray());
+        Assert.assertSame("Threshold not applied", CONTENT, configured.store(CONTENT).toByteArray());
+    }
+
+
+    private static long count(Path directory) throws IOException {
+
+        try(Stream<Path> files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+
+
+    private static byte[] read(InputStream in) throws IOException {
+
+        try(InputStream stream = in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[3];
+            int n;
+
+            while ((n = stream.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+
+            return out.toByteArray();
+        }
+    }
+}
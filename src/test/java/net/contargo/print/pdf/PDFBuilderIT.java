@@ -1,22 +1,71 @@
 package net.contargo.print.pdf;
 
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.BinaryBitmap;
+import com.google.zxing.DecodeHintType;
+import com.google.zxing.MultiFormatReader;
+import com.google.zxing.NotFoundException;
+import com.google.zxing.client.j2se.BufferedImageLuminanceSource;
+import com.google.zxing.common.HybridBinarizer;
+
 import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.pdmodel.common.PDMetadata;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
 import org.apache.pdfbox.text.PDFTextStripper;
 
 import org.junit.Assert;
 import org.junit.Test;
 
+import org.mockito.Mockito;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 
 import java.net.URISyntaxException;
 
+import java.nio.ByteBuffer;
+
+import java.nio.charset.StandardCharsets;
+
 import java.nio.file.FileSystems;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import java.time.Duration;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import javax.imageio.ImageIO;
 
 
 /**
@@ -185,4 +234,1023 @@ public class PDFBuilderIT {
             }
         }
     }
+
+
+    @Test
+    public void ensureReplacesTextInPDFUsingMemoryMappedTemplate() throws IOException, RenderException {
+
+        Path source = RESOURCES.resolve("foo.pdf");
+        Assert.assertTrue("Missing " + source, source.toFile().exists());
+
+        PDFBuilder builder = PDFBuilder.configure().withPDFRenderer(new PDFBoxRenderer(0)).build();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        builder.forTemplate(source).withReplacement("foo", "bar").build().save(out);
+
+        try(PDDocument targetPdDocument = PDDocument.load(out.toByteArray())) {
+            String textOnlyAfter = new PDFTextStripper().getText(targetPdDocument);
+
+            Assert.assertFalse("Search value `foo` exists after", textOnlyAfter.contains("foo"));
+            Assert.assertTrue("Replace value `bar` is missing", textOnlyAfter.contains("bar"));
+        }
+    }
+
+
+    @Test
+    public void ensureReplacesTextInPDFUsingClasspathTemplate() throws IOException, RenderException {
+
+        for (int i = 0; i < 2; i++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+            PDFBuilder.fromClasspath("/foo.pdf").withReplacement("foo", "bar" + i).build().save(out);
+
+            try(PDDocument targetPdDocument = PDDocument.load(out.toByteArray())) {
+                String textOnlyAfter = new PDFTextStripper().getText(targetPdDocument);
+
+                Assert.assertFalse("Search value `foo` exists after", textOnlyAfter.contains("foo"));
+                Assert.assertTrue("Replace value is missing", textOnlyAfter.contains("bar" + i));
+            }
+        }
+    }
+
+
+    @Test
+    public void ensureInspectsPlaceholdersAndFonts() throws RenderException {
+
+        TemplateInspection inspection = PDFBuilder.inspect(RESOURCES.resolve("footer.pdf"));
+
+        Assert.assertEquals("Wrong page count", 1, inspection.getPageCount());
+        Assert.assertTrue("Placeholder missing", inspection.getPlaceholders().get(0).contains("${FOOTER1}"));
+        Assert.assertTrue("Split placeholder missing", inspection.getUnreachablePlaceholders().contains("${DATE}"));
+        Assert.assertFalse("Split placeholder reachable", inspection.contains("\\$\\{DATE\\}"));
+        Assert.assertTrue("Font missing", inspection.getFonts().contains("FrutigerLTStd-Cn"));
+    }
+
+
+    @Test
+    public void ensureStrictPlaceholdersFailsOnMissingSearchValue() throws IOException {
+
+        try(InputStream source = this.getClass().getResourceAsStream("/foo.pdf")) {
+            PDFBuilder.fromTemplate(source)
+                .withStrictPlaceholders()
+                .withReplacement("foo", "bar")
+                .withReplacement("missing", "bar")
+                .build();
+
+            Assert.fail("Should fail for missing search value");
+        } catch (RenderException e) {
+            Assert.assertTrue("Wrong message", e.getMessage().contains("[missing]"));
+        }
+    }
+
+
+    @Test
+    public void ensureLazyReplacementIsResolvedOnlyIfFound() throws IOException, RenderException {
+
+        AtomicInteger resolved = new AtomicInteger();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        PDFBuilder.fromTemplate(RESOURCES.resolve("foo.pdf")).withLazyReplacement("foo", () -> {
+                    resolved.incrementAndGet();
+
+                    return "bar";
+                }).withLazyReplacement("missing", () -> {
+                    throw new AssertionError("Resolved replacement for missing search value");
+                }).build().save(out);
+
+        Assert.assertEquals("Replacement not resolved exactly once", 1, resolved.get());
+
+        try(PDDocument targetPdDocument = PDDocument.load(out.toByteArray())) {
+            String textOnlyAfter = new PDFTextStripper().getText(targetPdDocument);
+
+            Assert.assertFalse("Search value `foo` exists after", textOnlyAfter.contains("foo"));
+            Assert.assertTrue("Replace value `bar` is missing", textOnlyAfter.contains("bar"));
+        }
+    }
+
+
+    @Test
+    public void ensureFittedMultiLineReplacementReplacesAllThePlaceholders() throws IOException, RenderException {
+
+        Path source = RESOURCES.resolve("footer.pdf");
+        Assert.assertTrue("Missing " + source, source.toFile().exists());
+
+        String[] placeholders = new String[4];
+
+        for (int i = 0; i < 4; i++) {
+            placeholders[i] = String.format("\\$\\{FOOTER%d\\}", i + 1);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        String text = "Lorem ipsum dolor sit amet, consetetur sadipscing elitr";
+
+        PDFBuilder.fromTemplate(source).withFittedMultiLineReplacement(text, 100, placeholders).build().save(out);
+
+        try(PDDocument targetPdDocument = PDDocument.load(out.toByteArray())) {
+            String textOnlyAfter = new PDFTextStripper().getText(targetPdDocument);
+
+            Assert.assertFalse("Placeholder exists after", textOnlyAfter.contains("FOOTER"));
+
+            for (String word : text.split(" ")) {
+                Assert.assertTrue("Word missing: " + word, textOnlyAfter.contains(word));
+            }
+        }
+    }
+
+
+    @Test
+    public void ensureFittedMultiLineReplacementFailsToRenderIfTextDoesNotFit() {
+
+        String[] placeholders = { "\\$\\{FOOTER1\\}", "\\$\\{FOOTER2\\}" };
+        String text = "Lorem ipsum dolor sit amet, consetetur sadipscing elitr, sed diam nonumy eirmod tempor";
+
+        try {
+            PDFBuilder.fromTemplate(RESOURCES.resolve("footer.pdf")).withFittedMultiLineReplacement(text, 10,
+                placeholders).build();
+            Assert.fail("Should fail if the text does not fit");
+        } catch (RenderException e) {
+            Assert.assertTrue("Missing cause", e.getCause() instanceof IllegalArgumentException);
+        }
+    }
+
+
+    @Test
+    public void ensureDrawsBarcodesAsVectors() throws IOException, RenderException, NotFoundException {
+
+        Path source = RESOURCES.resolve("foo.pdf");
+        Assert.assertTrue("Missing " + source, source.toFile().exists());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        PDFBuilder.fromTemplate(source)
+            .withBarcode(BarcodeSpec.code128("MSKU1234565").withPosition(50, 50).withSize(300, 80))
+            .withBarcode(BarcodeSpec.dataMatrix("MSKU1234565").withPosition(400, 50).withSize(80, 80))
+            .build()
+            .save(out);
+
+        try(PDDocument targetPdDocument = PDDocument.load(out.toByteArray())) {
+            PDPage page = targetPdDocument.getPage(0);
+
+            Assert.assertFalse("Barcodes must not be images", page.getResources().getXObjectNames().iterator()
+                .hasNext());
+
+            BufferedImageLuminanceSource image = new BufferedImageLuminanceSource(
+                    new org.apache.pdfbox.rendering.PDFRenderer(targetPdDocument).renderImageWithDPI(0, 150)); // NOSONAR
+
+            Map<DecodeHintType, Object> hints = new EnumMap<>(DecodeHintType.class);
+            hints.put(DecodeHintType.POSSIBLE_FORMATS, Collections.singletonList(BarcodeFormat.CODE_128));
+            hints.put(DecodeHintType.TRY_HARDER, Boolean.TRUE);
+
+            String decoded = new MultiFormatReader().decode(new BinaryBitmap(new HybridBinarizer(image)), hints)
+                .getText();
+
+            Assert.assertEquals("Wrong barcode content", "MSKU1234565", decoded);
+        }
+    }
+
+
+    @Test
+    public void ensureFailsToDrawBarcodesOnTemplatesWithMoreThanOnePage() throws IOException {
+
+        ByteArrayOutputStream template = new ByteArrayOutputStream();
+
+        try(PDDocument document = new PDDocument()) {
+            document.addPage(new PDPage());
+            document.addPage(new PDPage());
+            document.save(template);
+        }
+
+        try {
+            PDFBuilder.fromTemplate(new ByteArrayInputStream(template.toByteArray()))
+                .withBarcode(BarcodeSpec.code128("MSKU1234565").withPosition(50, 50).withSize(300, 80))
+                .build();
+            Assert.fail("Should fail if the template has more than one page");
+        } catch (RenderException e) {
+            Assert.assertEquals("Wrong message", "Cannot add barcodes to document with more pages than 1.",
+                e.getMessage());
+        }
+    }
+
+
+    @Test
+    public void ensureWritesLinearizedOutput() throws IOException, RenderException {
+
+        Path source = RESOURCES.resolve("foo.pdf");
+        Assert.assertTrue("Missing " + source, source.toFile().exists());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        PDFBuilder.fromTemplate(source).withReplacement("foo", "bar").withLinearizedOutput().build().save(out);
+
+        assertLinearized(out.toByteArray(), 1);
+
+        try(PDDocument targetPdDocument = PDDocument.load(out.toByteArray())) {
+            Assert.assertTrue("Replace value `bar` is missing",
+                new PDFTextStripper().getText(targetPdDocument).contains("bar"));
+        }
+    }
+
+
+    @Test
+    public void ensureWritesLinearizedOutputWithSharedObjects() throws IOException, RenderException {
+
+        byte[] template = createThreePageTemplate();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        PDFBuilder.fromTemplate(new ByteArrayInputStream(template))
+            .withReplacement("foo", "bar")
+            .withLinearizedOutput()
+            .build()
+            .save(out);
+
+        assertLinearized(out.toByteArray(), 3);
+
+        try(PDDocument targetPdDocument = PDDocument.load(out.toByteArray())) {
+            Assert.assertEquals("Wrong page count", 3, targetPdDocument.getNumberOfPages());
+
+            String text = new PDFTextStripper().getText(targetPdDocument);
+
+            Assert.assertTrue("Missing text", text.contains("page1 bar") && text.contains("page3 bar bold"));
+        }
+    }
+
+
+    @Test
+    public void ensureOptimizedTemplateDropsUnusedResourcesAndDuplicates() throws IOException, RenderException {
+
+        ByteArrayOutputStream template = new ByteArrayOutputStream();
+
+        // Each page draws its own copy of the same logo, and carries a font and an image it never uses
+        try(PDDocument document = new PDDocument()) {
+            BufferedImage logo = new BufferedImage(64, 64, BufferedImage.TYPE_INT_RGB); // NOSONAR
+            logo.getGraphics().fillRect(8, 8, 48, 48); // NOSONAR
+
+            for (int i = 1; i <= 2; i++) {
+                PDPage page = new PDPage();
+                document.addPage(page);
+
+                try(PDPageContentStream content = new PDPageContentStream(document, page)) {
+                    content.drawImage(LosslessFactory.createFromImage(document, logo), 50, 500); // NOSONAR
+                    content.beginText();
+                    content.setFont(PDType1Font.HELVETICA, 12); // NOSONAR
+                    content.newLineAtOffset(50, 700); // NOSONAR
+                    content.showText("page" + i + " foo");
+                    content.endText();
+                }
+
+                BufferedImage unused = new BufferedImage(64, 64, BufferedImage.TYPE_INT_RGB); // NOSONAR
+                unused.setRGB(i, i, Color.RED.getRGB());
+
+                page.getResources().add(PDType1Font.COURIER);
+                page.getResources().add(LosslessFactory.createFromImage(document, unused));
+            }
+
+            document.getDocumentInformation().setProducer("Design Tool");
+            document.getDocumentCatalog().setMetadata(new PDMetadata(document,
+                    new ByteArrayInputStream("<x:xmpmeta xmlns:x='adobe:ns:meta/'/>".getBytes(
+                            StandardCharsets.UTF_8))));
+            document.save(template);
+        }
+
+        PDFBuilder pdfBuilder = PDFBuilder.configure()
+                .withTemplateOptimization(OptimizeSpec.defaults()
+                    .withStrippedMetadata(OptimizeSpec.Metadata.DOCUMENT_INFO, OptimizeSpec.Metadata.XMP))
+                .build();
+
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        PDFBuilder.fromTemplate(new ByteArrayInputStream(template.toByteArray())).build().save(plain);
+        pdfBuilder.forTemplate(new ByteArrayInputStream(template.toByteArray()))
+            .withReplacement("foo", "bar")
+            .build()
+            .save(out);
+
+        Assert.assertTrue("Expected a smaller document", out.size() < plain.size());
+
+        try(PDDocument targetPdDocument = PDDocument.load(out.toByteArray())) {
+            PDResources first = targetPdDocument.getPage(0).getResources();
+            PDResources second = targetPdDocument.getPage(1).getResources();
+
+            Assert.assertEquals("Unused font not removed", 1, count(first.getFontNames()));
+            Assert.assertEquals("Unused image not removed", 1, count(first.getXObjectNames()));
+
+            COSObject firstLogo = (COSObject) first.getCOSObject().getCOSDictionary(COSName.XOBJECT)
+                .getItem(first.getXObjectNames().iterator().next());
+            COSObject secondLogo = (COSObject) second.getCOSObject().getCOSDictionary(COSName.XOBJECT)
+                .getItem(second.getXObjectNames().iterator().next());
+
+            Assert.assertEquals("Identical images not merged", firstLogo.getObjectNumber(),
+                secondLogo.getObjectNumber());
+            Assert.assertTrue("Logo must still be an image", firstLogo.getObject() != null
+                && PDImageXObject.class.isInstance(first.getXObject(first.getXObjectNames().iterator().next())));
+            Assert.assertNull("Document info not stripped",
+                targetPdDocument.getDocument().getTrailer().getDictionaryObject(COSName.INFO));
+            Assert.assertNull("XMP metadata not stripped", targetPdDocument.getDocumentCatalog().getMetadata());
+            Assert.assertTrue("Replace value `bar` is missing",
+                new PDFTextStripper().getText(targetPdDocument).contains("page2 bar"));
+        }
+    }
+
+
+    @Test
+    public void ensureOptimizedTemplateKeepsAnnotationsAndDefaultColorSpaces() throws IOException, RenderException {
+
+        ByteArrayOutputStream template = new ByteArrayOutputStream();
+
+        // Two identical annotations with identical appearances, and a default colour space never named
+        try(PDDocument document = new PDDocument()) {
+            PDPage page = new PDPage();
+            document.addPage(page);
+
+            try(PDPageContentStream content = new PDPageContentStream(document, page)) {
+                content.setNonStrokingColor(Color.RED);
+                content.addRect(50, 500, 100, 100); // NOSONAR
+                content.fill();
+            }
+
+            COSArray calRGB = new COSArray();
+            calRGB.add(COSName.getPDFName("CalRGB"));
+            calRGB.add(new COSDictionary());
+
+            COSDictionary colorSpaces = new COSDictionary();
+            colorSpaces.setItem(COSName.DEFAULT_RGB, calRGB);
+            page.getResources().getCOSObject().setItem(COSName.COLORSPACE, colorSpaces);
+
+            COSArray annotations = new COSArray();
+
+            for (int i = 0; i < 2; i++) {
+                COSStream appearance = document.getDocument().createCOSStream();
+
+                try(OutputStream out = appearance.createOutputStream()) {
+                    out.write("0 0 10 10 re f".getBytes(StandardCharsets.US_ASCII));
+                }
+
+                appearance.setItem(COSName.SUBTYPE, COSName.FORM);
+
+                COSDictionary appearances = new COSDictionary();
+                appearances.setItem(COSName.N, appearance);
+
+                COSDictionary annotation = new COSDictionary();
+                annotation.setItem(COSName.SUBTYPE, COSName.getPDFName("Square"));
+                annotation.setItem(COSName.AP, appearances);
+                annotations.add(annotation);
+            }
+
+            page.getCOSObject().setItem(COSName.ANNOTS, annotations);
+            document.save(template);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        PDFBuilder.configure().withTemplateOptimization(OptimizeSpec.defaults()).build()
+            .forTemplate(new ByteArrayInputStream(template.toByteArray()))
+            .build()
+            .save(out);
+
+        try(PDDocument targetPdDocument = PDDocument.load(out.toByteArray())) {
+            PDPage page = targetPdDocument.getPage(0);
+            COSArray annotations = (COSArray) page.getCOSObject().getDictionaryObject(COSName.ANNOTS);
+
+            Assert.assertNotEquals("Annotations merged", ((COSObject) annotations.get(0)).getObjectNumber(),
+                ((COSObject) annotations.get(1)).getObjectNumber());
+            Assert.assertTrue("Default colour space removed",
+                page.getResources().getCOSObject().getCOSDictionary(COSName.COLORSPACE)
+                .containsKey(COSName.DEFAULT_RGB));
+        }
+    }
+
+
+    @Test
+    public void ensureRendersPreviewsOfSelectedPagesConcurrently() throws IOException, RenderException {
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+
+        try {
+            PDFBuilder pdfBuilder = PDFBuilder.configure().withExecutor(executor).withPreviewCacheSize(10).build();
+
+            PDFDocument document = pdfBuilder.forTemplate(new ByteArrayInputStream(createThreePageTemplate()))
+                .withReplacement("foo", "bar")
+                .build();
+
+            List<byte[]> previews = document.renderPreviews(PreviewSpec.ofPages(2, 0).withDPI(36)); // NOSONAR
+
+            Assert.assertEquals("Wrong number of previews", 2, previews.size());
+
+            for (byte[] preview : previews) {
+                BufferedImage image = ImageIO.read(new ByteArrayInputStream(preview));
+
+                // US letter, 8.5 x 11 inches
+                Assert.assertEquals("Wrong width", 306, image.getWidth());
+                Assert.assertEquals("Wrong height", 396, image.getHeight());
+            }
+
+            Assert.assertSame("Expected a cached preview", previews.get(1),
+                document.renderPreviews(PreviewSpec.ofPages(0).withDPI(36)).get(0)); // NOSONAR
+            Assert.assertEquals("Wrong number of previews", 3,
+                document.renderPreviews(PreviewSpec.ofAllPages()).size());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+
+    @Test
+    public void ensureConcatenatesDocumentsWithSharedResourcesOnce() throws IOException, RenderException {
+
+        PDFDocument firstNote = PDFBuilder.fromTemplate(RESOURCES.resolve("foo.pdf")).withReplacement("foo", "bar")
+            .build();
+        PDFDocument letter = PDFBuilder.fromTemplate(RESOURCES.resolve("letter.pdf")).build();
+        PDFDocument secondNote = PDFBuilder.fromTemplate(RESOURCES.resolve("foo.pdf")).withReplacement("foo", "baz")
+            .build();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PDFDocument.concat(firstNote, letter, secondNote).save(out);
+
+        ByteArrayOutputStream parts = new ByteArrayOutputStream();
+        firstNote.save(parts);
+        letter.save(parts);
+
+        ByteArrayOutputStream second = new ByteArrayOutputStream();
+        secondNote.save(second);
+
+        // The second note adds its page and content, but not the fonts and images of the template again
+        Assert.assertTrue("Shared resources not contained once", out.size() < parts.size() + second.size() / 2);
+
+        try(PDDocument targetPdDocument = PDDocument.load(out.toByteArray())) {
+            Assert.assertEquals("Wrong page count", 3, targetPdDocument.getNumberOfPages());
+
+            PDFTextStripper textStripper = new PDFTextStripper();
+            textStripper.setStartPage(3);
+
+            String lastPage = textStripper.getText(targetPdDocument);
+            Assert.assertTrue("Wrong page order", lastPage.contains("baz") && !lastPage.contains("bar"));
+        }
+    }
+
+
+    @Test
+    public void ensureAdmitsBuildBeforeCompilingTheTemplate() throws IOException, RenderException {
+
+        PDFRenderer renderer = Mockito.spy(new PDFBoxRenderer());
+        PDFBuilder pdfBuilder = PDFBuilder.configure().withPDFRenderer(renderer).withMaxConcurrentBuilds(1)
+            .withMaxQueuedBuilds(0).build();
+
+        AdmissionControl.Permit running = pdfBuilder.admitBuild(RenderPriority.INTERACTIVE, 0,
+                Collections.emptyList(), Collections.emptyList());
+
+        try {
+            pdfBuilder.forTemplate(RESOURCES.resolve("foo.pdf")).withReplacement("foo", "bar").build();
+            Assert.fail("Build not rejected");
+        } catch (RenderRejectedException e) {
+            Mockito.verify(renderer, Mockito.never()).renderFromTemplate(Mockito.any(Path.class));
+        } finally {
+            pdfBuilder.releaseBuild(running);
+        }
+
+        pdfBuilder.forTemplate(RESOURCES.resolve("foo.pdf")).withReplacement("foo", "bar").build();
+
+        Assert.assertEquals("Wrong running builds", 0, pdfBuilder.getAdmissionStats().getRunningBuilds());
+    }
+
+
+    @Test
+    public void ensureCachesIdenticalBuildsInMemoryAndOnDisk() throws IOException, RenderException {
+
+        Path directory = Files.createTempDirectory("pdf-builder-results");
+
+        try {
+            PDFRenderer renderer = Mockito.spy(new PDFBoxRenderer());
+            PDFBuilder pdfBuilder = PDFBuilder.configure().withPDFRenderer(renderer).withResultCacheSize(10)
+                .withResultCacheDirectory(directory).build();
+
+            ByteArrayOutputStream first = new ByteArrayOutputStream();
+            pdfBuilder.forTemplate(RESOURCES.resolve("foo.pdf")).withReplacement("foo", "bar").build().save(first);
+
+            ByteArrayOutputStream second = new ByteArrayOutputStream();
+            pdfBuilder.forTemplate(RESOURCES.resolve("foo.pdf")).withReplacement("foo", "bar").build().save(second);
+
+            pdfBuilder.forTemplate(RESOURCES.resolve("foo.pdf")).withReplacement("foo", "baz").build();
+            pdfBuilder.forTemplate(RESOURCES.resolve("foo.pdf")).withLazyReplacement("foo", () -> "bar").build();
+
+            Mockito.verify(renderer, Mockito.times(3)).renderSearchAndReplaceText(Mockito.any(byte[].class),
+                Mockito.anyMapOf(String.class, String.class));
+            Assert.assertArrayEquals("Wrong cached document", first.toByteArray(), second.toByteArray());
+
+            // A new builder, sharing the directory only
+            PDFRenderer restarted = Mockito.spy(new PDFBoxRenderer());
+            ByteArrayOutputStream third = new ByteArrayOutputStream();
+
+            PDFBuilder.configure().withPDFRenderer(restarted).withResultCacheDirectory(directory).build()
+                .forTemplate(RESOURCES.resolve("foo.pdf")).withReplacement("foo", "bar").build().save(third);
+
+            Mockito.verify(restarted, Mockito.never()).renderSearchAndReplaceText(Mockito.any(byte[].class),
+                Mockito.anyMapOf(String.class, String.class));
+            Assert.assertArrayEquals("Wrong document from disk", first.toByteArray(), third.toByteArray());
+        } finally {
+            try(Stream<Path> files = Files.list(directory)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.delete(file);
+                }
+            }
+
+            Files.delete(directory);
+        }
+    }
+
+
+    @Test
+    public void ensureCachesBuildsOfTemplatesWithoutIdBeforeCompiling() throws IOException, RenderException {
+
+        // Without a document ID, compiling writes a new one every time
+        byte[] template = Files.readAllBytes(RESOURCES.resolve("foo.pdf"));
+        String content = new String(template, StandardCharsets.ISO_8859_1);
+        byte[] withoutId = content.replace("/ID[", "/XD[").getBytes(StandardCharsets.ISO_8859_1);
+
+        Path file = Files.createTempFile("pdf-builder-template", ".pdf");
+
+        try {
+            Files.write(file, withoutId);
+
+            PDFRenderer renderer = Mockito.spy(new PDFBoxRenderer());
+            PDFBuilder pdfBuilder = PDFBuilder.configure().withPDFRenderer(renderer).withResultCacheSize(10).build();
+
+            ByteArrayOutputStream first = new ByteArrayOutputStream();
+            pdfBuilder.forTemplate(new ByteArrayInputStream(withoutId)).withReplacement("foo", "bar").build()
+                .save(first);
+
+            ByteArrayOutputStream second = new ByteArrayOutputStream();
+            pdfBuilder.forTemplate(new ByteArrayInputStream(withoutId)).withReplacement("foo", "bar").build()
+                .save(second);
+
+            ByteArrayOutputStream third = new ByteArrayOutputStream();
+            pdfBuilder.forTemplate(file).withReplacement("foo", "bar").build().save(third);
+
+            Mockito.verify(renderer, Mockito.times(1)).renderFromTemplate(Mockito.any(InputStream.class));
+            Mockito.verify(renderer, Mockito.never()).renderFromTemplate(Mockito.any(Path.class));
+            Assert.assertArrayEquals("Stream build not cached", first.toByteArray(), second.toByteArray());
+            Assert.assertArrayEquals("Path build not cached", first.toByteArray(), third.toByteArray());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+
+    @Test
+    public void ensureCoalescesIdenticalBuildsOfTemplatesWithoutIdBeforeCompiling() throws Exception {
+
+        // Without a document ID, compiling writes a new one every time
+        String content = new String(Files.readAllBytes(RESOURCES.resolve("foo.pdf")), StandardCharsets.ISO_8859_1);
+        byte[] withoutId = content.replace("/ID[", "/XD[").getBytes(StandardCharsets.ISO_8859_1);
+
+        PDFRenderer renderer = Mockito.spy(new PDFBoxRenderer());
+        PDFBuilder pdfBuilder = PDFBuilder.configure().withPDFRenderer(renderer).withCoalescedBuilds().build();
+        CompletableFuture<byte[]> identical = new CompletableFuture<>();
+        Thread thread = new Thread(() -> {
+                    try {
+                        ByteArrayOutputStream out = new ByteArrayOutputStream();
+                        pdfBuilder.forTemplate(new ByteArrayInputStream(withoutId)).withReplacement("foo", "bar")
+                            .build().save(out);
+                        identical.complete(out.toByteArray());
+                    } catch (IOException | RenderException | RuntimeException e) {
+                        identical.completeExceptionally(e);
+                    }
+                });
+
+        // The identical build starts while the first one compiles its template
+        Mockito.doAnswer(invocation -> {
+                    if (thread.getState() == Thread.State.NEW) {
+                        thread.start();
+
+                        while (thread.getState() != Thread.State.WAITING
+                                && thread.getState() != Thread.State.TERMINATED) {
+                            Thread.yield();
+                        }
+                    }
+
+                    return invocation.callRealMethod();
+                }).when(renderer).renderFromTemplate(Mockito.any(InputStream.class));
+
+        ByteArrayOutputStream first = new ByteArrayOutputStream();
+        pdfBuilder.forTemplate(new ByteArrayInputStream(withoutId)).withReplacement("foo", "bar").build().save(first);
+
+        Assert.assertArrayEquals("Render not shared", first.toByteArray(), identical.get(10, TimeUnit.SECONDS));
+        Mockito.verify(renderer, Mockito.times(1)).renderFromTemplate(Mockito.any(InputStream.class));
+        Mockito.verify(renderer, Mockito.times(1)).renderSearchAndReplaceText(Mockito.any(byte[].class),
+            Mockito.anyMapOf(String.class, String.class));
+    }
+
+
+    @Test
+    public void ensureResultCacheDirectoryIsBoundedAndKeyedByRenderers() throws IOException, RenderException {
+
+        Path directory = Files.createTempDirectory("pdf-builder-results");
+
+        try {
+            PDFBuilder pdfBuilder = PDFBuilder.configure().withResultCacheDirectory(directory, 1).build();
+            pdfBuilder.forTemplate(RESOURCES.resolve("foo.pdf")).withReplacement("foo", "bar").build();
+
+            try(Stream<Path> files = Files.list(directory)) {
+                Assert.assertEquals("Documents beyond the size not evicted", 0, files.count());
+            }
+
+            PDFBuilder.configure().withResultCacheDirectory(directory).build().forTemplate(RESOURCES.resolve("foo.pdf"))
+                .withReplacement("foo", "bar").build();
+
+            // Another PDF renderer, sharing the directory
+            PDFRenderer other = Mockito.spy(new PDFBoxRenderer() {
+                });
+
+            PDFBuilder.configure().withPDFRenderer(other).withResultCacheDirectory(directory).build()
+                .forTemplate(RESOURCES.resolve("foo.pdf")).withReplacement("foo", "bar").build();
+
+            Mockito.verify(other).renderSearchAndReplaceText(Mockito.any(byte[].class),
+                Mockito.anyMapOf(String.class, String.class));
+        } finally {
+            try(Stream<Path> files = Files.list(directory)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.delete(file);
+                }
+            }
+
+            Files.delete(directory);
+        }
+    }
+
+
+    @Test
+    public void ensureSpillsDocumentsToTempFilesUntilReleased() throws IOException, RenderException {
+
+        Path directory = Files.createTempDirectory("pdf-builder-documents");
+
+        try {
+            PDFBuilder pdfBuilder = PDFBuilder.configure().withDocumentStorage(DocumentStorage.tempFiles(directory))
+                .build();
+
+            PDFDocument document = pdfBuilder.forTemplate(RESOURCES.resolve("foo.pdf")).withReplacement("foo", "bar")
+                .build();
+
+            try(Stream<Path> files = Files.list(directory)) {
+                Assert.assertEquals("Document not spilled", 1, files.count());
+            }
+
+            try(InputStream in = document.openInputStream();
+                    PDDocument targetPdDocument = PDDocument.load(in)) {
+                Assert.assertTrue("Replace value `bar` is missing",
+                    new PDFTextStripper().getText(targetPdDocument).contains("bar"));
+            }
+
+            Assert.assertEquals("Wrong number of previews", 1,
+                document.renderPreviews(PreviewSpec.ofAllPages().withDPI(10)).size()); // NOSONAR
+
+            document.release();
+
+            try(Stream<Path> files = Files.list(directory)) {
+                Assert.assertEquals("Temporary file not deleted", 0, files.count());
+            }
+        } finally {
+            Files.delete(directory);
+        }
+    }
+
+
+    @Test
+    public void ensureWritesReproducibleOutput() throws IOException, RenderException, InterruptedException {
+
+        byte[] template = withoutDocumentId(Files.readAllBytes(RESOURCES.resolve("foo.pdf")));
+
+        byte[] first = buildReproducible(template, "bar");
+        Thread.sleep(10); // NOSONAR - a generated ID would differ by the time of writing
+        byte[] second = buildReproducible(template, "bar");
+
+        Assert.assertArrayEquals("Output not reproducible", first, second);
+        Assert.assertFalse("Same output for other values", Arrays.equals(first, buildReproducible(template, "baz")));
+
+        try(PDDocument targetPdDocument = PDDocument.load(first)) {
+            Assert.assertNull("Creation date not removed",
+                targetPdDocument.getDocumentInformation().getCreationDate());
+            Assert.assertNotNull("Document ID missing",
+                targetPdDocument.getDocument().getTrailer().getDictionaryObject(COSName.ID));
+        }
+
+        assertLinearized(first, 1);
+    }
+
+
+    private static byte[] buildReproducible(byte[] template, String replace) throws IOException, RenderException {
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        PDFBuilder.fromTemplate(new ByteArrayInputStream(template)).withReplacement("foo", replace)
+            .withQRCode(QRSpec.fromCode(replace))
+            .withReproducibleOutput()
+            .withLinearizedOutput()
+            .build()
+            .save(out);
+
+        return out.toByteArray();
+    }
+
+
+    /**
+     * Removes the document ID from the trailer, like of templates written by tools that do not set one, keeping all
+     * offsets intact.
+     */
+    private static byte[] withoutDocumentId(byte[] pdf) {
+
+        String content = new String(pdf, StandardCharsets.ISO_8859_1);
+        Matcher id = Pattern.compile("/ID ?\\[[^\\]]*\\]").matcher(content);
+
+        Assert.assertTrue("Template without document ID", id.find());
+
+        char[] blank = new char[id.end() - id.start()];
+        Arrays.fill(blank, ' ');
+
+        return (content.substring(0, id.start()) + new String(blank) + content.substring(id.end())).getBytes(
+                StandardCharsets.ISO_8859_1);
+    }
+
+
+    @Test
+    public void ensureWrapsExistingPDFWithoutCopying() throws IOException, RenderException {
+
+        byte[] letter = Files.readAllBytes(RESOURCES.resolve("letter.pdf"));
+        PDFDocument wrapped = PDFDocument.wrap(letter);
+
+        ByteBuffer view = wrapped.asByteBuffer();
+
+        Assert.assertEquals("Wrong size", letter.length, wrapped.size());
+        Assert.assertTrue("View not read-only", view.isReadOnly());
+        Assert.assertEquals("Wrong view", ByteBuffer.wrap(letter), view);
+
+        PDFDocument note = PDFBuilder.fromTemplate(RESOURCES.resolve("foo.pdf")).withReplacement("foo", "bar").build();
+
+        try(InputStream in = PDFDocument.concat(note, wrapped).openInputStream();
+                PDDocument targetPdDocument = PDDocument.load(in)) {
+            Assert.assertEquals("Wrong page count", 2, targetPdDocument.getNumberOfPages());
+        }
+    }
+
+
+    @Test
+    public void ensureChecksDeadlineWhileParsingPages() throws IOException, RenderException {
+
+        byte[] template = createThreePageTemplate();
+        Deadline deadline = Deadline.start(Duration.ofNanos(1));
+
+        try {
+            new PDFBoxRenderer().renderSearchAndReplaceText(template, Collections.singletonMap("foo", "bar"));
+            Assert.fail("Should fail after the deadline");
+        } catch (Deadline.Exceeded e) {
+            Assert.assertFalse("Not a timeout", e.isInterrupted());
+        } finally {
+            deadline.end();
+        }
+
+        try {
+            PDFBuilder.fromTemplate(new ByteArrayInputStream(template)).withReplacement("foo", "bar")
+                .withDeadline(Duration.ofNanos(1))
+                .build();
+            Assert.fail("Should fail after the deadline");
+        } catch (RenderTimeoutException e) {
+            // Expected
+        }
+    }
+
+
+    @Test
+    public void ensureAdmitsBuildsWithinMemoryBudget() throws IOException, RenderException {
+
+        PDFBuilder pdfBuilder = PDFBuilder.configure().withMemoryBudget(64L * 1024 * 1024).build(); // NOSONAR
+
+        pdfBuilder.forTemplate(RESOURCES.resolve("foo.pdf")).withReplacement("foo", "bar")
+            .withQRCode(QRSpec.fromCode("foo"))
+            .build();
+
+        AdmissionStats stats = pdfBuilder.getAdmissionStats();
+
+        Assert.assertEquals("Wrong admitted builds", 1, stats.getAdmittedBuilds());
+        Assert.assertEquals("Reservation not released", 0, stats.getReservedBytes());
+        Assert.assertNull("Admission control without budget", PDFBuilder.configure().build().getAdmissionStats());
+    }
+
+
+    /**
+     * Creates a template, where Helvetica is used by all pages, and Helvetica bold by the pages after the first.
+     */
+    private static byte[] createThreePageTemplate() throws IOException {
+
+        ByteArrayOutputStream template = new ByteArrayOutputStream();
+
+        try(PDDocument document = new PDDocument()) {
+            for (int i = 1; i <= 3; i++) {
+                PDPage page = new PDPage();
+                document.addPage(page);
+
+                try(PDPageContentStream content = new PDPageContentStream(document, page)) {
+                    content.beginText();
+                    content.setFont(PDType1Font.HELVETICA, 12); // NOSONAR
+                    content.newLineAtOffset(50, 700); // NOSONAR
+                    content.showText("page" + i + " foo");
+
+                    if (i > 1) {
+                        content.setFont(PDType1Font.HELVETICA_BOLD, 12); // NOSONAR
+                        content.showText(" bold");
+                    }
+
+                    content.endText();
+                }
+            }
+
+            document.save(template);
+        }
+
+        return template.toByteArray();
+    }
+
+
+    private static int count(Iterable<?> items) {
+
+        int count = 0;
+
+        for (Object item : items) {
+            count++;
+        }
+
+        return count;
+    }
+
+
+    private static void assertLinearized(byte[] pdf, int pageCount) {
+
+        String content = new String(pdf, StandardCharsets.ISO_8859_1);
+
+        Matcher dictionary = Pattern.compile(
+                "<</Linearized 1 /L (\\d+) +/H \\[(\\d+) +(\\d+) +\\] /O (\\d+) /E (\\d+) +/N (\\d+) /T (\\d+) *>>")
+                .matcher(content);
+
+        Assert.assertTrue("Missing linearization dictionary", dictionary.find());
+        Assert.assertTrue("Linearization dictionary not at start", dictionary.start() < 1024); // NOSONAR
+        Assert.assertEquals("Wrong file length", pdf.length, Integer.parseInt(dictionary.group(1)));
+        Assert.assertEquals("Wrong page count", pageCount, Integer.parseInt(dictionary.group(6)));
+
+        int hintOffset = Integer.parseInt(dictionary.group(2));
+        Assert.assertTrue("Hint stream not found", content.startsWith(" 0 obj\n<</S ",
+                content.indexOf(' ', hintOffset)));
+
+        int mainXref = content.lastIndexOf("xref\n0 ");
+        Assert.assertEquals("Wrong main xref position", content.indexOf('\n', mainXref + 5),
+            Integer.parseInt(dictionary.group(7)));
+
+        Matcher entries = Pattern.compile("xref\n(\\d+) (\\d+)\n((?:\\d{10} \\d{5} [nf]\r\n)+)").matcher(content);
+        int sections = 0;
+
+        while (entries.find()) {
+            int number = Integer.parseInt(entries.group(1));
+
+            for (String entry : entries.group(3).split("\r\n")) {
+                if (entry.endsWith("n")) {
+                    int offset = Integer.parseInt(entry.substring(0, 10));
+
+                    Assert.assertTrue("Wrong offset of object " + number,
+                        content.startsWith(number + " 0 obj", offset));
+                }
+
+                number++;
+            }
+
+            sections++;
+        }
+
+        Assert.assertEquals("Expected a first page and a main xref section", 2, sections);
+        Assert.assertTrue("Page object not in first page section",
+            content.indexOf(dictionary.group(4) + " 0 obj") < Integer.parseInt(dictionary.group(5)));
+    }
+
+
+    @Test
+    public void ensureRegistryReloadsChangedTemplatesKeepingTheLastValidVersion() throws Exception {
+
+        Path directory = Files.createTempDirectory("pdf-builder-templates");
+        Path template = directory.resolve("template.pdf");
+        Files.copy(RESOURCES.resolve("foo.pdf"), template);
+
+        try(TemplateRegistry templates = PDFBuilder.configure().build().watchTemplates(directory)) {
+            Assert.assertEquals("Wrong templates", Collections.singleton("template.pdf"),
+                templates.getTemplateNames());
+            Assert.assertTrue("Wrong template", templates.forTemplate("template.pdf").inspect().contains("foo"));
+
+            Files.write(template, "broken".getBytes(StandardCharsets.US_ASCII));
+            Thread.sleep(500); // NOSONAR
+
+            Assert.assertTrue("Broken template served",
+                templates.forTemplate("template.pdf").inspect().contains("foo"));
+
+            Files.copy(RESOURCES.resolve("footer.pdf"), template, StandardCopyOption.REPLACE_EXISTING);
+            awaitUntil(() -> templates.forTemplate("template.pdf").inspect().contains("\\$\\{FOOTER1\\}"));
+
+            Files.delete(template);
+            awaitUntil(() -> templates.getTemplateNames().isEmpty());
+
+            try {
+                templates.forTemplate("template.pdf").build();
+                Assert.fail("Deleted template served");
+            } catch (RenderException e) {
+                // Expected
+            }
+        } finally {
+            Files.deleteIfExists(template);
+            Files.delete(directory);
+        }
+    }
+
+
+    @Test
+    public void ensureLoadsPrecompiledTemplateWhileCurrent() throws Exception {
+
+        Path directory = Files.createTempDirectory("pdf-builder-templates");
+        Path template = directory.resolve("template.pdf");
+        Path precompiled = directory.resolve("template.pdf.compiled");
+        Files.copy(RESOURCES.resolve("foo.pdf"), template);
+
+        PDFBuilder builder = PDFBuilder.configure().build();
+
+        try {
+            builder.precompileTemplate(template, precompiled);
+
+            byte[] compiled = builder.renderFromTemplate(Files.readAllBytes(template),
+                    Files.readAllBytes(precompiled));
+
+            Assert.assertArrayEquals("Wrong precompiled template", builder.renderFromTemplate(template), compiled);
+
+            // A precompiled template with other content shows whether it is loaded
+            byte[] other = builder.renderFromTemplate(RESOURCES.resolve("footer.pdf"));
+            Files.write(precompiled,
+                PrecompiledTemplate.write(Files.readAllBytes(template), other,
+                    PrecompiledTemplate.options(new PDFBoxRenderer(), null)));
+
+            try(TemplateRegistry templates = builder.watchTemplates(directory)) {
+                Assert.assertTrue("Precompiled template not loaded",
+                    templates.forTemplate("template.pdf").inspect().contains("\\$\\{FOOTER1\\}"));
+            }
+
+            try(TemplateRegistry templates = PDFBuilder.configure().withTemplateOptimization(OptimizeSpec.defaults())
+                        .build().watchTemplates(directory)) {
+                Assert.assertTrue("Precompiled template of other options loaded",
+                    templates.forTemplate("template.pdf").inspect().contains("foo"));
+            }
+        } finally {
+            Files.deleteIfExists(precompiled);
+            Files.delete(template);
+            Files.delete(directory);
+        }
+    }
+
+
+    @Test
+    public void ensureRegistryReloadsTemplateIfOnlyItsPrecompiledTemplateChanges() throws Exception {
+
+        Path directory = Files.createTempDirectory("pdf-builder-templates");
+        Path template = directory.resolve("Template.PDF");
+        Path precompiled = directory.resolve("Template.PDF.compiled");
+        Files.copy(RESOURCES.resolve("foo.pdf"), template);
+
+        PDFBuilder builder = PDFBuilder.configure().build();
+
+        try(TemplateRegistry templates = builder.watchTemplates(directory)) {
+            Assert.assertTrue("Wrong template", templates.forTemplate("Template.PDF").inspect().contains("foo"));
+
+            // A precompiled template with other content shows whether it is loaded
+            byte[] other = builder.renderFromTemplate(RESOURCES.resolve("footer.pdf"));
+            Files.write(precompiled,
+                PrecompiledTemplate.write(Files.readAllBytes(template), other,
+                    PrecompiledTemplate.options(new PDFBoxRenderer(), null)));
+
+            awaitUntil(() -> templates.forTemplate("Template.PDF").inspect().contains("\\$\\{FOOTER1\\}"));
+        } finally {
+            Files.deleteIfExists(precompiled);
+            Files.delete(template);
+            Files.delete(directory);
+        }
+    }
+
+    private static void awaitUntil(Condition condition) throws Exception {
+
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(10); // NOSONAR
+
+        while (!condition.isMet()) {
+            Assert.assertTrue("Condition not met in time", System.nanoTime() < end);
+            Thread.sleep(10); // NOSONAR
+        }
+    }
+
+    @FunctionalInterface
+    private interface Condition {
+
+        boolean isMet() throws RenderException;
+    }
 }
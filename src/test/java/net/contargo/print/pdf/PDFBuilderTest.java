@@ -19,10 +19,18 @@ import java.io.InputStream;
 
 import java.nio.file.Path;
 
+import java.time.Duration;
+
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.mockito.Matchers.anyBoolean;
 import static org.mockito.Matchers.anyInt;
@@ -50,6 +58,8 @@ public class PDFBuilderTest {
     private Path mockedInputStreamTemplate;
     @Captor
     private ArgumentCaptor<List<PDFImage>> qrCodesCaptor;
+    @Captor
+    private ArgumentCaptor<List<PDFBarcode>> barcodesCaptor;
 
     @Test(expected = IllegalArgumentException.class)
     public void ensureThrowsOnNullPathTemplateArgument() {
@@ -157,4 +167,323 @@ public class PDFBuilderTest {
 
         new PDFBuilder(mockedPDFRenderer, mockedQRCodeRenderer).renderQRCodes(new byte[0], (List<QRSpec>) null);
     }
+
+
+    @Test
+    public void ensureConfiguredBuilderDelegatesToConfiguredRenderers() throws Exception {
+
+        byte[] bytes = new byte[0];
+        List<QRSpec> specs = new ArrayList<>(Collections.singletonList(QRSpec.fromCode("foobar")));
+
+        when(mockedQRCodeRenderer.render(anyString(), anyInt(), anyInt(), anyBoolean())).thenReturn(bytes);
+
+        PDFBuilder builder = PDFBuilder.configure()
+                .withPDFRenderer(mockedPDFRenderer)
+                .withQRCodeRenderer(mockedQRCodeRenderer)
+                .build();
+
+        builder.renderFromTemplate(mockedPathTemplate);
+        builder.renderQRCodes(bytes, specs);
+
+        verify(mockedPDFRenderer).renderFromTemplate(mockedPathTemplate);
+        verify(mockedQRCodeRenderer).render(eq("foobar"), anyInt(), eq(Level.High.val), eq(true));
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void ensureConfigThrowsOnNullPDFRenderer() {
+
+        PDFBuilder.configure().withPDFRenderer(null);
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void ensureConfigThrowsOnNullQRCodeRenderer() {
+
+        PDFBuilder.configure().withQRCodeRenderer(null);
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void ensureConfiguredBuilderThrowsOnNullPathTemplateArgument() {
+
+        Path template = null;
+        PDFBuilder.configure().build().forTemplate(template);
+    }
+
+
+    @Test
+    public void ensureClasspathTemplateIsRenderedOnlyOnce() throws RenderException {
+
+        byte[] bytes = new byte[0];
+        when(mockedPDFRenderer.renderFromTemplate(Matchers.any(InputStream.class))).thenReturn(bytes);
+
+        PDFBuilder builder = new PDFBuilder(mockedPDFRenderer, mockedQRCodeRenderer);
+        ClassLoader loader = getClass().getClassLoader();
+
+        Assert.assertSame("Wrong template", bytes, builder.renderFromClasspath(loader, "foo.pdf"));
+        Assert.assertSame("Wrong template", bytes, builder.renderFromClasspath(loader, "foo.pdf"));
+
+        verify(mockedPDFRenderer, Mockito.times(1)).renderFromTemplate(Matchers.any(InputStream.class));
+    }
+
+
+    @Test(expected = RenderException.class)
+    public void ensureClasspathTemplateThrowsOnMissingResource() throws RenderException {
+
+        new PDFBuilder(mockedPDFRenderer, mockedQRCodeRenderer).renderFromClasspath(getClass().getClassLoader(),
+            "missing.pdf");
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void ensureThrowsOnNullClasspathTemplateArgument() {
+
+        PDFBuilder.fromClasspath(null);
+    }
+
+
+    @Test
+    public void ensureRenderQRCodesConcurrentlyKeepsOrder() throws Exception {
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+
+        try {
+            List<QRSpec> specs = new ArrayList<>();
+
+            for (int i = 0; i < 12; i++) {
+                String code = String.valueOf(i);
+                specs.add(QRSpec.fromCode(code));
+                when(mockedQRCodeRenderer.render(eq(code), anyInt(), anyInt(), anyBoolean())).thenReturn(
+                    code.getBytes());
+            }
+
+            new PDFBuilder(mockedPDFRenderer, mockedQRCodeRenderer, executor).renderQRCodes(new byte[0], specs);
+
+            verify(mockedPDFRenderer).renderImages(Matchers.any(byte[].class), qrCodesCaptor.capture());
+
+            List<PDFImage> codes = qrCodesCaptor.getValue();
+            Assert.assertEquals("Wrong amount", 12, codes.size());
+
+            for (int i = 0; i < 12; i++) {
+                Assert.assertEquals("Wrong order", String.valueOf(i), new String(codes.get(i).getData()));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+
+    @Test(expected = RenderException.class)
+    public void ensureRenderQRCodesConcurrentlyThrowsRenderException() throws Exception {
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+
+        try {
+            List<QRSpec> specs = new ArrayList<>(Arrays.asList(QRSpec.fromCode("foo"), QRSpec.fromCode("bar")));
+
+            when(mockedQRCodeRenderer.render(anyString(), anyInt(), anyInt(), anyBoolean())).thenThrow(
+                new RenderException("QR-code render failed."));
+
+            new PDFBuilder(mockedPDFRenderer, mockedQRCodeRenderer, executor).renderQRCodes(new byte[0], specs);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+
+    @Test
+    public void ensureConfiguredBuilderCachesRenderedCodes() throws Exception {
+
+        byte[] bytes = new byte[0];
+        List<QRSpec> specs = new ArrayList<>(Arrays.asList(QRSpec.fromCode("foo"), QRSpec.fromCode("foo")));
+
+        when(mockedQRCodeRenderer.render(anyString(), anyInt(), anyInt(), anyBoolean())).thenReturn(bytes);
+
+        PDFBuilder builder = PDFBuilder.configure()
+                .withPDFRenderer(mockedPDFRenderer)
+                .withQRCodeRenderer(mockedQRCodeRenderer)
+                .build();
+
+        builder.renderQRCodes(bytes, specs);
+        builder.renderQRCodes(bytes, specs);
+
+        verify(mockedQRCodeRenderer, Mockito.times(1)).render(eq("foo"), anyInt(), anyInt(), anyBoolean());
+    }
+
+
+    @Test
+    public void ensureConfiguredBuilderWithoutRenderCacheRendersEveryCode() throws Exception {
+
+        byte[] bytes = new byte[0];
+        List<QRSpec> specs = new ArrayList<>(Arrays.asList(QRSpec.fromCode("foo"), QRSpec.fromCode("foo")));
+
+        when(mockedQRCodeRenderer.render(anyString(), anyInt(), anyInt(), anyBoolean())).thenReturn(bytes);
+
+        PDFBuilder.configure()
+            .withPDFRenderer(mockedPDFRenderer)
+            .withQRCodeRenderer(mockedQRCodeRenderer)
+            .withRenderCacheSize(0)
+            .build()
+            .renderQRCodes(bytes, specs);
+
+        verify(mockedQRCodeRenderer, Mockito.times(2)).render(eq("foo"), anyInt(), anyInt(), anyBoolean());
+    }
+
+
+    @Test
+    public void ensureRenderBarcodesEncodesAndDelegatesToPDFRenderer() throws Exception {
+
+        BarcodeRenderer barcodeRenderer = Mockito.mock(BarcodeRenderer.class);
+        BarcodeMatrix matrix = new BarcodeMatrix(new boolean[][] { { true, false, true } });
+        byte[] bytes = new byte[0];
+
+        when(barcodeRenderer.render(BarcodeSpec.Symbology.CODE_128, "foo")).thenReturn(matrix);
+
+        PDFBuilder.configure()
+            .withPDFRenderer(mockedPDFRenderer)
+            .withBarcodeRenderer(barcodeRenderer)
+            .build()
+            .renderBarcodes(bytes, Collections.singletonList(BarcodeSpec.code128("foo").withPosition(1, 2)));
+
+        verify(mockedPDFRenderer).renderBarcodes(eq(bytes), barcodesCaptor.capture());
+
+        List<PDFBarcode> barcodes = barcodesCaptor.getValue();
+        Assert.assertEquals("Wrong amount", 1, barcodes.size());
+        Assert.assertSame("Wrong matrix", matrix, barcodes.get(0).getMatrix());
+        Assert.assertEquals("Wrong position", 1, barcodes.get(0).getX());
+        Assert.assertEquals("Wrong position", 2, barcodes.get(0).getY());
+    }
+
+
+    @Test
+    public void ensureRenderPreviewsSplitsPagesIntoBatchesAndKeepsTheOrder() throws Exception {
+
+        byte[] pdf = new byte[0];
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+
+        when(mockedPDFRenderer.countPages(pdf)).thenReturn(5);
+        when(mockedPDFRenderer.renderPreviews(eq(pdf), Matchers.anyListOf(Integer.class), eq(72f))).thenAnswer(
+            invocation -> {
+                List<byte[]> previews = new ArrayList<>();
+
+                for (Object page : (List<?>) invocation.getArguments()[1]) {
+                    previews.add(new byte[] { ((Integer) page).byteValue() });
+                }
+
+                return previews;
+            });
+
+        try {
+            List<byte[]> previews = new PDFBuilder(mockedPDFRenderer, mockedQRCodeRenderer, executor).renderPreviews(
+                    pdf, PreviewSpec.ofAllPages());
+
+            Assert.assertEquals("Wrong number of previews", 5, previews.size());
+
+            for (int i = 0; i < previews.size(); i++) {
+                Assert.assertEquals("Wrong order of previews", i, previews.get(i)[0]);
+            }
+
+            int batches = Math.min(5, Runtime.getRuntime().availableProcessors());
+            verify(mockedPDFRenderer, Mockito.times(batches)).renderPreviews(eq(pdf),
+                Matchers.anyListOf(Integer.class), eq(72f));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+
+    @Test
+    public void ensureConfiguredBuilderCachesPreviewsByDocumentContent() throws Exception {
+
+        List<byte[]> previews = Collections.singletonList(new byte[] { 1 });
+
+        when(mockedPDFRenderer.renderPreviews(Matchers.any(byte[].class), eq(Collections.singletonList(0)),
+                    eq(36f)))
+            .thenReturn(previews);
+
+        PDFBuilder builder = PDFBuilder.configure().withPDFRenderer(mockedPDFRenderer).withPreviewCacheSize(10)
+            .build();
+
+        builder.renderPreviews(new byte[] { 42 }, PreviewSpec.ofPages(0).withDPI(36));
+        builder.renderPreviews(new byte[] { 42 }, PreviewSpec.ofPages(0).withDPI(36));
+        builder.renderPreviews(new byte[] { 43 }, PreviewSpec.ofPages(0).withDPI(36));
+
+        verify(mockedPDFRenderer, Mockito.times(2)).renderPreviews(Matchers.any(byte[].class),
+            eq(Collections.singletonList(0)), eq(36f));
+    }
+
+
+    @Test
+    public void ensureCoalescedBuildsShareOneRender() throws Exception {
+
+        PDFBuilder builder = PDFBuilder.configure().withCoalescedBuilds().build();
+        byte[] pdf = { 42 };
+        AtomicInteger renders = new AtomicInteger();
+        CompletableFuture<byte[]> waiting = new CompletableFuture<>();
+
+        byte[] result = builder.coalesce("key", () -> {
+                renders.incrementAndGet();
+                awaitWaiting(coalesceInThread(builder, waiting, () -> {
+                            renders.incrementAndGet();
+
+                            return new byte[] { 43 };
+                        }));
+
+                return pdf;
+            });
+
+        Assert.assertSame("Wrong result", pdf, result);
+        Assert.assertSame("Result not shared", pdf, waiting.get(10, TimeUnit.SECONDS));
+        Assert.assertEquals("Rendered more than once", 1, renders.get());
+    }
+
+
+    @Test
+    public void ensureCoalescedBuildRendersItselfIfTheIdenticalBuildRunsOutOfTime() throws Exception {
+
+        PDFBuilder builder = PDFBuilder.configure().withCoalescedBuilds().build();
+        byte[] pdf = { 43 };
+        CompletableFuture<byte[]> waiting = new CompletableFuture<>();
+
+        try {
+            builder.coalesce("key", () -> {
+                    awaitWaiting(coalesceInThread(builder, waiting, () -> pdf));
+                    Deadline.start(Duration.ZERO).checkNow();
+
+                    return new byte[] { 42 };
+                });
+            Assert.fail("Should fail with the deadline of the first build");
+        } catch (Deadline.Exceeded e) {
+            // Expected
+        } finally {
+            Deadline.current().end();
+        }
+
+        Assert.assertSame("Waiting build not rendered", pdf, waiting.get(10, TimeUnit.SECONDS));
+    }
+
+
+    private static Thread coalesceInThread(PDFBuilder builder, CompletableFuture<byte[]> result,
+        PDFBuilder.Build build) {
+
+        Thread thread = new Thread(() -> {
+                    try {
+                        result.complete(builder.coalesce("key", build));
+                    } catch (RenderException | RuntimeException e) {
+                        result.completeExceptionally(e);
+                    }
+                });
+        thread.start();
+
+        return thread;
+    }
+
+
+    private static void awaitWaiting(Thread thread) {
+
+        while (thread.getState() != Thread.State.WAITING) {
+            Thread.yield();
+        }
+    }
 }
@@ -0,0 +1,57 @@
+package net.contargo.print.pdf;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+
+public class PrecompiledTemplateTest {
+
+    private static final byte[] SOURCE = { 1, 2, 3 };
+    private static final byte[] COMPILED = { 4, 5, 6, 7 };
+    private static final String OPTIONS = PrecompiledTemplate.options(new PDFBoxRenderer(), null);
+
+    @Test
+    public void ensureReadsCompiledTemplateWhileCurrent() {
+
+        byte[] precompiled = PrecompiledTemplate.write(SOURCE, COMPILED, OPTIONS);
+
+        Assert.assertArrayEquals("Wrong compiled template", COMPILED,
+            PrecompiledTemplate.read(precompiled, SOURCE, OPTIONS));
+    }
+
+
+    @Test
+    public void ensureIgnoresStalePrecompiledTemplate() {
+
+        byte[] precompiled = PrecompiledTemplate.write(SOURCE, COMPILED, OPTIONS);
+
+        Assert.assertNull("Changed template not detected",
+            PrecompiledTemplate.read(precompiled, new byte[] { 1, 2 }, OPTIONS));
+        Assert.assertNull("Changed options not detected",
+            PrecompiledTemplate.read(precompiled, SOURCE,
+                PrecompiledTemplate.options(new PDFBoxRenderer(), OptimizeSpec.defaults())));
+        Assert.assertNull("Changed renderer not detected",
+            PrecompiledTemplate.read(precompiled, SOURCE, PrecompiledTemplate.options(new PDFBoxRenderer() {
+                    }, null)));
+    }
+
+
+    @Test
+    public void ensureIgnoresCorruptPrecompiledTemplate() {
+
+        byte[] precompiled = PrecompiledTemplate.write(SOURCE, COMPILED, OPTIONS);
+
+        for (int i = 0; i < precompiled.length; i++) {
+            byte[] corrupt = precompiled.clone();
+            corrupt[i] ^= 1;
+
+            Assert.assertNull("Corruption not detected at " + i, PrecompiledTemplate.read(corrupt, SOURCE, OPTIONS));
+        }
+
+        Assert.assertNull("Truncation not detected",
+            PrecompiledTemplate.read(Arrays.copyOf(precompiled, 10), SOURCE, OPTIONS)); // NOSONAR
+        Assert.assertNull("Other file not detected", PrecompiledTemplate.read(SOURCE, SOURCE, OPTIONS));
+    }
+}
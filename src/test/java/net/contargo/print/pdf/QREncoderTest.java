@@ -0,0 +1,109 @@
+package net.contargo.print.pdf;
+
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.common.DecoderResult;
+import com.google.zxing.qrcode.decoder.Decoder;
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+import com.google.zxing.qrcode.encoder.Encoder;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+
+public class QREncoderTest {
+
+    private static final List<String> CODES = Arrays.asList("", "0", "MSKU1234565", "msku1234565",
+            "https://example.com/container/MSKU1234565?ref=12345678901234567890", "Größe: 20' Box", "Zoll € 1234",
+            "HAMBURG 01234567890123456789 duisburg ABCDEFGHIJKLMNOP 98765");
+
+    @Test
+    public void ensureEncodedCodesAreDecodedForAllLevels() throws Exception {
+
+        for (String code : CODES) {
+            for (ErrorCorrectionLevel level : ErrorCorrectionLevel.values()) {
+                DecoderResult result = decode(QREncoder.encode(code, level, false));
+
+                Assert.assertEquals("Wrong content", code, result.getText());
+                Assert.assertEquals("Wrong level", level.toString(), result.getECLevel());
+            }
+        }
+    }
+
+
+    @Test
+    public void ensureLargeVersionsAreDecoded() throws Exception {
+
+        StringBuilder code = new StringBuilder();
+
+        for (int i = 0; i < 60; i++) {
+            code.append("Container MSKU").append(1000000 + i).append(", ");
+        }
+
+        BarcodeMatrix matrix = QREncoder.encode(code.toString(), ErrorCorrectionLevel.M, false);
+
+        Assert.assertTrue("Expected a version with version information", matrix.getWidth() > 45);
+        Assert.assertEquals("Wrong content", code.toString(), decode(matrix).getText());
+    }
+
+
+    @Test
+    public void ensureMixedContentNeedsNoLargerVersionThanSingleMode() throws Exception {
+
+        for (String code : CODES) {
+            BarcodeMatrix matrix = QREncoder.encode(code, ErrorCorrectionLevel.H, false);
+            int singleMode = Encoder.encode(code, ErrorCorrectionLevel.H).getMatrix().getWidth();
+
+            Assert.assertTrue("Larger than single mode: " + code, matrix.getWidth() <= singleMode);
+        }
+
+        String code = "https://example.com/c?n=1234567890123456789012345678901234567890";
+
+        Assert.assertTrue("Expected a smaller version",
+            QREncoder.encode(code, ErrorCorrectionLevel.L, false).getWidth()
+            < Encoder.encode(code, ErrorCorrectionLevel.L).getMatrix().getWidth());
+    }
+
+
+    @Test
+    public void ensureErrorCorrectionBoostKeepsTheVersion() throws Exception {
+
+        BarcodeMatrix plain = QREncoder.encode("MSKU1234565", ErrorCorrectionLevel.L, false);
+        BarcodeMatrix boosted = QREncoder.encode("MSKU1234565", ErrorCorrectionLevel.L, true);
+
+        DecoderResult result = decode(boosted);
+
+        Assert.assertEquals("Wrong size", plain.getWidth(), boosted.getWidth());
+        Assert.assertEquals("Wrong content", "MSKU1234565", result.getText());
+        // 74 bits fit version 1 up to level Q, with 104 bits, but not level H, with 72 bits
+        Assert.assertEquals("Expected the boosted level", "Q", result.getECLevel());
+    }
+
+
+    @Test(expected = RenderException.class)
+    public void ensureThrowsOnTooLongCode() throws RenderException {
+
+        char[] code = new char[8000];
+        Arrays.fill(code, 'x');
+
+        QREncoder.encode(new String(code), ErrorCorrectionLevel.L, false);
+    }
+
+
+    private static DecoderResult decode(BarcodeMatrix matrix) throws Exception {
+
+        BitMatrix bits = new BitMatrix(matrix.getWidth());
+
+        for (int y = 0; y < matrix.getHeight(); y++) {
+            for (int x = 0; x < matrix.getWidth(); x++) {
+                if (matrix.isSet(x, y)) {
+                    bits.set(x, y);
+                }
+            }
+        }
+
+        return new Decoder().decode(bits);
+    }
+}
@@ -0,0 +1,66 @@
+package net.contargo.print.pdf;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class RenderBufferTest {
+
+    @Test
+    public void ensureBufferIsRecycledPerThread() {
+
+        RenderBuffer first = RenderBuffer.acquire(100);
+        first.release();
+
+        RenderBuffer second = RenderBuffer.acquire(100);
+        second.release();
+
+        Assert.assertSame("Buffer not recycled", first, second);
+    }
+
+
+    @Test
+    public void ensureBufferInUseIsNotHandedOutTwice() {
+
+        RenderBuffer first = RenderBuffer.acquire(100);
+        RenderBuffer second = RenderBuffer.acquire(100);
+
+        Assert.assertNotSame("Buffer in use handed out", first, second);
+
+        second.release();
+        first.release();
+    }
+
+
+    @Test
+    public void ensureRecycledBufferIsEmptyAndCopiesExactSize() {
+
+        RenderBuffer first = RenderBuffer.acquire(0);
+        first.write(new byte[] { 1, 2, 3 }, 0, 3);
+        first.release();
+
+        RenderBuffer second = RenderBuffer.acquire(0);
+
+        Assert.assertEquals("Recycled buffer not empty", 0, second.size());
+
+        second.write(new byte[] { 4, 5 }, 0, 2);
+
+        Assert.assertArrayEquals("Wrong content", new byte[] { 4, 5 }, second.toByteArray());
+
+        second.release();
+    }
+
+
+    @Test
+    public void ensureLargeBufferIsNotRetained() {
+
+        RenderBuffer large = RenderBuffer.acquire(4 * 1024 * 1024); // NOSONAR
+        large.release();
+
+        RenderBuffer next = RenderBuffer.acquire(0);
+
+        Assert.assertTrue("Large buffer retained", next.capacity() <= 1024 * 1024); // NOSONAR
+
+        next.release();
+    }
+}
@@ -0,0 +1,53 @@
+package net.contargo.print.pdf;
+
+import com.google.zxing.BinaryBitmap;
+import com.google.zxing.Result;
+import com.google.zxing.ResultMetadataType;
+import com.google.zxing.client.j2se.BufferedImageLuminanceSource;
+import com.google.zxing.common.HybridBinarizer;
+import com.google.zxing.qrcode.QRCodeReader;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+
+import java.io.ByteArrayInputStream;
+
+import javax.imageio.ImageIO;
+
+
+public class SegmentedQRCodeRendererTest {
+
+    @Test
+    public void ensureRendersReadableImageOfRequestedSize() throws Exception {
+
+        byte[] png = new SegmentedQRCodeRenderer().render("MSKU1234565", 125, 30, true);
+
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(png));
+
+        Assert.assertEquals("Wrong width", 125, image.getWidth());
+        Assert.assertEquals("Wrong height", 125, image.getHeight());
+        Assert.assertEquals("Wrong content", "MSKU1234565", read(image).getText());
+    }
+
+
+    @Test
+    public void ensureRendersWithBoostedErrorCorrection() throws Exception {
+
+        byte[] png = new SegmentedQRCodeRenderer().render("MSKU1234565", 125, 7, true, true);
+
+        Result result = read(ImageIO.read(new ByteArrayInputStream(png)));
+
+        Assert.assertEquals("Wrong content", "MSKU1234565", result.getText());
+        Assert.assertEquals("Expected a boosted level", "Q",
+            result.getResultMetadata().get(ResultMetadataType.ERROR_CORRECTION_LEVEL));
+    }
+
+
+    private static Result read(BufferedImage image) throws Exception {
+
+        return new QRCodeReader().decode(new BinaryBitmap(new HybridBinarizer(
+                        new BufferedImageLuminanceSource(image))));
+    }
+}
@@ -0,0 +1,69 @@
+package net.contargo.print.pdf;
+
+import net.contargo.print.pdf.BuildablePDF.MultiLineTextFillMode;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class TextLayoutTest {
+
+    // Every character is 5 units wide, except for the narrow `i`
+    private static final TextMeasure MEASURE = text -> text.length() * 5f
+        - (text.length() - text.replace("i", "").length()) * 3f;
+
+    @Test
+    public void ensureBreaksLinesByMeasuredWidth() {
+
+        TextLayout layout = new TextLayout("Lucy in the sky with diamonds", 60, 3, MultiLineTextFillMode.TOP);
+
+        Assert.assertEquals("Wrong first line", "Lucy in the", layout.line(0, MEASURE));
+        Assert.assertEquals("Wrong second line", "sky with", layout.line(1, MEASURE));
+        Assert.assertEquals("Wrong third line", "diamonds", layout.line(2, MEASURE));
+    }
+
+
+    @Test
+    public void ensureNarrowGlyphsFitMoreCharacters() {
+
+        TextLayout layout = new TextLayout("iiii iiii iiii", 35, 2, MultiLineTextFillMode.TOP);
+
+        Assert.assertEquals("Wrong first line", "iiii iiii iiii", layout.line(0, MEASURE));
+        Assert.assertEquals("Wrong second line", "", layout.line(1, MEASURE));
+    }
+
+
+    @Test
+    public void ensureFillsFromBottom() {
+
+        TextLayout layout = new TextLayout("Lucy in the sky", 60, 3, MultiLineTextFillMode.BOTTOM);
+
+        Assert.assertEquals("Wrong first line", "", layout.line(0, MEASURE));
+        Assert.assertEquals("Wrong second line", "Lucy in the", layout.line(1, MEASURE));
+        Assert.assertEquals("Wrong third line", "sky", layout.line(2, MEASURE));
+    }
+
+
+    @Test
+    public void ensureLayoutIsComputedOnceWithFirstMeasure() {
+
+        TextLayout layout = new TextLayout("Lucy in the sky", 60, 2, MultiLineTextFillMode.TOP);
+
+        Assert.assertEquals("Wrong first line", "Lucy in the", layout.line(0, MEASURE));
+        Assert.assertEquals("Wrong second line", "sky", layout.line(1, text -> 1000f));
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void ensureThrowsIfTextDoesNotFit() {
+
+        new TextLayout("Lucy in the sky with diamonds", 60, 2, MultiLineTextFillMode.TOP).line(0, MEASURE);
+    }
+
+
+    @Test(expected = IllegalStateException.class)
+    public void ensureThrowsWithoutMeasure() {
+
+        new TextLayout("Lucy", 60, 2, MultiLineTextFillMode.TOP).line(0, null);
+    }
+}